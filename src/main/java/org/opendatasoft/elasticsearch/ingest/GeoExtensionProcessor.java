@@ -14,10 +14,12 @@ import org.elasticsearch.ingest.ConfigurationUtils;
 import org.elasticsearch.ingest.IngestDocument;
 import org.elasticsearch.ingest.Processor;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.PrecisionModel;
 import org.locationtech.jts.io.ParseException;
 import org.locationtech.jts.io.WKTWriter;
+import org.opendatasoft.elasticsearch.plugin.GeoShapeServices;
 import org.opendatasoft.elasticsearch.plugin.GeoUtils;
 
 import java.io.IOException;
@@ -41,6 +43,7 @@ public class GeoExtensionProcessor extends AbstractProcessor {
     private final String areaField;
     private final String bboxField;
     private final String centroidField;
+    private final GeoShapeServices services;
 
     private final GeometryFactory geomFactory;
     private final WKTWriter wktWriter;
@@ -58,7 +61,8 @@ public class GeoExtensionProcessor extends AbstractProcessor {
         String typeField,
         String areaField,
         String bboxField,
-        String centroidField
+        String centroidField,
+        GeoShapeServices services
     ) {
         super(tag, description);
         this.field = field;
@@ -72,6 +76,7 @@ public class GeoExtensionProcessor extends AbstractProcessor {
         this.areaField = areaField;
         this.bboxField = bboxField;
         this.centroidField = centroidField;
+        this.services = services;
 
         PrecisionModel precisionModel = new PrecisionModel(PrecisionModel.FLOATING);
         this.geomFactory = new GeometryFactory(precisionModel, 0);
@@ -154,22 +159,33 @@ public class GeoExtensionProcessor extends AbstractProcessor {
             );
             if (wkbField != null) ingestDocument.setFieldValue(geoShapeField + "." + wkbField, wkb);
             if (typeField != null) ingestDocument.setFieldValue(geoShapeField + "." + typeField, geomType);
-            if (areaField != null) ingestDocument.setFieldValue(geoShapeField + "." + areaField, GeoUtils.getArea(fixedGeom));
-            if (centroidField != null) ingestDocument.setFieldValue(
-                geoShapeField + "." + centroidField,
-                GeoUtils.getCentroidFromGeom(fixedGeom)
-            );
-            if (bboxField != null) {
-                Coordinate[] coords = GeoUtils.getEnvelope(fixedGeom).getCoordinates();
-                if (coords.length >= 4) {
-                    ingestDocument.setFieldValue(geoShapeField + "." + bboxField, GeoUtils.getBboxFromCoords(coords));
-                } else if (coords.length == 1) {
-                    GeoPoint point = new GeoPoint(
-                        org.elasticsearch.common.geo.GeoUtils.normalizeLat(coords[0].y),
-                        org.elasticsearch.common.geo.GeoUtils.normalizeLon(coords[0].x)
-                    );
-                    ingestDocument.setFieldValue(geoShapeField + "." + bboxField, Arrays.asList(point, point));
+            if (areaField == null && centroidField == null && bboxField == null) {
+                continue;
+            }
+
+            // The area, centroid and bbox are computed on a single JTS geometry, charged to the geoshape breaker
+            final long reserved = services.reserveDecodedBytes(wkb.length, "geo_extension processor [" + geoShapeField + "]");
+            try {
+                Geometry jtsGeom = GeoUtils.convertToJTS(fixedGeom);
+                if (areaField != null) ingestDocument.setFieldValue(geoShapeField + "." + areaField, jtsGeom.getArea());
+                if (centroidField != null) ingestDocument.setFieldValue(
+                    geoShapeField + "." + centroidField,
+                    GeoUtils.getCentroidFromGeom(jtsGeom)
+                );
+                if (bboxField != null) {
+                    Coordinate[] coords = jtsGeom.getEnvelope().getCoordinates();
+                    if (coords.length >= 4) {
+                        ingestDocument.setFieldValue(geoShapeField + "." + bboxField, GeoUtils.getBboxFromCoords(coords));
+                    } else if (coords.length == 1) {
+                        GeoPoint point = new GeoPoint(
+                            org.elasticsearch.common.geo.GeoUtils.normalizeLat(coords[0].y),
+                            org.elasticsearch.common.geo.GeoUtils.normalizeLon(coords[0].x)
+                        );
+                        ingestDocument.setFieldValue(geoShapeField + "." + bboxField, Arrays.asList(point, point));
+                    }
                 }
+            } finally {
+                services.release(reserved);
             }
         }
         return ingestDocument;
@@ -181,6 +197,12 @@ public class GeoExtensionProcessor extends AbstractProcessor {
     }
 
     public static final class Factory implements Processor.Factory {
+        private final GeoShapeServices services;
+
+        public Factory(GeoShapeServices services) {
+            this.services = services;
+        }
+
         @Override
         public GeoExtensionProcessor create(
             Map<String, Processor.Factory> registry,
@@ -249,7 +271,8 @@ public class GeoExtensionProcessor extends AbstractProcessor {
                 typeField,
                 areaField,
                 bboxField,
-                centroidField
+                centroidField,
+                services
             );
         }
     }
@@ -0,0 +1,265 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.locationtech.jts.io.ParseException;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compact transport encoding of WKB shapes, in the spirit of TWKB: coordinates are rounded to a number of decimals
+ * and sent as zigzag varint deltas from the previous coordinate, counts are varints and types a single byte. Large
+ * shapes are deflated on top of it.
+ *
+ * Rounding is lossy: it is only applied to simplified shapes, with a precision finer than the simplification
+ * tolerance. The other shapes, and the shapes with z or m ordinates, are sent as WKB (possibly deflated).
+ * Shapes are read back as big endian WKB, the default of the JTS writer.
+ */
+public final class CompactShapeCodec {
+    private static final int COMPACT = 1;
+    private static final int DEFLATED = 1 << 1;
+
+    // Below this size, deflating doesn't pay off
+    private static final int DEFLATE_THRESHOLD = 1024;
+    private static final int MAX_DECIMALS = 9;
+
+    private CompactShapeCodec() {}
+
+    /**
+     * The number of decimals to round the coordinates of shapes simplified with the given tolerance to: two more than
+     * the tolerance, so that rounding moves a vertex by at most a hundredth of the tolerance. A tolerance of 0 (shapes
+     * not simplified) keeps the coordinates as is, which is -1 decimals.
+     */
+    public static int decimalsForTolerance(double tolerance) {
+        if (tolerance <= 0) {
+            return -1;
+        }
+        int decimals = (int) Math.ceil(-Math.log10(tolerance)) + 2;
+        return Math.max(0, Math.min(MAX_DECIMALS, decimals));
+    }
+
+    public static void write(StreamOutput out, BytesRef wkb, int decimals) throws IOException {
+        int flags = 0;
+        BytesRef payload = wkb;
+        if (decimals >= 0) {
+            try (BytesStreamOutput buffer = new BytesStreamOutput(wkb.length / 2)) {
+                new Encoder(buffer, decimals).encode(wkb);
+                payload = BytesRef.deepCopyOf(BytesReference.bytes(buffer).toBytesRef());
+                flags |= COMPACT;
+            } catch (ParseException e) {
+                // Not encodable (z or m ordinates, empty points): sent as WKB
+            }
+        }
+
+        int rawLength = payload.length;
+        if (rawLength >= DEFLATE_THRESHOLD) {
+            BytesRef deflated = deflate(payload);
+            if (deflated.length < rawLength) {
+                payload = deflated;
+                flags |= DEFLATED;
+            }
+        }
+
+        out.writeByte((byte) flags);
+        if ((flags & COMPACT) != 0) {
+            out.writeByte((byte) decimals);
+        }
+        if ((flags & DEFLATED) != 0) {
+            out.writeVInt(rawLength);
+        }
+        out.writeBytesRef(payload);
+    }
+
+    public static BytesRef read(StreamInput in) throws IOException {
+        int flags = in.readByte();
+        int decimals = (flags & COMPACT) != 0 ? in.readByte() : -1;
+        int rawLength = (flags & DEFLATED) != 0 ? in.readVInt() : -1;
+        BytesRef payload = in.readBytesRef();
+        if ((flags & DEFLATED) != 0) {
+            payload = inflate(payload, rawLength);
+        }
+        if ((flags & COMPACT) == 0) {
+            return payload;
+        }
+        BytesRefBuilder wkb = new BytesRefBuilder();
+        new Decoder(StreamInput.wrap(payload.bytes, payload.offset, payload.length), decimals, wkb).decodeGeometry();
+        return wkb.toBytesRef();
+    }
+
+    private static BytesRef deflate(BytesRef bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(bytes.bytes, bytes.offset, bytes.length);
+            deflater.finish();
+            byte[] buffer = new byte[bytes.length];
+            int length = 0;
+            while (deflater.finished() == false && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            // Not finished: the deflated bytes would be larger
+            return deflater.finished() ? new BytesRef(buffer, 0, length) : bytes;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static BytesRef inflate(BytesRef bytes, int rawLength) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(bytes.bytes, bytes.offset, bytes.length);
+            byte[] buffer = new byte[rawLength];
+            int length = 0;
+            while (length < rawLength) {
+                int inflated = inflater.inflate(buffer, length, rawLength - length);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Truncated deflated shape");
+                }
+                length += inflated;
+            }
+            return new BytesRef(buffer);
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid deflated shape", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static final class Encoder {
+        private final StreamOutput out;
+        private final double scale;
+        private final WkbInput input = new WkbInput();
+        private long previousX;
+        private long previousY;
+
+        Encoder(StreamOutput out, int decimals) {
+            this.out = out;
+            this.scale = Math.pow(10, decimals);
+        }
+
+        void encode(BytesRef wkb) throws IOException, ParseException {
+            input.reset(wkb);
+            encodeGeometry();
+        }
+
+        private void encodeGeometry() throws IOException, ParseException {
+            int type = input.readGeometryHeader();
+            if (input.dimension() != 2) {
+                throw new ParseException("Only 2 dimensions shapes are encoded");
+            }
+            out.writeByte((byte) type);
+            switch (type) {
+                case WkbInput.POINT -> encodeCoordinate();
+                case WkbInput.LINESTRING -> encodeCoordinates();
+                case WkbInput.POLYGON -> {
+                    int rings = input.readCount(Integer.BYTES);
+                    out.writeVInt(rings);
+                    for (int i = 0; i < rings; i++) {
+                        encodeCoordinates();
+                    }
+                }
+                default -> {
+                    int geometries = input.readCount(5);
+                    out.writeVInt(geometries);
+                    for (int i = 0; i < geometries; i++) {
+                        encodeGeometry();
+                    }
+                }
+            }
+        }
+
+        private void encodeCoordinates() throws IOException, ParseException {
+            int points = input.readPointCount();
+            out.writeVInt(points);
+            for (int i = 0; i < points; i++) {
+                encodeCoordinate();
+            }
+        }
+
+        private void encodeCoordinate() throws IOException, ParseException {
+            double x = input.readDouble();
+            double y = input.readDouble();
+            if (Double.isFinite(x) == false || Double.isFinite(y) == false) {
+                throw new ParseException("Only finite coordinates are encoded");
+            }
+            long qx = Math.round(x * scale);
+            long qy = Math.round(y * scale);
+            out.writeZLong(qx - previousX);
+            out.writeZLong(qy - previousY);
+            previousX = qx;
+            previousY = qy;
+        }
+    }
+
+    private static final class Decoder {
+        private final StreamInput in;
+        private final double scale;
+        private final BytesRefBuilder wkb;
+        private long previousX;
+        private long previousY;
+
+        Decoder(StreamInput in, int decimals, BytesRefBuilder wkb) {
+            this.in = in;
+            this.scale = Math.pow(10, decimals);
+            this.wkb = wkb;
+        }
+
+        void decodeGeometry() throws IOException {
+            int type = in.readByte();
+            wkb.append((byte) 0); // big endian
+            writeInt(type);
+            switch (type) {
+                case WkbInput.POINT -> decodeCoordinate();
+                case WkbInput.LINESTRING -> decodeCoordinates();
+                case WkbInput.POLYGON -> {
+                    int rings = in.readVInt();
+                    writeInt(rings);
+                    for (int i = 0; i < rings; i++) {
+                        decodeCoordinates();
+                    }
+                }
+                case WkbInput.MULTIPOINT, WkbInput.MULTILINESTRING, WkbInput.MULTIPOLYGON, WkbInput.GEOMETRYCOLLECTION -> {
+                    int geometries = in.readVInt();
+                    writeInt(geometries);
+                    for (int i = 0; i < geometries; i++) {
+                        decodeGeometry();
+                    }
+                }
+                default -> throw new IOException("Unknown compact shape type [" + type + "]");
+            }
+        }
+
+        private void decodeCoordinates() throws IOException {
+            int points = in.readVInt();
+            writeInt(points);
+            for (int i = 0; i < points; i++) {
+                decodeCoordinate();
+            }
+        }
+
+        private void decodeCoordinate() throws IOException {
+            previousX += in.readZLong();
+            previousY += in.readZLong();
+            writeLong(Double.doubleToLongBits(previousX / scale));
+            writeLong(Double.doubleToLongBits(previousY / scale));
+        }
+
+        private void writeInt(int value) {
+            wkb.append((byte) (value >>> 24));
+            wkb.append((byte) (value >>> 16));
+            wkb.append((byte) (value >>> 8));
+            wkb.append((byte) value);
+        }
+
+        private void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+    }
+}
@@ -1,34 +1,122 @@
 package org.opendatasoft.elasticsearch.plugin;
 
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.features.NodeFeature;
+import org.elasticsearch.indices.breaker.BreakerSettings;
 import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.CircuitBreakerPlugin;
 import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.ScriptPlugin;
 import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
 import org.elasticsearch.script.ScriptContext;
 import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
 import org.opendatasoft.elasticsearch.ingest.GeoExtensionProcessor;
+import org.opendatasoft.elasticsearch.rest.RestGeoShapeStatsAction;
 import org.opendatasoft.elasticsearch.script.ScriptGeoSimplify;
 import org.opendatasoft.elasticsearch.search.aggregations.bucket.geoshape.GeoShapeBuilder;
 import org.opendatasoft.elasticsearch.search.aggregations.bucket.geoshape.InternalGeoShape;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+public class GeoExtensionPlugin extends Plugin implements ActionPlugin, CircuitBreakerPlugin, IngestPlugin, ScriptPlugin, SearchPlugin {
+    private final GeoShapeServices services = new GeoShapeServices();
+
+    @Override
+    public Collection<?> createComponents(PluginServices pluginServices) {
+        services.init(pluginServices.threadPool(), pluginServices.environment().settings());
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return Arrays.asList(
+            GeoShapeServices.SIMPLIFY_PARALLELISM_SETTING,
+            SimplifiedShapeCache.SIZE_SETTING,
+            GeoShapeServices.BREAKER_LIMIT_SETTING,
+            GeoShapeServices.BREAKER_OVERHEAD_SETTING
+        );
+    }
+
+    // Circuit breaker plugin methods
+    @Override
+    public BreakerSettings getCircuitBreaker(Settings settings) {
+        return new BreakerSettings(
+            GeoShapeServices.BREAKER_NAME,
+            GeoShapeServices.BREAKER_LIMIT_SETTING.get(settings).getBytes(),
+            GeoShapeServices.BREAKER_OVERHEAD_SETTING.get(settings),
+            CircuitBreaker.Type.MEMORY,
+            CircuitBreaker.Durability.TRANSIENT
+        );
+    }
+
+    @Override
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        services.setCircuitBreaker(circuitBreaker);
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        // Bounded: when the queue is full, the aggregations simplify their buckets on the search thread
+        return Collections.singletonList(
+            new FixedExecutorBuilder(
+                settings,
+                GeoShapeServices.SIMPLIFY_THREAD_POOL_NAME,
+                EsExecutors.allocatedProcessors(settings),
+                1000,
+                "thread_pool." + GeoShapeServices.SIMPLIFY_THREAD_POOL_NAME,
+                EsExecutors.TaskTrackingConfig.DO_NOT_TRACK
+            )
+        );
+    }
+
+    // Action plugin method
+    @Override
+    public List<RestHandler> getRestHandlers(
+        Settings settings,
+        NamedWriteableRegistry namedWriteableRegistry,
+        RestController restController,
+        ClusterSettings clusterSettings,
+        IndexScopedSettings indexScopedSettings,
+        SettingsFilter settingsFilter,
+        IndexNameExpressionResolver indexNameExpressionResolver,
+        Supplier<DiscoveryNodes> nodesInCluster,
+        Predicate<NodeFeature> clusterSupportsFeature
+    ) {
+        return Collections.singletonList(new RestGeoShapeStatsAction(services));
+    }
 
-public class GeoExtensionPlugin extends Plugin implements IngestPlugin, ScriptPlugin, SearchPlugin {
     // Ingest plugin method
     @Override
     public Map<String, Processor.Factory> getProcessors(Processor.Parameters parameters) {
-        return Collections.singletonMap(GeoExtensionProcessor.TYPE, new GeoExtensionProcessor.Factory());
+        return Collections.singletonMap(GeoExtensionProcessor.TYPE, new GeoExtensionProcessor.Factory(services));
     }
 
     // Script plugin method
     @Override
     public ScriptEngine getScriptEngine(Settings settings, Collection<ScriptContext<?>> contexts) {
-        return new ScriptGeoSimplify();
+        return new ScriptGeoSimplify(services);
     }
 
     // Search plugin method
@@ -39,7 +127,7 @@ public class GeoExtensionPlugin extends Plugin implements IngestPlugin, ScriptPl
         r.add(
             new SearchPlugin.AggregationSpec(GeoShapeBuilder.NAME, GeoShapeBuilder::new, GeoShapeBuilder::parse).addResultReader(
                 InternalGeoShape::new
-            ).setAggregatorRegistrar(GeoShapeBuilder::registerAggregators)
+            ).setAggregatorRegistrar(builder -> GeoShapeBuilder.registerAggregators(builder, services))
         );
 
         return r;
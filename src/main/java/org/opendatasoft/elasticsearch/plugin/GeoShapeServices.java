@@ -0,0 +1,117 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.SetOnce;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.locationtech.jts.geom.Coordinate;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The node level services shared by the geoshape aggregation, the simplify script and the ingest processor.
+ *
+ * The plugin registers its extensions before the node components exist: they get this holder, which is filled once the
+ * node components are created.
+ */
+public class GeoShapeServices {
+    public static final String SIMPLIFY_THREAD_POOL_NAME = "geoshape_simplify";
+
+    /**
+     * The maximum number of tasks a single geoshape aggregation splits the simplification of its buckets into.
+     */
+    public static final Setting<Integer> SIMPLIFY_PARALLELISM_SETTING = Setting.intSetting(
+        "geoshape.simplify.parallelism",
+        4,
+        1,
+        Setting.Property.NodeScope
+    );
+
+    public static final String BREAKER_NAME = "geoshape";
+
+    /**
+     * The limit of the breaker charged with the JTS geometries decoded from WKB, by the aggregation, the script and the
+     * ingest processor.
+     */
+    public static final Setting<ByteSizeValue> BREAKER_LIMIT_SETTING = Setting.memorySizeSetting(
+        "geoshape.breaker.limit",
+        "10%",
+        Setting.Property.NodeScope
+    );
+
+    public static final Setting<Double> BREAKER_OVERHEAD_SETTING = Setting.doubleSetting(
+        "geoshape.breaker.overhead",
+        1.0,
+        0.0,
+        Setting.Property.NodeScope
+    );
+
+    // Each x, y pair of WKB (16 bytes) is decoded into a Coordinate, referenced from the array of its sequence
+    private static final long DECODED_COORDINATE_BYTES = RamUsageEstimator.shallowSizeOfInstance(Coordinate.class)
+        + RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+    private static final long DECODED_GEOMETRY_BYTES = 256;
+
+    private final SetOnce<ThreadPool> threadPool = new SetOnce<>();
+    private final SetOnce<CircuitBreaker> circuitBreaker = new SetOnce<>();
+    private volatile int simplifyParallelism = 1;
+    private volatile SimplifiedShapeCache simplifiedShapeCache = SimplifiedShapeCache.DISABLED;
+
+    void init(ThreadPool threadPool, Settings settings) {
+        this.threadPool.set(threadPool);
+        this.simplifyParallelism = SIMPLIFY_PARALLELISM_SETTING.get(settings);
+        this.simplifiedShapeCache = new SimplifiedShapeCache(SimplifiedShapeCache.SIZE_SETTING.get(settings).getBytes());
+    }
+
+    /**
+     * The executor to simplify shapes on, or null when the node components are not created yet.
+     */
+    public ExecutorService simplifyExecutor() {
+        ThreadPool pool = threadPool.get();
+        return pool == null ? null : pool.executor(SIMPLIFY_THREAD_POOL_NAME);
+    }
+
+    public int simplifyParallelism() {
+        return simplifyParallelism;
+    }
+
+    public SimplifiedShapeCache simplifiedShapeCache() {
+        return simplifiedShapeCache;
+    }
+
+    void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker.set(circuitBreaker);
+    }
+
+    /**
+     * The geoshape breaker, or a breaker that never trips when the node did not register it yet.
+     */
+    public CircuitBreaker circuitBreaker() {
+        CircuitBreaker breaker = circuitBreaker.get();
+        return breaker == null ? new NoopCircuitBreaker(BREAKER_NAME) : breaker;
+    }
+
+    /**
+     * Charge the geoshape breaker with the estimated heap of the JTS geometry decoded from WKB of the given length,
+     * before decoding it. Return the charged bytes, to {@link #release(long)} once the geometry is no longer used.
+     */
+    public long reserveDecodedBytes(long wkbLength, String label) {
+        final long bytes = estimateDecodedBytes(wkbLength);
+        circuitBreaker().addEstimateBytesAndMaybeBreak(bytes, label);
+        return bytes;
+    }
+
+    public void release(long bytes) {
+        circuitBreaker().addWithoutBreaking(-bytes);
+    }
+
+    /**
+     * The estimated heap of the JTS geometry decoded from WKB of the given length.
+     */
+    public static long estimateDecodedBytes(long wkbLength) {
+        return DECODED_GEOMETRY_BYTES + (wkbLength / (2 * Double.BYTES)) * DECODED_COORDINATE_BYTES;
+    }
+}
@@ -15,8 +15,6 @@ import org.elasticsearch.geometry.Polygon;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.LineString;
-import org.locationtech.jts.io.ParseException;
-import org.locationtech.jts.io.WKBReader;
 import org.locationtech.jts.io.WKBWriter;
 import org.locationtech.jts.io.WKTWriter;
 import org.locationtech.jts.io.geojson.GeoJsonWriter;
@@ -30,7 +28,9 @@ public class GeoUtils {
     public enum OutputFormat {
         WKT,
         WKB,
-        GEOJSON
+        GEOJSON,
+        // A single vector tile for all the shapes: only the geoshape aggregation supports it
+        MVT
     }
 
     public enum SimplifyAlgorithm {
@@ -59,22 +59,6 @@ public class GeoUtils {
         return new GeoPoint(geom_centroid.getCoordinate().y, geom_centroid.getCoordinate().x);
     }
 
-    public static double getArea(org.elasticsearch.geometry.Geometry geom) {
-        Geometry jtsGeom = convertToJTS(geom);
-        return jtsGeom.getArea();
-    }
-
-    public static GeoPoint getCentroidFromGeom(org.elasticsearch.geometry.Geometry geom) {
-        Geometry jtsGeom = convertToJTS(geom);
-        org.locationtech.jts.geom.Point point = jtsGeom.getCentroid();
-        return new GeoPoint(point.getY(), point.getX());
-    }
-
-    public static Geometry getEnvelope(org.elasticsearch.geometry.Geometry geom) {
-        Geometry jtsGeom = convertToJTS(geom);
-        return jtsGeom.getEnvelope();
-    }
-
     /**
      * Convert Elasticsearch Geometry → JTS Geometry
      */
@@ -184,19 +168,43 @@ public class GeoUtils {
         return factory.createGeometryCollection(jtsGeometries);
     }
 
-    // Return true if wkb is a point
-    // http://en.wikipedia.org/wiki/Well-known_text#Well-known_binary
-    public static boolean wkbIsPoint(byte[] wkb) {
+    // Mask of all the WKB geometry types (1 << type), from 1 (Point) to 7 (GeometryCollection)
+    public static final int ALL_WKB_TYPES = 0xFE;
+
+    // Return the WKB geometry type of the shape, read from its header only: from 1 (Point) to 7 (GeometryCollection),
+    // without the ISO or EWKB dimension flags. 0 when the header can't be read
+    public static int getWkbType(BytesRef wkb) {
         if (wkb.length < 5) {
-            return false;
+            return 0;
         }
-
-        // Big endian or little endian shape representation
-        if (wkb[0] == 0) {
-            return wkb[1] == 0 && wkb[2] == 0 && wkb[3] == 0 && wkb[4] == 1;
+        final byte[] bytes = wkb.bytes;
+        final int offset = wkb.offset;
+        final int typeInt;
+        if (bytes[offset] == 0) {
+            typeInt = (bytes[offset + 1] & 0xff) << 24 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 8
+                | (bytes[offset + 4] & 0xff);
+        } else if (bytes[offset] == 1) {
+            typeInt = (bytes[offset + 4] & 0xff) << 24 | (bytes[offset + 3] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8
+                | (bytes[offset + 1] & 0xff);
         } else {
-            return wkb[1] == 1 && wkb[2] == 0 && wkb[3] == 0 && wkb[4] == 0;
+            return 0;
         }
+        final int type = (typeInt & 0x1fffffff) % 1000;
+        return type >= 1 && type <= 7 ? type : 0;
+    }
+
+    // Return the WKB geometry type of the given type name (case insensitive), as Geometry#getGeometryType() names it
+    public static int getWkbType(String geometryType) {
+        for (int type = 1; type <= 7; type++) {
+            if (WkbScanner.typeName(type).equalsIgnoreCase(geometryType)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown geometry type [" + geometryType + "]");
+    }
+
+    public static String getWkbTypeName(int wkbType) {
+        return WkbScanner.typeName(wkbType);
     }
 
     public static double getMeterByPixel(int zoom, double lat) {
@@ -220,25 +228,14 @@ public class GeoUtils {
         return 360 / (256 * Math.pow(2, zoom));
     }
 
-    public static String exportWkbTo(BytesRef wkb, OutputFormat output_format, GeoJsonWriter geoJsonWriter) throws ParseException {
-        switch (output_format) {
-            case WKT:
-                Geometry geom = new WKBReader().read(wkb.bytes);
-                return new WKTWriter().write(geom);
-            case WKB:
-                return WKBWriter.toHex(wkb.bytes);
-            default:
-                Geometry geo = new WKBReader().read(wkb.bytes);
-                return geoJsonWriter.write(geo);
-        }
-    }
-
     public static String exportGeoTo(Geometry geom, OutputFormat outputFormat, GeoJsonWriter geoJsonWriter) {
         switch (outputFormat) {
             case WKT:
                 return new WKTWriter().write(geom);
             case WKB:
                 return WKBWriter.toHex(new WKBWriter().write(geom));
+            case MVT:
+                throw new IllegalArgumentException("output format [mvt] can't be used for a single shape");
             default:
                 return geoJsonWriter.write(geom);
         }
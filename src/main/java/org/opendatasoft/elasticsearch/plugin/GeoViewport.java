@@ -0,0 +1,216 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.TopologyException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A lon/lat rectangle the client is looking at. When `left` is greater than `right`, the viewport crosses the dateline.
+ *
+ * Shapes are clipped to the viewport grown by a small margin, so that the edges created by the clipping, once
+ * simplified, stay out of sight.
+ */
+public final class GeoViewport implements Writeable {
+    public static final int MAX_TILE_ZOOM = 29;
+
+    // Margin added on each side of the viewport, as a part of its span (the usual 64 pixels of a 4096 pixels tile)
+    private static final double BUFFER_RATIO = 64d / 4096;
+
+    private final double top;
+    private final double left;
+    private final double bottom;
+    private final double right;
+
+    public GeoViewport(double top, double left, double bottom, double right) {
+        if (top < bottom) {
+            throw new IllegalArgumentException("top [" + top + "] of the viewport must not be lower than its bottom [" + bottom + "]");
+        }
+        this.top = top;
+        this.left = left;
+        this.bottom = bottom;
+        this.right = right;
+    }
+
+    public GeoViewport(StreamInput in) throws IOException {
+        this(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeDouble(top);
+        out.writeDouble(left);
+        out.writeDouble(bottom);
+        out.writeDouble(right);
+    }
+
+    /**
+     * The viewport of a web mercator tile, given as `zoom/x/y`.
+     */
+    public static GeoViewport fromTile(String tile) {
+        String[] parts = tile.split("/");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Invalid tile [" + tile + "], expected [zoom/x/y]");
+        }
+        final int zoom;
+        final int x;
+        final int y;
+        try {
+            zoom = Integer.parseInt(parts[0]);
+            x = Integer.parseInt(parts[1]);
+            y = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid tile [" + tile + "], expected [zoom/x/y]", e);
+        }
+        if (zoom < 0 || zoom > MAX_TILE_ZOOM) {
+            throw new IllegalArgumentException("Invalid tile [" + tile + "], zoom must be in range [0, " + MAX_TILE_ZOOM + "]");
+        }
+        final int tiles = 1 << zoom;
+        if (x < 0 || x >= tiles || y < 0 || y >= tiles) {
+            throw new IllegalArgumentException("Invalid tile [" + tile + "], x and y must be in range [0, " + (tiles - 1) + "]");
+        }
+        return new GeoViewport(tileLatitude(y, tiles), tileLongitude(x, tiles), tileLatitude(y + 1, tiles), tileLongitude(x + 1, tiles));
+    }
+
+    private static double tileLongitude(int x, int tiles) {
+        return (double) x / tiles * 360 - 180;
+    }
+
+    private static double tileLatitude(int y, int tiles) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2d * y / tiles))));
+    }
+
+    public double top() {
+        return top;
+    }
+
+    public double left() {
+        return left;
+    }
+
+    public double bottom() {
+        return bottom;
+    }
+
+    public double right() {
+        return right;
+    }
+
+    public boolean crossesDateline() {
+        return left > right;
+    }
+
+    /**
+     * Whether the given bounding box intersects the viewport. An empty box (NaN or inverted bounds) never does.
+     */
+    public boolean intersects(double minX, double minY, double maxX, double maxY) {
+        if ((minY <= top && maxY >= bottom) == false) {
+            return false;
+        }
+        if (crossesDateline()) {
+            return minX <= maxX && (maxX >= left || minX <= right);
+        }
+        return minX <= right && maxX >= left;
+    }
+
+    /**
+     * Clip the given geometry to the buffered viewport. The margin is never smaller than the given simplification
+     * tolerance. Geometries which can't be clipped, such as invalid polygons, are returned as is.
+     */
+    public Geometry clip(Geometry geometry, double tolerance) {
+        final double buffer = buffer(tolerance);
+        final double clipTop = Math.min(top + buffer, 90);
+        final double clipBottom = Math.max(bottom - buffer, -90);
+        final GeometryFactory factory = geometry.getFactory();
+
+        final Geometry clip;
+        if (crossesDateline()) {
+            clip = factory.createMultiPolygon(
+                new Polygon[] {
+                    rectangle(factory, left - buffer, clipBottom, 180, clipTop),
+                    rectangle(factory, -180, clipBottom, right + buffer, clipTop) }
+            );
+        } else {
+            Envelope envelope = new Envelope(Math.max(left - buffer, -180), Math.min(right + buffer, 180), clipBottom, clipTop);
+            if (envelope.covers(geometry.getEnvelopeInternal())) {
+                return geometry;
+            }
+            clip = factory.toGeometry(envelope);
+        }
+        return intersection(geometry, clip);
+    }
+
+    /**
+     * Whether the given bounding box lies within the buffered viewport, so that {@link #clip} leaves the shape as is.
+     * Never true when the viewport crosses the dateline, as the shape is then always clipped.
+     */
+    public boolean clipCovers(double minX, double minY, double maxX, double maxY, double tolerance) {
+        if (crossesDateline()) {
+            return false;
+        }
+        final double buffer = buffer(tolerance);
+        return minX >= Math.max(left - buffer, -180)
+            && maxX <= Math.min(right + buffer, 180)
+            && minY >= Math.max(bottom - buffer, -90)
+            && maxY <= Math.min(top + buffer, 90);
+    }
+
+    private double buffer(double tolerance) {
+        final double width = crossesDateline() ? right + 360 - left : right - left;
+        return Math.max(tolerance, Math.max(width, top - bottom) * BUFFER_RATIO);
+    }
+
+    private static Polygon rectangle(GeometryFactory factory, double minX, double minY, double maxX, double maxY) {
+        return (Polygon) factory.toGeometry(new Envelope(minX, maxX, minY, maxY));
+    }
+
+    private static Geometry intersection(Geometry geometry, Geometry clip) {
+        // The overlay doesn't support heterogeneous collections: clip their components one by one
+        if (geometry.getClass() == GeometryCollection.class) {
+            List<Geometry> components = new ArrayList<>(geometry.getNumGeometries());
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                Geometry component = intersection(geometry.getGeometryN(i), clip);
+                if (component.isEmpty() == false) {
+                    components.add(component);
+                }
+            }
+            return geometry.getFactory().buildGeometry(components);
+        }
+        try {
+            return geometry.intersection(clip);
+        } catch (TopologyException e) {
+            return geometry;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GeoViewport other = (GeoViewport) o;
+        return Double.compare(top, other.top) == 0
+            && Double.compare(left, other.left) == 0
+            && Double.compare(bottom, other.bottom) == 0
+            && Double.compare(right, other.right) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(top, left, bottom, right);
+    }
+
+    @Override
+    public String toString() {
+        return "[top=" + top + ", left=" + left + ", bottom=" + bottom + ", right=" + right + "]";
+    }
+}
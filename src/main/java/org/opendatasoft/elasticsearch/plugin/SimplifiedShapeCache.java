@@ -0,0 +1,183 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.CheckedSupplier;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBWriter;
+import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A node level LRU cache of simplified shapes, shared by the geoshape aggregation and the geo_simplify script: dashboards
+ * keep simplifying the same shapes at the same zoom levels.
+ *
+ * Entries are keyed by the shape digest, the tolerance, the algorithm and the viewport the shape is clipped to, and hold
+ * the simplified WKB. The memory they take is bounded by the `geoshape.simplify.cache.size` node setting (0 disables the
+ * cache).
+ */
+public class SimplifiedShapeCache {
+    public static final Setting<ByteSizeValue> SIZE_SETTING = Setting.memorySizeSetting(
+        "geoshape.simplify.cache.size",
+        "1%",
+        Setting.Property.NodeScope
+    );
+
+    public static final SimplifiedShapeCache DISABLED = new SimplifiedShapeCache(0);
+
+    private static final long ENTRY_OVERHEAD_BYTES = RamUsageEstimator.shallowSizeOfInstance(Key.class) + RamUsageEstimator
+        .shallowSizeOfInstance(SimplifiedShape.class) + RamUsageEstimator.shallowSizeOfInstance(BytesRef.class)
+        + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER;
+
+    /**
+     * The viewport is null when the shape isn't clipped.
+     */
+    public record Key(long shapeHash, double tolerance, GeoUtils.SimplifyAlgorithm algorithm, GeoViewport viewport) {
+        public Key(long shapeHash, double tolerance, GeoUtils.SimplifyAlgorithm algorithm) {
+            this(shapeHash, tolerance, algorithm, null);
+        }
+    }
+
+    /**
+     * A simplified shape. When the shape is too small for the tolerance, it collapses into the point of its first
+     * coordinate. When the shape lies outside of the viewport it is clipped to, its WKB is empty.
+     */
+    public record SimplifiedShape(BytesRef wkb, String type, String realType, double length, boolean collapsed) {
+        public boolean isEmpty() {
+            return wkb.length == 0;
+        }
+    }
+
+    private final Cache<Key, SimplifiedShape> cache;
+
+    public SimplifiedShapeCache(long maxSizeInBytes) {
+        if (maxSizeInBytes > 0) {
+            cache = CacheBuilder.<Key, SimplifiedShape>builder()
+                .setMaximumWeight(maxSizeInBytes)
+                .weigher((key, shape) -> ENTRY_OVERHEAD_BYTES + shape.wkb().length)
+                .build();
+        } else {
+            cache = null;
+        }
+    }
+
+    /**
+     * Return the cached simplified shape, or compute it with the given loader and cache it.
+     */
+    public SimplifiedShape computeIfAbsent(Key key, CheckedSupplier<SimplifiedShape, ParseException> loader) throws ParseException {
+        if (cache == null) {
+            return loader.get();
+        }
+        try {
+            return cache.computeIfAbsent(key, k -> loader.get());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ParseException parseException) {
+                throw parseException;
+            }
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new ElasticsearchException("failed to simplify shape", e.getCause());
+        }
+    }
+
+    public static SimplifiedShape simplify(
+        Geometry geometry,
+        double tolerance,
+        GeoUtils.SimplifyAlgorithm algorithm,
+        GeometryFactory geometryFactory,
+        WKBWriter wkbWriter
+    ) {
+        return simplify(geometry, tolerance, algorithm, null, geometryFactory, wkbWriter);
+    }
+
+    /**
+     * Clip the given geometry to the viewport, if any, then simplify it. A tolerance of 0 only clips the geometry.
+     */
+    public static SimplifiedShape simplify(
+        Geometry geometry,
+        double tolerance,
+        GeoUtils.SimplifyAlgorithm algorithm,
+        GeoViewport viewport,
+        GeometryFactory geometryFactory,
+        WKBWriter wkbWriter
+    ) {
+        Geometry shape = geometry;
+        if (viewport != null) {
+            shape = viewport.clip(geometry, tolerance);
+            if (shape.isEmpty()) {
+                return new SimplifiedShape(new BytesRef(), null, geometry.getGeometryType(), 0, false);
+            }
+        }
+        Geometry simplified = shape;
+        if (tolerance > 0) {
+            simplified = switch (algorithm) {
+                case TOPOLOGY_PRESERVING -> TopologyPreservingSimplifier.simplify(shape, tolerance);
+                default -> DouglasPeuckerSimplifier.simplify(shape, tolerance);
+            };
+        }
+        boolean collapsed = simplified.isEmpty();
+        if (collapsed) {
+            simplified = geometryFactory.createPoint(shape.getCoordinate());
+        }
+        return new SimplifiedShape(
+            new BytesRef(wkbWriter.write(simplified)),
+            simplified.getGeometryType(),
+            geometry.getGeometryType(),
+            simplified.getLength(),
+            collapsed
+        );
+    }
+
+    /**
+     * Cull a shape smaller than the tolerance (about a pixel at the zoom) from its scan, without decoding it: Douglas-Peucker
+     * drops every ring which bounding box diagonal is within the tolerance, so such a polygon or multipolygon collapses
+     * into the point of its first coordinate, as {@link #simplify} would return it. With a viewport, the shape must lie
+     * within the clipped area, so that the clip leaves it as is. Null when the shape has to be decoded.
+     */
+    public static SimplifiedShape cull(
+        WkbScanner scanner,
+        double tolerance,
+        GeoUtils.SimplifyAlgorithm algorithm,
+        GeoViewport viewport,
+        GeometryFactory geometryFactory,
+        WKBWriter wkbWriter
+    ) {
+        final String realType = scanner.getGeometryType();
+        if (tolerance <= 0
+            || algorithm != GeoUtils.SimplifyAlgorithm.DOUGLAS_PEUCKER
+            || (Geometry.TYPENAME_POLYGON.equals(realType) || Geometry.TYPENAME_MULTIPOLYGON.equals(realType)) == false
+            || scanner.getVertexCount() == 0
+            || Math.hypot(scanner.getMaxX() - scanner.getMinX(), scanner.getMaxY() - scanner.getMinY()) > tolerance) {
+            return null;
+        }
+        if (viewport != null
+            && viewport.clipCovers(scanner.getMinX(), scanner.getMinY(), scanner.getMaxX(), scanner.getMaxY(), tolerance) == false) {
+            return null;
+        }
+        final Geometry point = geometryFactory.createPoint(new Coordinate(scanner.getFirstX(), scanner.getFirstY()));
+        return new SimplifiedShape(new BytesRef(wkbWriter.write(point)), point.getGeometryType(), realType, 0, true);
+    }
+
+    public long count() {
+        return cache == null ? 0 : cache.count();
+    }
+
+    public long sizeInBytes() {
+        return cache == null ? 0 : cache.weight();
+    }
+
+    public Cache.CacheStats stats() {
+        return cache == null ? new Cache.CacheStats(0, 0, 0) : cache.stats();
+    }
+}
@@ -0,0 +1,346 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Write shapes as the features of a single layer Mapbox Vector Tile (version 2 of the specification).
+ * https://github.com/mapbox/vector-tile-spec/tree/master/2.1
+ *
+ * Coordinates are projected in web mercator, relative to the given viewport (usually the bounds of the tile), then
+ * rounded to the integer grid of the tile extent. The parts of a shape which collapse once rounded are dropped, and a
+ * geometry collection becomes one feature per kind of geometry it holds.
+ */
+public final class VectorTileWriter {
+    public static final int EXTENT = 4096;
+
+    // Protobuf wire types
+    private static final int VARINT = 0;
+    private static final int LENGTH_DELIMITED = 2;
+
+    // Geometry types and commands of the specification
+    private static final int POINT = 1;
+    private static final int LINESTRING = 2;
+    private static final int POLYGON = 3;
+    private static final int MOVE_TO = 1;
+    private static final int LINE_TO = 2;
+    private static final int CLOSE_PATH = 7;
+
+    // Latitudes beyond which web mercator is undefined
+    private static final double MAX_LATITUDE = 85.0511287798066;
+
+    private final String layerName;
+    private final double left;
+    private final double top;
+    private final double scaleX;
+    private final double scaleY;
+    private final boolean crossesDateline;
+
+    private final Map<String, Integer> keys = new LinkedHashMap<>();
+    private final Map<Object, Integer> values = new LinkedHashMap<>();
+    private final List<byte[]> features = new ArrayList<>();
+
+    // Cursor of the geometry being encoded: commands are relative to the previous point
+    private final List<Integer> commands = new ArrayList<>();
+    private int cursorX;
+    private int cursorY;
+
+    public VectorTileWriter(String layerName, GeoViewport viewport) {
+        this.layerName = layerName;
+        this.crossesDateline = viewport.crossesDateline();
+        this.left = viewport.left();
+        this.top = mercatorY(viewport.top());
+        final double right = crossesDateline ? viewport.right() + 360 : viewport.right();
+        this.scaleX = EXTENT / (right - left);
+        this.scaleY = EXTENT / (top - mercatorY(viewport.bottom()));
+    }
+
+    /**
+     * Add the given geometry to the layer, with the given id and properties. Property values are strings or numbers.
+     */
+    public void addFeature(long id, Geometry geometry, Map<String, Object> properties) {
+        final int[] tags = tags(properties);
+        if (geometry.getClass() == GeometryCollection.class) {
+            // A feature holds a single kind of geometry
+            for (int type = POINT; type <= POLYGON; type++) {
+                addFeature(id, geometry, type, tags);
+            }
+        } else {
+            addFeature(id, geometry, typeOf(geometry), tags);
+        }
+    }
+
+    private void addFeature(long id, Geometry geometry, int type, int[] tags) {
+        commands.clear();
+        cursorX = 0;
+        cursorY = 0;
+        encode(geometry, type);
+        if (commands.isEmpty()) {
+            return;
+        }
+
+        final ByteArrayOutputStream feature = new ByteArrayOutputStream();
+        writeTag(feature, 1, VARINT);
+        writeVarint(feature, id);
+        writePacked(feature, 2, tags);
+        writeTag(feature, 3, VARINT);
+        writeVarint(feature, type);
+        final int[] geometryCommands = new int[commands.size()];
+        for (int i = 0; i < geometryCommands.length; i++) {
+            geometryCommands[i] = commands.get(i);
+        }
+        writePacked(feature, 4, geometryCommands);
+        features.add(feature.toByteArray());
+    }
+
+    /**
+     * The encoded tile, empty if no feature was added.
+     */
+    public byte[] toByteArray() {
+        final ByteArrayOutputStream tile = new ByteArrayOutputStream();
+        if (features.isEmpty()) {
+            return tile.toByteArray();
+        }
+
+        final ByteArrayOutputStream layer = new ByteArrayOutputStream();
+        writeTag(layer, 15, VARINT);
+        writeVarint(layer, 2);
+        writeString(layer, 1, layerName);
+        for (byte[] feature : features) {
+            writeBytes(layer, 2, feature);
+        }
+        for (String key : keys.keySet()) {
+            writeString(layer, 3, key);
+        }
+        for (Object value : values.keySet()) {
+            final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            if (value instanceof String string) {
+                writeString(encoded, 1, string);
+            } else if (value instanceof Double || value instanceof Float) {
+                writeTag(encoded, 3, 1);
+                long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+                for (int i = 0; i < Long.BYTES; i++) {
+                    encoded.write((int) (bits >>> (8 * i)));
+                }
+            } else {
+                writeTag(encoded, 6, VARINT);
+                long number = ((Number) value).longValue();
+                writeVarint(encoded, (number << 1) ^ (number >> 63));
+            }
+            writeBytes(layer, 4, encoded.toByteArray());
+        }
+        writeTag(layer, 5, VARINT);
+        writeVarint(layer, EXTENT);
+
+        writeBytes(tile, 3, layer.toByteArray());
+        return tile.toByteArray();
+    }
+
+    private int[] tags(Map<String, Object> properties) {
+        final int[] tags = new int[properties.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            tags[i++] = keys.computeIfAbsent(property.getKey(), k -> keys.size());
+            Object value = property.getValue();
+            if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                value = ((Number) value).longValue();
+            }
+            tags[i++] = values.computeIfAbsent(value, v -> values.size());
+        }
+        return tags;
+    }
+
+    private static int typeOf(Geometry geometry) {
+        return switch (geometry.getDimension()) {
+            case 0 -> POINT;
+            case 1 -> LINESTRING;
+            default -> POLYGON;
+        };
+    }
+
+    /**
+     * Encode the parts of the geometry of the given type.
+     */
+    private void encode(Geometry geometry, int type) {
+        if (type == POINT) {
+            final List<int[]> points = new ArrayList<>();
+            collectPoints(geometry, points, new HashSet<>());
+            if (points.isEmpty() == false) {
+                // All the points, as a single MoveTo command
+                commands.add(command(MOVE_TO, points.size()));
+                for (int[] point : points) {
+                    addPoint(point);
+                }
+            }
+        } else if (geometry instanceof GeometryCollection) {
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                encode(geometry.getGeometryN(i), type);
+            }
+        } else if (geometry.isEmpty() == false) {
+            if (type == LINESTRING && geometry instanceof LineString line) {
+                encodeLine(line.getCoordinates());
+            } else if (type == POLYGON && geometry instanceof Polygon polygon) {
+                encodePolygon(polygon);
+            }
+        }
+    }
+
+    private void collectPoints(Geometry geometry, List<int[]> points, Set<Long> seen) {
+        if (geometry instanceof GeometryCollection) {
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                collectPoints(geometry.getGeometryN(i), points, seen);
+            }
+        } else if (geometry instanceof Point point && point.isEmpty() == false) {
+            final int[] xy = project(point.getCoordinate());
+            if (seen.add(((long) xy[0] << 32) | (xy[1] & 0xffffffffL))) {
+                points.add(xy);
+            }
+        }
+    }
+
+    private void encodePolygon(Polygon polygon) {
+        // The exterior ring turns clockwise on screen (y down), the holes the other way round
+        if (encodeRing(polygon.getExteriorRing().getCoordinates(), true) == false) {
+            return;
+        }
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            encodeRing(polygon.getInteriorRingN(i).getCoordinates(), false);
+        }
+    }
+
+    private boolean encodeRing(Coordinate[] coordinates, boolean exterior) {
+        List<int[]> points = projectDistinct(coordinates);
+        if (points.isEmpty()) {
+            return false;
+        }
+        // The closing point is implied by ClosePath
+        final int[] first = points.get(0);
+        final int[] last = points.get(points.size() - 1);
+        if (points.size() > 1 && first[0] == last[0] && first[1] == last[1]) {
+            points.remove(points.size() - 1);
+        }
+        if (points.size() < 3) {
+            return false;
+        }
+        long area = 0;
+        for (int i = 0; i < points.size(); i++) {
+            int[] a = points.get(i);
+            int[] b = points.get((i + 1) % points.size());
+            area += (long) a[0] * b[1] - (long) b[0] * a[1];
+        }
+        if (area == 0) {
+            return false;
+        }
+        if ((area > 0) != exterior) {
+            Collections.reverse(points);
+        }
+        commands.add(command(MOVE_TO, 1));
+        addPoint(points.get(0));
+        commands.add(command(LINE_TO, points.size() - 1));
+        for (int i = 1; i < points.size(); i++) {
+            addPoint(points.get(i));
+        }
+        commands.add(command(CLOSE_PATH, 1));
+        return true;
+    }
+
+    private void encodeLine(Coordinate[] coordinates) {
+        List<int[]> points = projectDistinct(coordinates);
+        if (points.size() < 2) {
+            return;
+        }
+        commands.add(command(MOVE_TO, 1));
+        addPoint(points.get(0));
+        commands.add(command(LINE_TO, points.size() - 1));
+        for (int i = 1; i < points.size(); i++) {
+            addPoint(points.get(i));
+        }
+    }
+
+    private List<int[]> projectDistinct(Coordinate[] coordinates) {
+        List<int[]> points = new ArrayList<>(coordinates.length);
+        int[] previous = null;
+        for (Coordinate coordinate : coordinates) {
+            int[] point = project(coordinate);
+            if (previous == null || previous[0] != point[0] || previous[1] != point[1]) {
+                points.add(point);
+                previous = point;
+            }
+        }
+        return points;
+    }
+
+    private int[] project(Coordinate coordinate) {
+        double lon = coordinate.x;
+        if (crossesDateline && lon < left) {
+            lon += 360;
+        }
+        final double x = (lon - left) * scaleX;
+        final double y = (top - mercatorY(coordinate.y)) * scaleY;
+        return new int[] { (int) Math.round(x), (int) Math.round(y) };
+    }
+
+    private static double mercatorY(double latitude) {
+        final double lat = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+        return Math.toDegrees(Math.log(Math.tan(Math.PI / 4 + lat / 2)));
+    }
+
+    private void addPoint(int[] point) {
+        commands.add(zigzag(point[0] - cursorX));
+        commands.add(zigzag(point[1] - cursorY));
+        cursorX = point[0];
+        cursorY = point[1];
+    }
+
+    private static int command(int id, int count) {
+        return (id & 0x7) | (count << 3);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+        writeVarint(out, ((long) field << 3) | wireType);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, int field, byte[] bytes) {
+        writeTag(out, field, LENGTH_DELIMITED);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, int field, String value) {
+        writeBytes(out, field, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writePacked(ByteArrayOutputStream out, int field, int[] values) {
+        final ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        for (int value : values) {
+            writeVarint(packed, value & 0xffffffffL);
+        }
+        writeBytes(out, field, packed.toByteArray());
+    }
+}
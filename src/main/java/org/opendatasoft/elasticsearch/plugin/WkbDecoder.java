@@ -0,0 +1,131 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.apache.lucene.util.BytesRef;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateSequences;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequence;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequenceFactory;
+import org.locationtech.jts.io.ParseException;
+
+/**
+ * Decode a WKB slice into a JTS geometry, reading the bytes in place: unlike {@link org.locationtech.jts.io.WKBReader},
+ * the offset of the slice is honoured and the bytes don't need to be copied first.
+ * The coordinates of each linestring or ring are stored in a single packed array instead of one object per vertex.
+ *
+ * A decoder is not thread safe, but is meant to be reused from one shape to the other.
+ */
+public final class WkbDecoder {
+    private static final GeometryFactory PACKED_GEOMETRY_FACTORY = new GeometryFactory(PackedCoordinateSequenceFactory.DOUBLE_FACTORY);
+
+    private final WkbInput input = new WkbInput();
+    private final GeometryFactory factory;
+
+    public WkbDecoder() {
+        this.factory = PACKED_GEOMETRY_FACTORY;
+    }
+
+    public Geometry decode(BytesRef wkb) throws ParseException {
+        input.reset(wkb);
+        try {
+            return readGeometry();
+        } catch (IllegalArgumentException e) {
+            // JTS rejects invalid structures, such as linestrings of a single point
+            throw new ParseException("Invalid WKB geometry: " + e.getMessage());
+        }
+    }
+
+    private Geometry readGeometry() throws ParseException {
+        int type = input.readGeometryHeader();
+        switch (type) {
+            case WkbInput.POINT:
+                return readPoint();
+            case WkbInput.LINESTRING:
+                return factory.createLineString(readCoordinates());
+            case WkbInput.POLYGON:
+                return readPolygon();
+            case WkbInput.MULTIPOINT: {
+                Point[] points = new Point[input.readCount(5)];
+                for (int i = 0; i < points.length; i++) {
+                    points[i] = readComponent(Point.class, type);
+                }
+                return factory.createMultiPoint(points);
+            }
+            case WkbInput.MULTILINESTRING: {
+                LineString[] lines = new LineString[input.readCount(5)];
+                for (int i = 0; i < lines.length; i++) {
+                    lines[i] = readComponent(LineString.class, type);
+                }
+                return factory.createMultiLineString(lines);
+            }
+            case WkbInput.MULTIPOLYGON: {
+                Polygon[] polygons = new Polygon[input.readCount(5)];
+                for (int i = 0; i < polygons.length; i++) {
+                    polygons[i] = readComponent(Polygon.class, type);
+                }
+                return factory.createMultiPolygon(polygons);
+            }
+            default: {
+                Geometry[] geometries = new Geometry[input.readCount(5)];
+                for (int i = 0; i < geometries.length; i++) {
+                    geometries[i] = readGeometry();
+                }
+                return factory.createGeometryCollection(geometries);
+            }
+        }
+    }
+
+    private <T extends Geometry> T readComponent(Class<T> componentClass, int collectionType) throws ParseException {
+        Geometry component = readGeometry();
+        if (componentClass.isInstance(component) == false) {
+            throw new ParseException("Invalid component [" + component.getGeometryType() + "] in " + WkbScanner.typeName(collectionType));
+        }
+        return componentClass.cast(component);
+    }
+
+    private Point readPoint() throws ParseException {
+        CoordinateSequence coordinates = readCoordinates(1);
+        // An empty point is encoded with NaN coordinates
+        if (Double.isNaN(coordinates.getX(0)) && Double.isNaN(coordinates.getY(0))) {
+            return factory.createPoint();
+        }
+        return factory.createPoint(coordinates);
+    }
+
+    private Polygon readPolygon() throws ParseException {
+        int rings = input.readCount(Integer.BYTES);
+        if (rings == 0) {
+            return factory.createPolygon();
+        }
+        LinearRing shell = readLinearRing();
+        LinearRing[] holes = new LinearRing[rings - 1];
+        for (int i = 0; i < holes.length; i++) {
+            holes[i] = readLinearRing();
+        }
+        return factory.createPolygon(shell, holes);
+    }
+
+    /**
+     * Read a ring, closed and padded to 4 points if need be, as the JTS reader does when it is not strict.
+     */
+    private LinearRing readLinearRing() throws ParseException {
+        return factory.createLinearRing(CoordinateSequences.ensureValidRing(factory.getCoordinateSequenceFactory(), readCoordinates()));
+    }
+
+    private CoordinateSequence readCoordinates() throws ParseException {
+        return readCoordinates(input.readPointCount());
+    }
+
+    private CoordinateSequence readCoordinates(int points) throws ParseException {
+        double[] ordinates = new double[points * input.dimension()];
+        for (int i = 0; i < ordinates.length; i++) {
+            ordinates[i] = input.readDouble();
+        }
+        return new PackedCoordinateSequence.Double(ordinates, input.dimension(), input.measures());
+    }
+}
@@ -0,0 +1,145 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.apache.lucene.util.BytesRef;
+import org.locationtech.jts.io.ParseException;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * A cursor over a WKB slice, reading it in place (no copy of the bytes).
+ * http://en.wikipedia.org/wiki/Well-known_text#Well-known_binary
+ *
+ * Both ISO (type + 1000 * dimensions) and extended (flags in the high bits of the type) WKB flavours are understood.
+ */
+final class WkbInput {
+    static final int POINT = 1;
+    static final int LINESTRING = 2;
+    static final int POLYGON = 3;
+    static final int MULTIPOINT = 4;
+    static final int MULTILINESTRING = 5;
+    static final int MULTIPOLYGON = 6;
+    static final int GEOMETRYCOLLECTION = 7;
+
+    private static final int EWKB_Z_FLAG = 0x80000000;
+    private static final int EWKB_M_FLAG = 0x40000000;
+    private static final int EWKB_SRID_FLAG = 0x20000000;
+
+    private static final VarHandle INT_BIG_ENDIAN = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT_LITTLE_ENDIAN = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle DOUBLE_BIG_ENDIAN = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle DOUBLE_LITTLE_ENDIAN = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private byte[] bytes;
+    private int position;
+    private int end;
+    private boolean littleEndian;
+    // Number of ordinates (and among them, of measures) of each coordinate of the geometry which header was read last
+    private int dimension;
+    private int measures;
+
+    void reset(BytesRef wkb) {
+        this.bytes = wkb.bytes;
+        this.position = wkb.offset;
+        this.end = wkb.offset + wkb.length;
+        this.littleEndian = false;
+        this.dimension = 2;
+        this.measures = 0;
+    }
+
+    boolean hasRemaining() {
+        return position < end;
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    int measures() {
+        return measures;
+    }
+
+    /**
+     * Read the byte order and the type of the next geometry, and return its base type (from {@link #POINT} to
+     * {@link #GEOMETRYCOLLECTION}).
+     */
+    int readGeometryHeader() throws ParseException {
+        ensureRemaining(5);
+        byte byteOrder = bytes[position++];
+        if (byteOrder == 0) {
+            littleEndian = false;
+        } else if (byteOrder == 1) {
+            littleEndian = true;
+        } else {
+            throw new ParseException("Unknown WKB byte order [" + byteOrder + "]");
+        }
+
+        int typeInt = readInt();
+        int code = typeInt & 0x1fffffff;
+        int isoDimensions = code / 1000;
+        boolean hasZ = (typeInt & EWKB_Z_FLAG) != 0 || isoDimensions == 1 || isoDimensions == 3;
+        boolean hasM = (typeInt & EWKB_M_FLAG) != 0 || isoDimensions == 2 || isoDimensions == 3;
+        dimension = 2 + (hasZ ? 1 : 0) + (hasM ? 1 : 0);
+        measures = hasM ? 1 : 0;
+        if ((typeInt & EWKB_SRID_FLAG) != 0) {
+            readInt();
+        }
+
+        int type = code % 1000;
+        if (type < POINT || type > GEOMETRYCOLLECTION) {
+            throw new ParseException("Unknown WKB geometry type [" + typeInt + "]");
+        }
+        return type;
+    }
+
+    int readInt() throws ParseException {
+        ensureRemaining(Integer.BYTES);
+        int value = littleEndian ? (int) INT_LITTLE_ENDIAN.get(bytes, position) : (int) INT_BIG_ENDIAN.get(bytes, position);
+        position += Integer.BYTES;
+        return value;
+    }
+
+    double readDouble() throws ParseException {
+        ensureRemaining(Double.BYTES);
+        double value = littleEndian
+            ? (double) DOUBLE_LITTLE_ENDIAN.get(bytes, position)
+            : (double) DOUBLE_BIG_ENDIAN.get(bytes, position);
+        position += Double.BYTES;
+        return value;
+    }
+
+    /**
+     * Read a number of points, rings or sub-geometries, each of them taking at least minBytesPerElement bytes. Checking it
+     * against the remaining bytes prevents huge allocations on corrupted input.
+     */
+    int readCount(int minBytesPerElement) throws ParseException {
+        int count = readInt();
+        if (count < 0 || (long) count * minBytesPerElement > end - position) {
+            throw new ParseException("Invalid WKB element count [" + count + "]");
+        }
+        return count;
+    }
+
+    /**
+     * Read the number of points of a linestring or a ring.
+     */
+    int readPointCount() throws ParseException {
+        return readCount(dimension * Double.BYTES);
+    }
+
+    /**
+     * Skip the ordinates of the current coordinate that follow x and y (z and/or m).
+     */
+    void skipExtraOrdinates() throws ParseException {
+        int extra = (dimension - 2) * Double.BYTES;
+        ensureRemaining(extra);
+        position += extra;
+    }
+
+    private void ensureRemaining(int length) throws ParseException {
+        if (end - position < length) {
+            throw new ParseException("Unexpected end of WKB");
+        }
+    }
+}
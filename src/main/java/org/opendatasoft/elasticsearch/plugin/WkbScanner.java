@@ -0,0 +1,176 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.apache.lucene.util.BytesRef;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+
+/**
+ * Walk a WKB shape, without building any JTS object, to compute the few figures needed to rank or cull a shape: its
+ * type, its length (perimeter for polygons, as {@link Geometry#getLength()} computes it), its number of vertices and its
+ * bounding box.
+ *
+ * A scanner is not thread safe, but is meant to be reused from one shape to the other.
+ */
+public final class WkbScanner {
+    private final WkbInput input = new WkbInput();
+
+    private int geometryType;
+    private double length;
+    private long vertexCount;
+    private double minX;
+    private double minY;
+    private double maxX;
+    private double maxY;
+    private double firstX;
+    private double firstY;
+
+    /**
+     * Scan the given WKB slice. The figures of the shape are then available through the getters, until the next call.
+     */
+    public void scan(BytesRef wkb) throws ParseException {
+        input.reset(wkb);
+        geometryType = 0;
+        vertexCount = 0;
+        minX = Double.POSITIVE_INFINITY;
+        minY = Double.POSITIVE_INFINITY;
+        maxX = Double.NEGATIVE_INFINITY;
+        maxY = Double.NEGATIVE_INFINITY;
+        firstX = Double.NaN;
+        firstY = Double.NaN;
+        length = scanGeometry();
+    }
+
+    /**
+     * The geometry type, named like {@link Geometry#getGeometryType()} does.
+     */
+    public String getGeometryType() {
+        return typeName(geometryType);
+    }
+
+    public double getLength() {
+        return length;
+    }
+
+    public long getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * The bounds of the shape. For an empty shape, the minimums are greater than the maximums.
+     */
+    public double getMinX() {
+        return minX;
+    }
+
+    public double getMinY() {
+        return minY;
+    }
+
+    public double getMaxX() {
+        return maxX;
+    }
+
+    public double getMaxY() {
+        return maxY;
+    }
+
+    /**
+     * The first coordinate of the shape, as {@link Geometry#getCoordinate()} returns it. NaN for an empty shape.
+     */
+    public double getFirstX() {
+        return firstX;
+    }
+
+    public double getFirstY() {
+        return firstY;
+    }
+
+    static String typeName(int wkbType) {
+        return switch (wkbType) {
+            case WkbInput.POINT -> Geometry.TYPENAME_POINT;
+            case WkbInput.LINESTRING -> Geometry.TYPENAME_LINESTRING;
+            case WkbInput.POLYGON -> Geometry.TYPENAME_POLYGON;
+            case WkbInput.MULTIPOINT -> Geometry.TYPENAME_MULTIPOINT;
+            case WkbInput.MULTILINESTRING -> Geometry.TYPENAME_MULTILINESTRING;
+            case WkbInput.MULTIPOLYGON -> Geometry.TYPENAME_MULTIPOLYGON;
+            case WkbInput.GEOMETRYCOLLECTION -> Geometry.TYPENAME_GEOMETRYCOLLECTION;
+            default -> throw new IllegalArgumentException("Unknown WKB geometry type [" + wkbType + "]");
+        };
+    }
+
+    // Lengths are summed per component, the same way JTS does, so that the result is exactly the JTS one
+    private double scanGeometry() throws ParseException {
+        int type = input.readGeometryHeader();
+        if (geometryType == 0) {
+            geometryType = type;
+        }
+
+        switch (type) {
+            case WkbInput.POINT:
+                scanPoint();
+                return 0;
+            case WkbInput.LINESTRING:
+                return scanLine();
+            case WkbInput.POLYGON: {
+                int rings = input.readCount(Integer.BYTES);
+                double sum = 0;
+                for (int i = 0; i < rings; i++) {
+                    sum += scanLine();
+                }
+                return sum;
+            }
+            default: {
+                int geometries = input.readCount(5);
+                double sum = 0;
+                for (int i = 0; i < geometries; i++) {
+                    sum += scanGeometry();
+                }
+                return sum;
+            }
+        }
+    }
+
+    private void scanPoint() throws ParseException {
+        double x = input.readDouble();
+        double y = input.readDouble();
+        input.skipExtraOrdinates();
+        // An empty point is encoded with NaN coordinates
+        if (Double.isNaN(x) == false || Double.isNaN(y) == false) {
+            vertexCount++;
+            expand(x, y);
+        }
+    }
+
+    private double scanLine() throws ParseException {
+        int points = input.readPointCount();
+        double lineLength = 0;
+        double previousX = 0;
+        double previousY = 0;
+        for (int i = 0; i < points; i++) {
+            double x = input.readDouble();
+            double y = input.readDouble();
+            input.skipExtraOrdinates();
+            if (i > 0) {
+                double dx = x - previousX;
+                double dy = y - previousY;
+                lineLength += Math.sqrt(dx * dx + dy * dy);
+            }
+            previousX = x;
+            previousY = y;
+            expand(x, y);
+        }
+        vertexCount += points;
+        return lineLength;
+    }
+
+    private void expand(double x, double y) {
+        if (minX > maxX) {
+            firstX = x;
+            firstY = y;
+        }
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        maxX = Math.max(maxX, x);
+        maxY = Math.max(maxY, y);
+    }
+}
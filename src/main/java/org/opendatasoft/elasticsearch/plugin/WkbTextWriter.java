@@ -0,0 +1,355 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.locationtech.jts.io.OrdinateFormat;
+import org.locationtech.jts.io.ParseException;
+
+import java.io.IOException;
+import java.util.HexFormat;
+
+/**
+ * Write WKB shapes as GeoJSON or WKT, walking the WKB bytes: no geometry is decoded. The text is the same as the one of
+ * the JTS GeoJsonWriter and WKTWriter, with the given number of decimals (8 for GeoJSON and 16 for WKT by default).
+ *
+ * GeoJSON can also be written as an object straight into an XContentBuilder, without any intermediate string.
+ * Not thread safe: the text buffer is reused from one shape to the other.
+ */
+public final class WkbTextWriter {
+    public static final int DEFAULT_GEOJSON_DECIMALS = 8;
+    public static final int DEFAULT_WKT_DECIMALS = 16;
+    public static final int MAX_DECIMALS = 20;
+
+    private static final String[] GEOJSON_TYPES = {
+        null,
+        "Point",
+        "LineString",
+        "Polygon",
+        "MultiPoint",
+        "MultiLineString",
+        "MultiPolygon",
+        "GeometryCollection" };
+    private static final String[] WKT_TYPES = {
+        null,
+        "POINT",
+        "LINESTRING",
+        "POLYGON",
+        "MULTIPOINT",
+        "MULTILINESTRING",
+        "MULTIPOLYGON",
+        "GEOMETRYCOLLECTION" };
+    private static final String GEOJSON_CRS = ",\"crs\":{\"type\":\"name\",\"properties\":{\"name\":\"EPSG:0\"}}";
+
+    private final GeoUtils.OutputFormat outputFormat;
+    private final double scale;
+    private final OrdinateFormat ordinateFormat;
+    private final WkbInput input = new WkbInput();
+    private final WkbScanner scanner = new WkbScanner();
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * A negative number of decimals is the default of the output format.
+     */
+    public WkbTextWriter(GeoUtils.OutputFormat outputFormat, int decimals) {
+        if (decimals > MAX_DECIMALS) {
+            throw new IllegalArgumentException("[decimals] must be at most " + MAX_DECIMALS + ", got [" + decimals + "]");
+        }
+        this.outputFormat = outputFormat;
+        if (decimals < 0) {
+            decimals = outputFormat == GeoUtils.OutputFormat.WKT ? DEFAULT_WKT_DECIMALS : DEFAULT_GEOJSON_DECIMALS;
+        }
+        this.scale = Math.pow(10, decimals);
+        this.ordinateFormat = OrdinateFormat.create(decimals);
+    }
+
+    /**
+     * The shape in the output format of this writer, as a string.
+     */
+    public String write(BytesRef wkb) throws ParseException {
+        switch (outputFormat) {
+            case WKB:
+                return HexFormat.of().withUpperCase().formatHex(wkb.bytes, wkb.offset, wkb.offset + wkb.length);
+            case WKT:
+                text.setLength(0);
+                input.reset(wkb);
+                writeWkt();
+                return text.toString();
+            case GEOJSON:
+                text.setLength(0);
+                input.reset(wkb);
+                writeGeoJson(true);
+                return text.toString();
+            default:
+                throw new IllegalArgumentException("output format [" + outputFormat + "] can't be used for a single shape");
+        }
+    }
+
+    /**
+     * Check that the whole shape can be read, before writing it where a failure would leave it half written.
+     */
+    public void checkShape(BytesRef wkb) throws ParseException {
+        scanner.scan(wkb);
+    }
+
+    /**
+     * Write the shape as a GeoJSON geometry object, without the crs member.
+     */
+    public void writeGeoJsonObject(XContentBuilder builder, BytesRef wkb) throws ParseException, IOException {
+        input.reset(wkb);
+        writeGeoJsonObject(builder);
+    }
+
+    private void writeGeoJson(boolean top) throws ParseException {
+        final int type = input.readGeometryHeader();
+        text.append("{\"type\":\"").append(GEOJSON_TYPES[type]).append("\",");
+        if (type == WkbInput.GEOMETRYCOLLECTION) {
+            text.append("\"geometries\":[");
+            final int geometries = input.readCount(5);
+            for (int i = 0; i < geometries; i++) {
+                if (i > 0) {
+                    text.append(',');
+                }
+                writeGeoJson(false);
+            }
+            text.append(']');
+        } else {
+            text.append("\"coordinates\":");
+            writeGeoJsonCoordinates(type);
+        }
+        if (top) {
+            text.append(GEOJSON_CRS);
+        }
+        text.append('}');
+    }
+
+    private void writeGeoJsonCoordinates(int type) throws ParseException {
+        switch (type) {
+            case WkbInput.POINT -> writeGeoJsonSequence(1);
+            case WkbInput.LINESTRING -> writeGeoJsonSequence(input.readPointCount());
+            case WkbInput.POLYGON -> {
+                final int rings = input.readCount(Integer.BYTES);
+                text.append('[');
+                for (int i = 0; i < rings; i++) {
+                    if (i > 0) {
+                        text.append(',');
+                    }
+                    writeGeoJsonSequence(input.readPointCount());
+                }
+                text.append(']');
+            }
+            default -> {
+                final int geometries = input.readCount(5);
+                text.append('[');
+                for (int i = 0; i < geometries; i++) {
+                    if (i > 0) {
+                        text.append(',');
+                    }
+                    writeGeoJsonCoordinates(input.readGeometryHeader());
+                }
+                text.append(']');
+            }
+        }
+    }
+
+    /**
+     * Like the JTS GeoJsonWriter, a sequence of a single coordinate (a point) is not wrapped in an array.
+     */
+    private void writeGeoJsonSequence(int points) throws ParseException {
+        final boolean hasZ = input.dimension() - input.measures() > 2;
+        if (points != 1) {
+            text.append('[');
+        }
+        for (int i = 0; i < points; i++) {
+            if (i > 0) {
+                text.append(',');
+            }
+            final double x = input.readDouble();
+            final double y = input.readDouble();
+            final double z = hasZ ? input.readDouble() : Double.NaN;
+            if (input.measures() > 0) {
+                input.readDouble();
+            }
+            if (points == 1 && Double.isNaN(x) && Double.isNaN(y)) {
+                // An empty point
+                text.append("[]");
+                continue;
+            }
+            text.append('[').append(formatGeoJsonOrdinate(x)).append(',').append(formatGeoJsonOrdinate(y));
+            if (Double.isNaN(z) == false) {
+                text.append(',').append(formatGeoJsonOrdinate(z));
+            }
+            text.append(']');
+        }
+        if (points != 1) {
+            text.append(']');
+        }
+    }
+
+    /**
+     * Same as the JTS GeoJsonWriter: rounded when not too small nor too large, and without decimals for integers.
+     */
+    private String formatGeoJsonOrdinate(double value) {
+        if (Math.abs(value) >= 1e-3 && value < 1e7) {
+            value = roundGeoJsonOrdinate(value);
+            long integer = (long) value;
+            if (integer == value) {
+                return Long.toString(integer);
+            }
+        }
+        return Double.toString(value);
+    }
+
+    private double roundGeoJsonOrdinate(double value) {
+        if (Math.abs(value) >= 1e-3 && value < 1e7) {
+            return Math.floor(value * scale + 0.5) / scale;
+        }
+        return value;
+    }
+
+    private void writeGeoJsonObject(XContentBuilder builder) throws ParseException, IOException {
+        final int type = input.readGeometryHeader();
+        builder.startObject();
+        builder.field("type", GEOJSON_TYPES[type]);
+        if (type == WkbInput.GEOMETRYCOLLECTION) {
+            builder.startArray("geometries");
+            final int geometries = input.readCount(5);
+            for (int i = 0; i < geometries; i++) {
+                writeGeoJsonObject(builder);
+            }
+            builder.endArray();
+        } else {
+            builder.field("coordinates");
+            writeGeoJsonObjectCoordinates(builder, type);
+        }
+        builder.endObject();
+    }
+
+    private void writeGeoJsonObjectCoordinates(XContentBuilder builder, int type) throws ParseException, IOException {
+        switch (type) {
+            case WkbInput.POINT -> writeGeoJsonObjectCoordinate(builder);
+            case WkbInput.LINESTRING -> writeGeoJsonObjectSequence(builder, input.readPointCount());
+            case WkbInput.POLYGON -> {
+                final int rings = input.readCount(Integer.BYTES);
+                builder.startArray();
+                for (int i = 0; i < rings; i++) {
+                    writeGeoJsonObjectSequence(builder, input.readPointCount());
+                }
+                builder.endArray();
+            }
+            default -> {
+                final int geometries = input.readCount(5);
+                builder.startArray();
+                for (int i = 0; i < geometries; i++) {
+                    writeGeoJsonObjectCoordinates(builder, input.readGeometryHeader());
+                }
+                builder.endArray();
+            }
+        }
+    }
+
+    private void writeGeoJsonObjectSequence(XContentBuilder builder, int points) throws ParseException, IOException {
+        builder.startArray();
+        for (int i = 0; i < points; i++) {
+            writeGeoJsonObjectCoordinate(builder);
+        }
+        builder.endArray();
+    }
+
+    private void writeGeoJsonObjectCoordinate(XContentBuilder builder) throws ParseException, IOException {
+        final boolean hasZ = input.dimension() - input.measures() > 2;
+        final double x = input.readDouble();
+        final double y = input.readDouble();
+        final double z = hasZ ? input.readDouble() : Double.NaN;
+        if (input.measures() > 0) {
+            input.readDouble();
+        }
+        builder.startArray();
+        if (Double.isNaN(x) == false || Double.isNaN(y) == false) {
+            builder.value(roundGeoJsonOrdinate(x)).value(roundGeoJsonOrdinate(y));
+            if (Double.isNaN(z) == false) {
+                builder.value(roundGeoJsonOrdinate(z));
+            }
+        }
+        builder.endArray();
+    }
+
+    private void writeWkt() throws ParseException {
+        final int type = input.readGeometryHeader();
+        text.append(WKT_TYPES[type]).append(' ');
+        writeWktBody(type);
+    }
+
+    private void writeWktBody(int type) throws ParseException {
+        switch (type) {
+            case WkbInput.POINT -> {
+                final double x = input.readDouble();
+                final double y = input.readDouble();
+                input.skipExtraOrdinates();
+                if (Double.isNaN(x) && Double.isNaN(y)) {
+                    text.append("EMPTY");
+                } else {
+                    text.append('(');
+                    appendWktCoordinate(x, y);
+                    text.append(')');
+                }
+            }
+            case WkbInput.LINESTRING -> writeWktSequence(input.readPointCount());
+            case WkbInput.POLYGON -> {
+                final int rings = input.readCount(Integer.BYTES);
+                if (rings == 0) {
+                    text.append("EMPTY");
+                    return;
+                }
+                text.append('(');
+                for (int i = 0; i < rings; i++) {
+                    if (i > 0) {
+                        text.append(", ");
+                    }
+                    writeWktSequence(input.readPointCount());
+                }
+                text.append(')');
+            }
+            default -> {
+                final int geometries = input.readCount(5);
+                if (geometries == 0) {
+                    text.append("EMPTY");
+                    return;
+                }
+                text.append('(');
+                for (int i = 0; i < geometries; i++) {
+                    if (i > 0) {
+                        text.append(", ");
+                    }
+                    if (type == WkbInput.GEOMETRYCOLLECTION) {
+                        writeWkt();
+                    } else {
+                        writeWktBody(input.readGeometryHeader());
+                    }
+                }
+                text.append(')');
+            }
+        }
+    }
+
+    private void writeWktSequence(int points) throws ParseException {
+        if (points == 0) {
+            text.append("EMPTY");
+            return;
+        }
+        text.append('(');
+        for (int i = 0; i < points; i++) {
+            if (i > 0) {
+                text.append(", ");
+            }
+            final double x = input.readDouble();
+            final double y = input.readDouble();
+            input.skipExtraOrdinates();
+            appendWktCoordinate(x, y);
+        }
+        text.append(')');
+    }
+
+    private void appendWktCoordinate(double x, double y) {
+        text.append(ordinateFormat.format(x)).append(' ').append(ordinateFormat.format(y));
+    }
+}
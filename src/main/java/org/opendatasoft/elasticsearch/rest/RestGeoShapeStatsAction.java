@@ -0,0 +1,60 @@
+package org.opendatasoft.elasticsearch.rest;
+
+import org.elasticsearch.client.internal.node.NodeClient;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.opendatasoft.elasticsearch.plugin.GeoShapeServices;
+import org.opendatasoft.elasticsearch.plugin.SimplifiedShapeCache;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * Report the statistics of the simplified shapes cache of the node handling the request. Each node has its own cache:
+ * the path states that only the local one is reported, as for the `_local` node filter of the nodes APIs.
+ */
+public class RestGeoShapeStatsAction extends BaseRestHandler {
+    private final GeoShapeServices services;
+
+    public RestGeoShapeStatsAction(GeoShapeServices services) {
+        this.services = services;
+    }
+
+    @Override
+    public String getName() {
+        return "geoshape_stats_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return Collections.singletonList(new Route(GET, "/_geoshape/_local/stats"));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+        return channel -> {
+            SimplifiedShapeCache cache = services.simplifiedShapeCache();
+            Cache.CacheStats stats = cache.stats();
+
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("node", client.getLocalNodeId());
+            builder.startObject("simplify_cache");
+            builder.field("count", cache.count());
+            builder.humanReadableField("size_in_bytes", "size", ByteSizeValue.ofBytes(cache.sizeInBytes()));
+            builder.field("hits", stats.getHits());
+            builder.field("misses", stats.getMisses());
+            builder.field("evictions", stats.getEvictions());
+            builder.endObject();
+            builder.endObject();
+            channel.sendResponse(new RestResponse(RestStatus.OK, builder));
+        };
+    }
+}
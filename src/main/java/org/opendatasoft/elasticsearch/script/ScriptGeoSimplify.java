@@ -2,6 +2,7 @@ package org.opendatasoft.elasticsearch.script;
 
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.core.TimeValue;
 import org.elasticsearch.index.fielddata.ScriptDocValues;
 import org.elasticsearch.script.FieldScript;
 import org.elasticsearch.script.ScriptContext;
@@ -11,11 +12,13 @@ import org.elasticsearch.search.lookup.SearchLookup;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.io.ParseException;
-import org.locationtech.jts.io.WKBReader;
-import org.locationtech.jts.io.geojson.GeoJsonWriter;
-import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
-import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+import org.locationtech.jts.io.WKBWriter;
+import org.opendatasoft.elasticsearch.plugin.GeoShapeServices;
 import org.opendatasoft.elasticsearch.plugin.GeoUtils;
+import org.opendatasoft.elasticsearch.plugin.SimplifiedShapeCache;
+import org.opendatasoft.elasticsearch.plugin.WkbDecoder;
+import org.opendatasoft.elasticsearch.plugin.WkbScanner;
+import org.opendatasoft.elasticsearch.plugin.WkbTextWriter;
 
 import java.util.Collections;
 import java.util.HashMap;
@@ -26,6 +29,12 @@ import java.util.Set;
 public class ScriptGeoSimplify implements ScriptEngine {
     public static final ScriptContext<GeoSearchLeafFactory> CONTEXT = new ScriptContext<>("geo_simplify", GeoSearchLeafFactory.class);
 
+    private final GeoShapeServices services;
+
+    public ScriptGeoSimplify(GeoShapeServices services) {
+        this.services = services;
+    }
+
     @Override
     public String getType() {
         return "geo_extension_scripts";
@@ -37,7 +46,7 @@ public class ScriptGeoSimplify implements ScriptEngine {
             throw new IllegalArgumentException(getType() + " scripts cannot be used for context [" + context.name + "]");
         }
         if ("geo_simplify".equals(scriptName)) {
-            FieldScript.Factory factory = GeoSearchLeafFactory::new;
+            FieldScript.Factory factory = (p, lookup) -> new GeoSearchLeafFactory(p, lookup, services);
             return context.factoryClazz.cast(factory);
         }
         throw new IllegalArgumentException("Unknown script name " + scriptSource);
@@ -60,23 +69,15 @@ public class ScriptGeoSimplify implements ScriptEngine {
         private final int zoom;
         GeoUtils.OutputFormat output_format;
         GeoUtils.SimplifyAlgorithm algorithm;
-        // private final int geojson_decimals;
-        GeoJsonWriter geoJsonWriter;
-
-        private Geometry getSimplifiedShape(Geometry geometry) {
-            double lat = geometry.getCentroid().getCoordinate().y;
-            double meterByPixel = GeoUtils.getMeterByPixel(zoom, lat);
-
-            // double tolerance = 360 / (256 * Math.pow(zoom, 3));
-            double tolerance = GeoUtils.getDecimalDegreeFromMeter(meterByPixel, lat);
-            if (algorithm == GeoUtils.SimplifyAlgorithm.TOPOLOGY_PRESERVING) return TopologyPreservingSimplifier.simplify(
-                geometry,
-                tolerance
-            );
-            else return DouglasPeuckerSimplifier.simplify(geometry, tolerance);
-        }
+        // Number of decimals of the coordinates, negative for the default of the output format
+        private final int decimals;
+        private final double tolerance;
+        // Past this time spent on the shard (in nanos, negative for no limit), the shapes get the cheaper algorithm
+        private final long timeoutNanos;
+        private final long start;
+        private final GeoShapeServices services;
 
-        private GeoSearchLeafFactory(Map<String, Object> params, SearchLookup lookup) {
+        private GeoSearchLeafFactory(Map<String, Object> params, SearchLookup lookup, GeoShapeServices services) {
 
             if (params.isEmpty()) {
                 throw new IllegalArgumentException("[params] field is mandatory");
@@ -92,6 +93,9 @@ public class ScriptGeoSimplify implements ScriptEngine {
             this.lookup = lookup;
             field = params.get("field").toString();
             zoom = (int) params.get("zoom");
+            // Same tolerance as the geoshape aggregation, so that both share the simplified shapes cache
+            tolerance = GeoUtils.getToleranceFromZoom(zoom);
+            this.services = services;
 
             output_format = GeoUtils.OutputFormat.GEOJSON;
             if (params.containsKey("output_format")) {
@@ -100,6 +104,9 @@ public class ScriptGeoSimplify implements ScriptEngine {
                     string_output_format.toUpperCase(Locale.getDefault())
                 );
             }
+            if (output_format == GeoUtils.OutputFormat.MVT) {
+                throw new IllegalArgumentException("output format [mvt] is only supported by the geoshape aggregation");
+            }
 
             algorithm = GeoUtils.SimplifyAlgorithm.DOUGLAS_PEUCKER;
             if (params.containsKey("algorithm")) {
@@ -109,13 +116,33 @@ public class ScriptGeoSimplify implements ScriptEngine {
                 );
             }
 
-            // geojson_decimals = 20;
-            geoJsonWriter = new GeoJsonWriter();
+            decimals = params.containsKey("decimals") ? ((Number) params.get("decimals")).intValue() : -1;
+            if (params.containsKey("decimals") && (decimals < 0 || decimals > WkbTextWriter.MAX_DECIMALS)) {
+                throw new IllegalArgumentException("[decimals] must be between 0 and " + WkbTextWriter.MAX_DECIMALS);
+            }
+
+            timeoutNanos = params.containsKey("timeout")
+                ? TimeValue.parseTimeValue(params.get("timeout").toString(), "timeout").nanos()
+                : -1;
+            start = System.nanoTime();
+        }
+
+        private GeoUtils.SimplifyAlgorithm shapeAlgorithm() {
+            if (timeoutNanos >= 0 && System.nanoTime() - start > timeoutNanos) {
+                return GeoUtils.SimplifyAlgorithm.DOUGLAS_PEUCKER;
+            }
+            return algorithm;
         }
 
         @Override
         public FieldScript newInstance(LeafReaderContext context) {
             return new FieldScript(params, lookup, context) {
+                private final WkbDecoder wkbDecoder = new WkbDecoder();
+                private final WKBWriter wkbWriter = new WKBWriter();
+                private final GeometryFactory geometryFactory = new GeometryFactory();
+                private final WkbTextWriter textWriter = new WkbTextWriter(output_format, decimals);
+                private final WkbScanner wkbScanner = new WkbScanner();
+
                 @Override
                 public Object execute() {
                     Map<String, String> resMap = new HashMap<>();
@@ -128,21 +155,20 @@ public class ScriptGeoSimplify implements ScriptEngine {
                         return resMap;
                     }
 
-                    GeometryFactory geometryFactory = new GeometryFactory();
                     try {
-                        Geometry geom = new WKBReader().read(wkb.bytes);
-                        String realType = geom.getGeometryType();
-                        Geometry simplifiedGeom = getSimplifiedShape(geom);
-                        if (!simplifiedGeom.isEmpty()) {
-                            resMap.put("shape", GeoUtils.exportGeoTo(simplifiedGeom, output_format, geoJsonWriter));
-                            resMap.put("type", simplifiedGeom.getGeometryType());
-                            resMap.put("real_type", realType);
-                        } else {
-                            // If the simplified polygon is empty because it was too small, return a point
-                            resMap.put(
-                                "shape",
-                                GeoUtils.exportGeoTo(geometryFactory.createPoint(geom.getCoordinate()), output_format, geoJsonWriter)
+                        final BytesRef shape = wkb;
+                        final GeoUtils.SimplifyAlgorithm shapeAlgorithm = shapeAlgorithm();
+                        SimplifiedShapeCache.SimplifiedShape simplified = services.simplifiedShapeCache()
+                            .computeIfAbsent(
+                                new SimplifiedShapeCache.Key(GeoUtils.getHashFromWKB(shape), tolerance, shapeAlgorithm),
+                                () -> simplify(shape, shapeAlgorithm)
                             );
+                        resMap.put("shape", textWriter.write(simplified.wkb()));
+                        if (!simplified.collapsed()) {
+                            resMap.put("type", simplified.type());
+                            resMap.put("real_type", simplified.realType());
+                        } else {
+                            // If the simplified polygon is empty because it was too small, it was replaced by a point
                             resMap.put("type", "SimplificationPoint");
                         }
                     } catch (ParseException e) {
@@ -158,6 +184,32 @@ public class ScriptGeoSimplify implements ScriptEngine {
                     return resMap;
                 }
 
+                /**
+                 * Decode and simplify the shape, charging the geoshape breaker while the decoded geometry is alive. A shape
+                 * smaller than a pixel at the zoom is collapsed from a scan of its WKB, without being decoded.
+                 */
+                private SimplifiedShapeCache.SimplifiedShape simplify(BytesRef shape, GeoUtils.SimplifyAlgorithm shapeAlgorithm)
+                    throws ParseException {
+                    wkbScanner.scan(shape);
+                    SimplifiedShapeCache.SimplifiedShape culled = SimplifiedShapeCache.cull(
+                        wkbScanner,
+                        tolerance,
+                        shapeAlgorithm,
+                        null,
+                        geometryFactory,
+                        wkbWriter
+                    );
+                    if (culled != null) {
+                        return culled;
+                    }
+                    final long reserved = services.reserveDecodedBytes(shape.length, "geo_simplify script");
+                    try {
+                        Geometry geometry = wkbDecoder.decode(shape);
+                        return SimplifiedShapeCache.simplify(geometry, tolerance, shapeAlgorithm, geometryFactory, wkbWriter);
+                    } finally {
+                        services.release(reserved);
+                    }
+                }
             };
         }
 
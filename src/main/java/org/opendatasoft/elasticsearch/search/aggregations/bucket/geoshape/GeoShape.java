@@ -15,6 +15,15 @@ public interface GeoShape extends MultiBucketsAggregation {
         TOPOLOGY_PRESERVING
     }
 
+    /**
+     * How the shapes are collected: MAP keeps every distinct shape of the shard until the end, BOUNDED only keeps the
+     * top shard_size shapes while collecting.
+     */
+    enum ExecutionHint {
+        MAP,
+        BOUNDED
+    }
+
     @Override
     List<? extends Bucket> getBuckets();
 
@@ -1,53 +1,149 @@
 package org.opendatasoft.elasticsearch.search.aggregations.bucket.geoshape;
 
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.PriorityQueue;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.io.stream.Writeable;
-import org.elasticsearch.common.util.BytesRefHash;
+import org.elasticsearch.common.util.DoubleArray;
 import org.elasticsearch.common.util.LongArray;
+import org.elasticsearch.common.util.LongHash;
 import org.elasticsearch.common.util.ObjectArray;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.core.Releasables;
+import org.elasticsearch.index.fielddata.AbstractSortedNumericDocValues;
+import org.elasticsearch.common.geo.GeoPoint;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexGeoPointFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.MultiGeoPointValues;
 import org.elasticsearch.index.fielddata.SortedBinaryDocValues;
 import org.elasticsearch.search.aggregations.AggregationExecutionContext;
 import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.Aggregator.SubAggCollectionMode;
 import org.elasticsearch.search.aggregations.AggregatorFactories;
 import org.elasticsearch.search.aggregations.CardinalityUpperBound;
 import org.elasticsearch.search.aggregations.InternalAggregation;
 import org.elasticsearch.search.aggregations.LeafBucketCollector;
 import org.elasticsearch.search.aggregations.LeafBucketCollectorBase;
-import org.elasticsearch.search.aggregations.bucket.BucketsAggregator;
+import org.elasticsearch.search.aggregations.bucket.DeferableBucketAggregator;
+import org.elasticsearch.search.aggregations.bucket.terms.BytesKeyedBucketOrds;
+import org.elasticsearch.search.aggregations.bucket.terms.LongKeyedBucketOrds;
 import org.elasticsearch.search.aggregations.support.AggregationContext;
 import org.elasticsearch.search.aggregations.support.ValuesSource;
+import org.elasticsearch.tasks.TaskCancelledException;
 import org.elasticsearch.xcontent.ToXContentFragment;
 import org.elasticsearch.xcontent.XContentBuilder;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.io.ParseException;
-import org.locationtech.jts.io.WKBReader;
 import org.locationtech.jts.io.WKBWriter;
-import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
-import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+import org.opendatasoft.elasticsearch.plugin.GeoShapeServices;
 import org.opendatasoft.elasticsearch.plugin.GeoUtils;
+import org.opendatasoft.elasticsearch.plugin.GeoViewport;
+import org.opendatasoft.elasticsearch.plugin.SimplifiedShapeCache;
+import org.opendatasoft.elasticsearch.plugin.WkbDecoder;
+import org.opendatasoft.elasticsearch.plugin.WkbScanner;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+public class GeoShapeAggregator extends DeferableBucketAggregator {
+    // The cancellation of the search is checked every 1024 shapes when ranking them
+    private static final int CANCELLATION_CHECK_MASK = 1023;
 
-public class GeoShapeAggregator extends BucketsAggregator {
     private final ValuesSource valuesSource;
-    private final BytesRefHash bucketOrds;
+    // Shapes are keyed either on their full WKB or, when a digest field is available, on the digest only. Both are
+    // keyed on the owning bucket too, so that each bucket of a parent aggregation gets its own shapes
+    private final BytesKeyedBucketOrds bucketOrds;
+    private final LongKeyedBucketOrds hashOrds;
+    private final IndexFieldData<?> hashFieldData;
+    private final boolean digestKeys;
+    // With the bounded execution hint, the top shard_size shapes of each owning bucket replace the ords above
+    private ObjectArray<TopShapes> topShapes;
+    private long nextTopShapeOrd;
+    // For digest keys: the (shard level) doc id each shape was first seen in, and the perimeter used to rank it (map only)
+    private LongArray bucketDocs;
+    private DoubleArray bucketPerimeters;
+    // Shapes outside of the viewport are not collected, the others are clipped to it
+    private final GeoViewport viewport;
+    private final IndexGeoPointFieldData bboxFieldData;
+    private final ShapeBudget budget;
+    // Whether the shapes are returned, or only their digest
+    private final boolean geometry;
+    // The only digests to bucket (sorted), or null
+    private final long[] digests;
+    // The partition of the digests to bucket, out of numPartitions (0 when not partitioned)
+    private final int partition;
+    private final int numPartitions;
+    // With the digest order, the shapes are ranked on their digest, and only the ones after this digest are bucketed
+    private final boolean orderByDigest;
+    private final Long after;
+    // Whether the shapes are filtered on their digest, by any of the above
+    private final boolean filterDigests;
+    // The WKB geometry types to bucket (1 << type), read from the header of the shapes when they are collected
+    private final int geometryTypes;
+    private final boolean filterTypes;
+    // For digest keys, the digests of the shapes of the other types, so that their WKB is only read once
+    private LongHash rejectedDigests;
+    // Mask of the ShapeMetrics computed for each returned bucket, 0 for none
+    private final int metrics;
+    // The wire format of the request, which the results are sent back in
+    private final byte wireFormat;
+    // Whether the shapes are simplified on the coordinating node, after the reduce
+    private final boolean deferSimplification;
+    // Number of decimals of the coordinates of the keys, and whether GeoJSON keys are objects
+    private final int decimals;
+    private final boolean keyAsObject;
+    // With breadth_first, the sub-aggregations only collect the docs of the shapes kept in the top shard_size
+    private final SubAggCollectionMode collectMode;
+    private final IndexSearcher searcher;
+    private final GeoShapeServices services;
     private final BucketCountThresholds bucketCountThresholds;
     private GeoUtils.OutputFormat output_format;
     private boolean must_simplify;
     private int zoom;
     private GeoShape.Algorithm algorithm;
+    private final GeoUtils.SimplifyAlgorithm simplifyAlgorithm;
+    // Past this time spent simplifying (in nanos, negative for no limit), the shapes are degraded to cheaper ones
+    private final long simplifyTimeoutNanos;
+    private long simplifyStart;
+    // Set once the simplify timeout has degraded a shape, by any of the threads simplifying them
+    private volatile boolean simplifyTimedOut;
+    private final double zoomTolerance;
+    // Debug info for the profile API. The shapes are decoded and simplified on the simplify thread pool too
+    private long collectedWkbBytes;
+    private long rankNanos;
+    // The results, only scanned for the figures of the returned shapes if the profile asks for them
+    private InternalGeoShape[] builtResults;
+    private final LongAdder decodedShapes = new LongAdder();
+    private final LongAdder culledShapes = new LongAdder();
+    private final LongAdder decodedVertices = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+    private final LongAdder simplifyNanos = new LongAdder();
 
-    private WKBReader wkbReader;
+    private final WkbDecoder wkbDecoder;
+    private final WKBWriter wkbWriter;
+    private final WkbScanner wkbScanner;
     private final GeometryFactory geometryFactory;
 
     public GeoShapeAggregator(
@@ -55,28 +151,81 @@ public class GeoShapeAggregator extends BucketsAggregator {
         AggregatorFactories factories,
         AggregationContext context,
         ValuesSource valuesSource,
-        GeoUtils.OutputFormat output_format,
-        boolean must_simplify,
-        int zoom,
-        GeoShape.Algorithm algorithm,
+        GeoShapeOptions options,
+        IndexFieldData<?> hashFieldData,
+        IndexGeoPointFieldData bboxFieldData,
         BucketCountThresholds bucketCountThresholds,
+        GeoShapeServices services,
         Aggregator parent,
         CardinalityUpperBound cardinalityUpperBound,
         Map<String, Object> metaData
     ) throws IOException {
-        super(name, factories, context, parent, cardinalityUpperBound, metaData);
+        super(name, factories, context, parent, metaData);
         this.valuesSource = valuesSource;
-        this.output_format = output_format;
-        this.must_simplify = must_simplify;
-        this.zoom = zoom;
-        this.algorithm = algorithm;
-        bucketOrds = new BytesRefHash(1, context.bigArrays());
+        this.output_format = options.outputFormat();
+        this.must_simplify = options.mustSimplify();
+        this.zoom = options.zoom();
+        this.algorithm = options.algorithm();
+        this.simplifyAlgorithm = GeoUtils.SimplifyAlgorithm.valueOf(options.algorithm().name());
+        this.simplifyTimeoutNanos = options.simplifyTimeout() == null ? -1 : options.simplifyTimeout().nanos();
+        this.zoomTolerance = GeoUtils.getToleranceFromZoom(options.zoom());
+        this.hashFieldData = hashFieldData;
+        this.digestKeys = hashFieldData != null;
+        if (options.executionHint() == GeoShape.ExecutionHint.BOUNDED) {
+            bucketOrds = null;
+            hashOrds = null;
+            topShapes = context.bigArrays().newObjectArray(1);
+            if (digestKeys) {
+                bucketDocs = context.bigArrays().newLongArray(1, false);
+            }
+        } else if (hashFieldData == null) {
+            bucketOrds = BytesKeyedBucketOrds.build(context.bigArrays(), cardinalityUpperBound);
+            hashOrds = null;
+        } else {
+            bucketOrds = null;
+            hashOrds = LongKeyedBucketOrds.build(context.bigArrays(), cardinalityUpperBound);
+            bucketDocs = context.bigArrays().newLongArray(1, false);
+            bucketPerimeters = context.bigArrays().newDoubleArray(1, false);
+        }
+        this.viewport = options.viewport();
+        this.bboxFieldData = bboxFieldData;
+        this.budget = options.budget();
+        this.geometry = options.geometry();
+        this.digests = options.digests();
+        this.partition = options.partition();
+        this.numPartitions = options.numPartitions();
+        this.orderByDigest = options.orderByDigest();
+        this.after = options.after();
+        this.filterDigests = options.filterDigests();
+        this.geometryTypes = options.geometryTypes();
+        this.filterTypes = options.geometryTypes() != GeoUtils.ALL_WKB_TYPES;
+        this.metrics = options.metrics();
+        this.wireFormat = options.wireFormat();
+        if (filterTypes && digestKeys) {
+            rejectedDigests = new LongHash(1, context.bigArrays());
+        }
+        this.deferSimplification = options.deferSimplification();
+        this.decimals = options.decimals();
+        this.keyAsObject = options.keyAsObject();
+        this.collectMode = options.collectMode();
         this.bucketCountThresholds = bucketCountThresholds;
+        this.services = services;
+        this.searcher = context.searcher();
 
-        this.wkbReader = new WKBReader();
+        this.wkbDecoder = new WkbDecoder();
+        this.wkbWriter = new WKBWriter();
+        this.wkbScanner = new WkbScanner();
         this.geometryFactory = new GeometryFactory();
     }
 
+    /**
+     * With breadth_first, the docs are replayed to the sub-aggregations once the top shapes are known.
+     */
+    @Override
+    protected boolean shouldDefer(Aggregator aggregator) {
+        return collectMode == SubAggCollectionMode.BREADTH_FIRST;
+    }
+
     /**
      * The collector collects the docs, including or not some score (depending of the including of a Scorer) in the
      * collect() process.
@@ -88,7 +237,32 @@ public class GeoShapeAggregator extends BucketsAggregator {
         if (valuesSource == null) {
             return LeafBucketCollector.NO_OP_COLLECTOR;
         }
-        final SortedBinaryDocValues values = valuesSource.bytesValues(aggCtx.getLeafReaderContext());
+        final LeafBucketCollector collector;
+        if (topShapes != null) {
+            collector = digestKeys
+                ? getTopDigestLeafCollector(aggCtx.getLeafReaderContext(), sub)
+                : getTopWkbLeafCollector(aggCtx.getLeafReaderContext(), sub);
+        } else {
+            collector = digestKeys
+                ? getDigestLeafCollector(aggCtx.getLeafReaderContext(), sub)
+                : getWkbLeafCollector(aggCtx.getLeafReaderContext(), sub);
+        }
+        if (viewport == null) {
+            return collector;
+        }
+        final ViewportFilter filter = getViewportFilter(aggCtx.getLeafReaderContext());
+        return new LeafBucketCollectorBase(collector, null) {
+            @Override
+            public void collect(int doc, long owningBucketOrdinal) throws IOException {
+                if (filter.accept(doc)) {
+                    collector.collect(doc, owningBucketOrdinal);
+                }
+            }
+        };
+    }
+
+    private LeafBucketCollector getWkbLeafCollector(LeafReaderContext ctx, LeafBucketCollector sub) throws IOException {
+        final SortedBinaryDocValues values = valuesSource.bytesValues(ctx);
         return new LeafBucketCollectorBase(sub, values) {
             final BytesRefBuilder previous = new BytesRefBuilder();
 
@@ -98,7 +272,6 @@ public class GeoShapeAggregator extends BucketsAggregator {
              */
             @Override
             public void collect(int doc, long owningBucketOrdinal) throws IOException {
-                assert owningBucketOrdinal == 0;
                 if (values.advanceExact(doc)) {
                     final int valuesCount = values.docValueCount();
                     previous.clear();
@@ -108,97 +281,698 @@ public class GeoShapeAggregator extends BucketsAggregator {
                         if (previous.get().equals(bytesValue)) {
                             continue;
                         }
-                        long bucketOrdinal = bucketOrds.add(bytesValue);
+                        previous.copyBytes(bytesValue);
+                        if (filterTypes && isRequestedType(bytesValue) == false) {
+                            continue;
+                        }
+                        if (filterDigests && isRequested(GeoUtils.getHashFromWKB(bytesValue)) == false) {
+                            continue;
+                        }
+                        long bucketOrdinal = bucketOrds.add(owningBucketOrdinal, bytesValue);
+                        if (bucketOrdinal < 0) { // already seen
+                            bucketOrdinal = -1 - bucketOrdinal;
+                            collectExistingBucket(sub, doc, bucketOrdinal);
+                        } else {
+                            collectedWkbBytes += bytesValue.length;
+                            collectBucket(sub, doc, bucketOrdinal);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Collect the shapes on their digest: only 8 bytes are hashed and kept per distinct shape. The WKB is read once,
+     * when a shape is first seen, to compute the perimeter that ranks it.
+     */
+    private LeafBucketCollector getDigestLeafCollector(LeafReaderContext ctx, LeafBucketCollector sub) throws IOException {
+        final SortedBinaryDocValues values = valuesSource.bytesValues(ctx);
+        final SortedNumericDocValues hashes = getDigestValues(ctx, values);
+        return new LeafBucketCollectorBase(sub, hashes) {
+            @Override
+            public void collect(int doc, long owningBucketOrdinal) throws IOException {
+                if (hashes.advanceExact(doc)) {
+                    final int valuesCount = hashes.docValueCount();
+                    long previous = 0;
+
+                    for (int i = 0; i < valuesCount; ++i) {
+                        final long hash = hashes.nextValue();
+                        if (i > 0 && hash == previous) {
+                            continue;
+                        }
+                        previous = hash;
+                        if (filterDigests && isRequested(hash) == false) {
+                            continue;
+                        }
+                        if (filterTypes && hashOrds.find(owningBucketOrdinal, hash) < 0 && isRequestedType(values, doc, hash) == false) {
+                            continue;
+                        }
+                        long bucketOrdinal = hashOrds.add(owningBucketOrdinal, hash);
                         if (bucketOrdinal < 0) { // already seen
                             bucketOrdinal = -1 - bucketOrdinal;
                             collectExistingBucket(sub, doc, bucketOrdinal);
                         } else {
+                            bucketDocs = bigArrays().grow(bucketDocs, bucketOrdinal + 1);
+                            bucketDocs.set(bucketOrdinal, ctx.docBase + doc);
+                            bucketPerimeters = bigArrays().grow(bucketPerimeters, bucketOrdinal + 1);
+                            bucketPerimeters.set(bucketOrdinal, getPerimeter(findWkb(values, doc, hash)));
                             collectBucket(sub, doc, bucketOrdinal);
                         }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Collect the top shard_size shapes keyed on their WKB, with the bounded execution hint.
+     */
+    private LeafBucketCollector getTopWkbLeafCollector(LeafReaderContext ctx, LeafBucketCollector sub) throws IOException {
+        final SortedBinaryDocValues values = valuesSource.bytesValues(ctx);
+        return new LeafBucketCollectorBase(sub, values) {
+            final BytesRefBuilder previous = new BytesRefBuilder();
+            final TopShape candidate = new TopShape(-1);
+
+            @Override
+            public void collect(int doc, long owningBucketOrdinal) throws IOException {
+                if (values.advanceExact(doc)) {
+                    final int valuesCount = values.docValueCount();
+                    previous.clear();
+                    final TopShapes top = topShapes(owningBucketOrdinal);
+
+                    for (int i = 0; i < valuesCount; ++i) {
+                        final BytesRef bytesValue = values.nextValue();
+                        if (previous.get().equals(bytesValue)) {
+                            continue;
+                        }
                         previous.copyBytes(bytesValue);
+                        if (filterTypes && isRequestedType(bytesValue) == false) {
+                            continue;
+                        }
+                        final long digest = GeoUtils.getHashFromWKB(bytesValue);
+                        if (filterDigests && isRequested(digest) == false) {
+                            continue;
+                        }
+                        final TopShape shape = top.shapes.get(bytesValue);
+                        if (shape != null) {
+                            collectExistingBucket(sub, doc, shape.ord);
+                            continue;
+                        }
+                        try {
+                            wkbScanner.scan(bytesValue);
+                        } catch (ParseException e) {
+                            // Like with map, the shapes that can't be read are only counted in the other docs
+                            collectExistingBucket(sub, doc, top.otherOrd);
+                            continue;
+                        }
+                        candidate.wkb = bytesValue;
+                        candidate.digest = digest;
+                        candidate.perimeter = wkbScanner.getLength();
+                        final TopShape slot = top.slotFor(candidate);
+                        if (slot == null) {
+                            collectExistingBucket(sub, doc, top.otherOrd);
+                            continue;
+                        }
+                        slot.wkb = BytesRef.deepCopyOf(bytesValue);
+                        collectedWkbBytes += bytesValue.length;
+                        slot.digest = digest;
+                        slot.perimeter = candidate.perimeter;
+                        slot.realType = wkbScanner.getGeometryType();
+                        top.insert(slot, slot.wkb);
+                        collectBucket(sub, doc, slot.ord);
                     }
                 }
             }
         };
     }
 
+    /**
+     * Collect the top shard_size shapes keyed on their digest, with the bounded execution hint. Unlike with map, the
+     * WKB is read every time a shape which is not in the top is seen, to rank it.
+     */
+    private LeafBucketCollector getTopDigestLeafCollector(LeafReaderContext ctx, LeafBucketCollector sub) throws IOException {
+        final SortedBinaryDocValues values = valuesSource.bytesValues(ctx);
+        final SortedNumericDocValues hashes = getDigestValues(ctx, values);
+        return new LeafBucketCollectorBase(sub, hashes) {
+            final TopShape candidate = new TopShape(-1);
+
+            @Override
+            public void collect(int doc, long owningBucketOrdinal) throws IOException {
+                if (hashes.advanceExact(doc)) {
+                    final int valuesCount = hashes.docValueCount();
+                    long previous = 0;
+                    final TopShapes top = topShapes(owningBucketOrdinal);
+
+                    for (int i = 0; i < valuesCount; ++i) {
+                        final long hash = hashes.nextValue();
+                        if (i > 0 && hash == previous) {
+                            continue;
+                        }
+                        previous = hash;
+                        if (filterDigests && isRequested(hash) == false) {
+                            continue;
+                        }
+                        final TopShape shape = top.shapes.get(hash);
+                        if (shape != null) {
+                            collectExistingBucket(sub, doc, shape.ord);
+                            continue;
+                        }
+                        if (filterTypes && isRequestedType(values, doc, hash) == false) {
+                            continue;
+                        }
+                        candidate.digest = hash;
+                        candidate.perimeter = getPerimeter(findWkb(values, doc, hash));
+                        final TopShape slot = top.slotFor(candidate);
+                        if (slot == null) {
+                            collectExistingBucket(sub, doc, top.otherOrd);
+                            continue;
+                        }
+                        slot.digest = hash;
+                        slot.perimeter = candidate.perimeter;
+                        top.insert(slot, hash);
+                        bucketDocs = bigArrays().grow(bucketDocs, slot.ord + 1);
+                        bucketDocs.set(slot.ord, ctx.docBase + doc);
+                        collectBucket(sub, doc, slot.ord);
+                    }
+                }
+            }
+        };
+    }
+
+    private TopShapes topShapes(long owningBucketOrdinal) {
+        topShapes = bigArrays().grow(topShapes, owningBucketOrdinal + 1);
+        TopShapes top = topShapes.get(owningBucketOrdinal);
+        if (top == null) {
+            top = new TopShapes(bucketCountThresholds.getShardSize(), nextTopShapeOrd++);
+            // The other ord is collected into before any shape
+            grow(top.otherOrd + 1);
+            topShapes.set(owningBucketOrdinal, top);
+        }
+        return top;
+    }
+
+    /**
+     * A shape kept in the top of an owning bucket, with the bucket ordinal of its slot.
+     */
+    private static final class TopShape {
+        final long ord;
+        BytesRef wkb;
+        long digest;
+        double perimeter;
+        String realType;
+
+        TopShape(long ord) {
+            this.ord = ord;
+        }
+    }
+
+    /**
+     * The top shard_size shapes of an owning bucket, ranked on their perimeter, then their digest (or on their digest
+     * only with the digest order). The rank of a shape doesn't depend on its docs, and the last shape of the top only
+     * gets higher: a shape that doesn't make it into the top, or is evicted from it, never makes it back. So the shapes
+     * left at the end are the exact top shard_size for this order, with exact doc counts, whatever the number of
+     * distinct shapes. It is the order of map but for the shapes of equal perimeter, such as points, which map ranks
+     * on their doc count first. Each slot keeps its bucket ordinal, which doc count is moved to the other docs when its
+     * shape is evicted.
+     */
+    private final class TopShapes extends PriorityQueue<TopShape> {
+        private final int capacity;
+        private final long otherOrd;
+        private final Map<Object, TopShape> shapes = new HashMap<>();
+
+        TopShapes(int capacity, long otherOrd) {
+            super(capacity);
+            this.capacity = capacity;
+            this.otherOrd = otherOrd;
+        }
+
+        @Override
+        protected boolean lessThan(TopShape a, TopShape b) {
+            if (orderByDigest) {
+                return a.digest > b.digest;
+            }
+            if (a.perimeter != b.perimeter) {
+                return a.perimeter < b.perimeter;
+            }
+            return a.digest < b.digest;
+        }
+
+        /**
+         * The slot to keep the given shape in, or null if it doesn't make it into the top.
+         */
+        TopShape slotFor(TopShape candidate) {
+            if (size() < capacity) {
+                return new TopShape(nextTopShapeOrd++);
+            }
+            if (lessThan(candidate, top())) {
+                return null;
+            }
+            final TopShape evicted = pop();
+            shapes.remove(digestKeys ? evicted.digest : evicted.wkb);
+            final long docCount = bucketDocCount(evicted.ord);
+            incrementBucketDocCount(otherOrd, docCount);
+            incrementBucketDocCount(evicted.ord, -docCount);
+            evicted.wkb = null;
+            evicted.realType = null;
+            return evicted;
+        }
+
+        void insert(TopShape slot, Object key) {
+            add(slot);
+            shapes.put(key, slot);
+        }
+
+        /**
+         * The buckets of the top, by decreasing rank.
+         */
+        InternalGeoShape.InternalBucket[] drain() {
+            final InternalGeoShape.InternalBucket[] buckets = new InternalGeoShape.InternalBucket[size()];
+            for (int i = buckets.length - 1; i >= 0; --i) {
+                final TopShape shape = pop();
+                buckets[i] = new InternalGeoShape.InternalBucket(
+                    shape.wkb == null ? new BytesRef() : shape.wkb,
+                    shape.digest,
+                    shape.realType,
+                    shape.perimeter,
+                    bucketDocCount(shape.ord),
+                    null
+                );
+                buckets[i].bucketOrd = shape.ord;
+            }
+            shapes.clear();
+            return buckets;
+        }
+    }
+
+    /**
+     * Whether the shape of the given digest is one of the requested digests, in the requested partition, and after the
+     * requested digest.
+     */
+    private boolean isRequested(long digest) {
+        if (digests != null && Arrays.binarySearch(digests, digest) < 0) {
+            return false;
+        }
+        if (numPartitions > 0 && Math.floorMod(digest, numPartitions) != partition) {
+            return false;
+        }
+        return after == null || digest > after;
+    }
+
+    private boolean isRequestedType(BytesRef wkb) {
+        return (geometryTypes & (1 << GeoUtils.getWkbType(wkb))) != 0;
+    }
+
+    /**
+     * Whether the shape of the given digest, found in the doc, is of a requested type. The WKB of the shapes of the
+     * other types is only read the first time they are seen.
+     */
+    private boolean isRequestedType(SortedBinaryDocValues values, int doc, long hash) throws IOException {
+        if (rejectedDigests.find(hash) >= 0) {
+            return false;
+        }
+        final BytesRef wkb = findWkb(values, doc, hash);
+        if (wkb != null && isRequestedType(wkb)) {
+            return true;
+        }
+        rejectedDigests.add(hash);
+        return false;
+    }
+
+    @FunctionalInterface
+    private interface ViewportFilter {
+        boolean accept(int doc) throws IOException;
+    }
+
+    /**
+     * Accept the docs which shapes intersect the viewport. The bounding box indexed by the `geo_extension` processor is
+     * used when available, the shapes are scanned otherwise.
+     */
+    private ViewportFilter getViewportFilter(LeafReaderContext ctx) throws IOException {
+        final SortedBinaryDocValues values = valuesSource.bytesValues(ctx);
+        final ViewportFilter shapeFilter = doc -> {
+            if (values.advanceExact(doc) == false) {
+                return false;
+            }
+            final int valuesCount = values.docValueCount();
+            for (int i = 0; i < valuesCount; ++i) {
+                try {
+                    wkbScanner.scan(values.nextValue());
+                } catch (ParseException e) {
+                    continue;
+                }
+                if (viewport.intersects(wkbScanner.getMinX(), wkbScanner.getMinY(), wkbScanner.getMaxX(), wkbScanner.getMaxY())) {
+                    return true;
+                }
+            }
+            return false;
+        };
+        if (bboxFieldData == null) {
+            return shapeFilter;
+        }
+
+        final MultiGeoPointValues corners = bboxFieldData.load(ctx).getPointValues();
+        return doc -> {
+            if (corners.advanceExact(doc) == false) {
+                return shapeFilter.accept(doc);
+            }
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            final int cornersCount = corners.docValueCount();
+            for (int i = 0; i < cornersCount; ++i) {
+                final GeoPoint corner = corners.nextValue();
+                minX = Math.min(minX, corner.lon());
+                minY = Math.min(minY, corner.lat());
+                maxX = Math.max(maxX, corner.lon());
+                maxY = Math.max(maxY, corner.lat());
+            }
+            return viewport.intersects(minX, minY, maxX, maxY);
+        };
+    }
+
+    /**
+     * Return the digests of the shapes of each doc: the ones of the hash field, or for the docs which don't have it
+     * (indexed before the `geo_extension` processor was set up, or without it) the ones computed from their WKB.
+     */
+    private SortedNumericDocValues getDigestValues(LeafReaderContext ctx, SortedBinaryDocValues values) {
+        final SortedNumericDocValues hashes = loadDigestValues(ctx);
+        return new AbstractSortedNumericDocValues() {
+            private long[] computed = new long[1];
+            private boolean indexed;
+            private int count;
+            private int index;
+
+            @Override
+            public boolean advanceExact(int target) throws IOException {
+                if (hashes.advanceExact(target)) {
+                    indexed = true;
+                    return true;
+                }
+                if (values.advanceExact(target) == false) {
+                    return false;
+                }
+                indexed = false;
+                count = values.docValueCount();
+                computed = ArrayUtil.grow(computed, count);
+                for (int i = 0; i < count; i++) {
+                    computed[i] = GeoUtils.getHashFromWKB(values.nextValue());
+                }
+                Arrays.sort(computed, 0, count);
+                index = 0;
+                return true;
+            }
+
+            @Override
+            public long nextValue() throws IOException {
+                return indexed ? hashes.nextValue() : computed[index++];
+            }
+
+            @Override
+            public int docValueCount() {
+                return indexed ? hashes.docValueCount() : count;
+            }
+        };
+    }
+
+    private SortedNumericDocValues loadDigestValues(LeafReaderContext ctx) {
+        if (hashFieldData instanceof IndexNumericFieldData numericFieldData) {
+            return numericFieldData.load(ctx).getLongValues();
+        }
+        // The `geo_extension` processor indexes the digest as a string: parse it back
+        final SortedBinaryDocValues digests = hashFieldData.load(ctx).getBytesValues();
+        return new AbstractSortedNumericDocValues() {
+            private long[] parsed = new long[1];
+            private int count;
+            private int index;
+
+            @Override
+            public boolean advanceExact(int target) throws IOException {
+                if (digests.advanceExact(target) == false) {
+                    return false;
+                }
+                count = digests.docValueCount();
+                parsed = ArrayUtil.grow(parsed, count);
+                for (int i = 0; i < count; i++) {
+                    parsed[i] = parseDigest(digests.nextValue());
+                }
+                Arrays.sort(parsed, 0, count);
+                index = 0;
+                return true;
+            }
+
+            @Override
+            public long nextValue() {
+                return parsed[index++];
+            }
+
+            @Override
+            public int docValueCount() {
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Parse a digest written as a decimal long, as {@link Long#parseLong(String)} does but without building a string.
+     */
+    static long parseDigest(BytesRef digest) {
+        int i = digest.offset;
+        final int end = digest.offset + digest.length;
+        final boolean negative = i < end && digest.bytes[i] == '-';
+        if (i < end && (negative || digest.bytes[i] == '+')) {
+            i++;
+        }
+        if (i == end) {
+            throw invalidDigest(digest);
+        }
+        // Accumulate negatively so that Long.MIN_VALUE can be parsed too
+        final long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        final long multiplyLimit = limit / 10;
+        long value = 0;
+        for (; i < end; i++) {
+            final int digit = digest.bytes[i] - '0';
+            if (digit < 0 || digit > 9 || value < multiplyLimit) {
+                throw invalidDigest(digest);
+            }
+            value *= 10;
+            if (value < limit + digit) {
+                throw invalidDigest(digest);
+            }
+            value -= digit;
+        }
+        return negative ? value : -value;
+    }
+
+    private static IllegalArgumentException invalidDigest(BytesRef digest) {
+        return new IllegalArgumentException("invalid shape digest [" + digest.utf8ToString() + "] in geoshape aggregation");
+    }
+
+    /**
+     * Return the WKB value of the doc which digest is the given hash, or null if the doc has no such value.
+     */
+    private static BytesRef findWkb(SortedBinaryDocValues values, int doc, long hash) throws IOException {
+        if (values.advanceExact(doc) == false) {
+            return null;
+        }
+        final int valuesCount = values.docValueCount();
+        for (int i = 0; i < valuesCount; ++i) {
+            final BytesRef wkb = values.nextValue();
+            if (valuesCount == 1 || GeoUtils.getHashFromWKB(wkb) == hash) {
+                return wkb;
+            }
+        }
+        return null;
+    }
+
+    private double getPerimeter(BytesRef wkb) {
+        if (wkb == null) {
+            return 0;
+        }
+        try {
+            wkbScanner.scan(wkb);
+        } catch (ParseException e) {
+            return 0;
+        }
+        return wkbScanner.getLength();
+    }
+
+    /**
+     * Load the WKB of the given digest buckets from the doc they were first seen in. Docs are visited in order so that
+     * the doc values of each segment are only read forward.
+     */
+    private void loadShapes(InternalGeoShape.InternalBucket[] buckets) throws IOException {
+        final InternalGeoShape.InternalBucket[] byDoc = buckets.clone();
+        Arrays.sort(byDoc, Comparator.comparingLong(bucket -> bucketDocs.get(bucket.bucketOrd)));
+
+        final List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        LeafReaderContext leaf = null;
+        SortedBinaryDocValues values = null;
+        int previousDoc = -1;
+        for (InternalGeoShape.InternalBucket bucket : byDoc) {
+            final int doc = Math.toIntExact(bucketDocs.get(bucket.bucketOrd));
+            if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc() || doc == previousDoc) {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                values = valuesSource.bytesValues(leaf);
+            }
+            final BytesRef wkb = findWkb(values, doc - leaf.docBase, bucket.wkbHash);
+            // The doc values reuse their buffer from one doc to the other
+            bucket.wkb = wkb == null ? null : BytesRef.deepCopyOf(wkb);
+            previousDoc = doc;
+        }
+    }
+
     @Override
     public InternalAggregation[] buildAggregations(LongArray owningBucketOrdinals) throws IOException {
+        simplifyStart = System.nanoTime();
         // TODO: replace by calling buildAggregationsForVariableBuckets or buildAggregationsForFixedBucketCount??
         try (ObjectArray<InternalGeoShape.InternalBucket[]> topBucketsPerOrd = bigArrays().newObjectArray(owningBucketOrdinals.size())) {
             // InternalGeoShape[] results = new InternalGeoShape[owningBucketOrdinals.size()];
             InternalGeoShape[] results = new InternalGeoShape[Math.toIntExact(owningBucketOrdinals.size())];
 
             for (long ordIdx = 0; ordIdx < owningBucketOrdinals.size(); ordIdx++) {
-                assert owningBucketOrdinals.get(ordIdx) == 0;
-
-                final int size = (int) Math.min(bucketOrds.size(), bucketCountThresholds.getShardSize());
-                // We will insert buckets in a priority queue with a capacity of up to N=size elements
-                InternalGeoShape.BucketPriorityQueue ordered = new InternalGeoShape.BucketPriorityQueue(size);
-
-                InternalGeoShape.InternalBucket spare = null;
+                final long owningBucketOrd = owningBucketOrdinals.get(ordIdx);
                 // Total doc count of every distinct shape collected on this shard, before `shard_size` truncation.
                 long totalDocCount = 0;
-                for (int i = 0; i < bucketOrds.size(); i++) {
-                    totalDocCount += bucketDocCount(i);
-                    if (spare == null) {
-                        spare = new InternalGeoShape.InternalBucket(new BytesRef(), null, null, 0, 0, null);
+                final InternalGeoShape.InternalBucket[] topBuckets;
+                if (topShapes != null) {
+                    // Bounded: the top is already known
+                    final TopShapes top = owningBucketOrd < topShapes.size() ? topShapes.get(owningBucketOrd) : null;
+                    topBuckets = top == null ? new InternalGeoShape.InternalBucket[0] : top.drain();
+                    if (top != null) {
+                        totalDocCount = bucketDocCount(top.otherOrd);
                     }
-                    bucketOrds.get(i, spare.wkb);
-
-                    // FIXME: why do we need a deepCopy here ?
-                    spare.wkb = BytesRef.deepCopyOf(spare.wkb);
-                    spare.wkbHash = String.valueOf(GeoUtils.getHashFromWKB(spare.wkb));
-
-                    if (GeoUtils.wkbIsPoint(spare.wkb.bytes)) {
-                        spare.perimeter = 0;
-                        spare.realType = "Point";
-                    } else {
-                        Geometry geom;
+                    for (InternalGeoShape.InternalBucket bucket : topBuckets) {
+                        totalDocCount += bucket.docCount;
+                    }
+                } else {
+                    final long distinctShapes = digestKeys
+                        ? hashOrds.bucketsInOrd(owningBucketOrd)
+                        : bucketOrds.bucketsInOrd(owningBucketOrd);
+                    final int size = (int) Math.min(distinctShapes, bucketCountThresholds.getShardSize());
+                    // We will insert buckets in a priority queue with a capacity of up to N=size elements
+                    InternalGeoShape.BucketPriorityQueue ordered = new InternalGeoShape.BucketPriorityQueue(size, orderByDigest);
 
-                        try {
-                            geom = wkbReader.read(spare.wkb.bytes);
-                        } catch (ParseException e) {
-                            continue;
+                    InternalGeoShape.InternalBucket spare = null;
+                    // The shapes of the owning bucket only, whichever their keys
+                    final LongKeyedBucketOrds.BucketOrdsEnum digestOrds = digestKeys ? hashOrds.ordsEnum(owningBucketOrd) : null;
+                    final BytesKeyedBucketOrds.BucketOrdsEnum wkbOrds = digestKeys ? null : bucketOrds.ordsEnum(owningBucketOrd);
+                    final long rankStart = System.nanoTime();
+                    long ranked = 0;
+                    while (digestKeys ? digestOrds.next() : wkbOrds.next()) {
+                        if ((++ranked & CANCELLATION_CHECK_MASK) == 0) {
+                            checkCancelled();
+                        }
+                        final long i = digestKeys ? digestOrds.ord() : wkbOrds.ord();
+                        totalDocCount += bucketDocCount(i);
+                        if (spare == null) {
+                            spare = new InternalGeoShape.InternalBucket(new BytesRef(), 0, null, 0, 0, null);
                         }
 
-                        spare.perimeter = geom.getLength();
-                        spare.realType = geom.getGeometryType();
+                        if (digestKeys) {
+                            // The WKB is only loaded for the shapes that make it into the queue
+                            spare.wkbHash = digestOrds.value();
+                            spare.perimeter = bucketPerimeters.get(i);
+                        } else {
+                            // Rank the shape from a scan of its WKB: it is only decoded if it makes it into the queue
+                            wkbOrds.readValue(spare.wkb);
+                            try {
+                                wkbScanner.scan(spare.wkb);
+                            } catch (ParseException e) {
+                                continue;
+                            }
+                            spare.perimeter = wkbScanner.getLength();
+                            spare.realType = wkbScanner.getGeometryType();
+                            // The digest ranks the shapes of equal perimeter and doc count
+                            spare.wkbHash = GeoUtils.getHashFromWKB(spare.wkb);
+                        }
 
+                        spare.docCount = bucketDocCount(i);
+                        spare.bucketOrd = i;
+                        spare = ordered.insertWithOverflow(spare);
                     }
 
-                    spare.docCount = bucketDocCount(i);
-                    spare.bucketOrd = i;
-                    spare = ordered.insertWithOverflow(spare);
+                    topBuckets = new InternalGeoShape.InternalBucket[ordered.size()];
+                    for (int i = ordered.size() - 1; i >= 0; --i) {
+                        topBuckets[i] = ordered.pop();
+                    }
+                    rankNanos += System.nanoTime() - rankStart;
+                }
+                if (geometry == false) {
+                    // Only the digests are returned: the shapes are neither loaded nor simplified
+                    for (InternalGeoShape.InternalBucket bucket : topBuckets) {
+                        bucket.wkb = new BytesRef();
+                    }
+                    long returnedDocCount = 0;
+                    for (InternalGeoShape.InternalBucket bucket : topBuckets) {
+                        returnedDocCount += bucket.docCount;
+                    }
+                    topBucketsPerOrd.set(ordIdx, topBuckets);
+                    results[Math.toIntExact(ordIdx)] = new InternalGeoShape(
+                        name,
+                        Arrays.asList(topBuckets),
+                        output_format,
+                        bucketCountThresholds.getRequiredSize(),
+                        bucketCountThresholds.getShardSize(),
+                        totalDocCount - returnedDocCount,
+                        budget,
+                        algorithm,
+                        0,
+                        0,
+                        viewport,
+                        decimals,
+                        keyAsObject,
+                        orderByDigest,
+                        false,
+                        wireFormat,
+                        metadata()
+                    );
+                    continue;
+                }
+                if (digestKeys) {
+                    loadShapes(topBuckets);
                 }
 
                 // Once we get the top N results, we can compute a simplification
-                topBucketsPerOrd.set(ordIdx, new InternalGeoShape.InternalBucket[ordered.size()]);
-                for (int i = ordered.size() - 1; i >= 0; --i) {
-                    final InternalGeoShape.InternalBucket bucket = ordered.pop();
-
-                    Geometry geom;
-                    try {
-                        geom = wkbReader.read(bucket.wkb.bytes);
-                    } catch (ParseException e) {
-                        continue;
+                final BytesRef[] shapes = new BytesRef[topBuckets.length];
+                for (int i = 0; i < topBuckets.length; i++) {
+                    shapes[i] = topBuckets[i].wkb;
+                }
+                final double targetTolerance = must_simplify ? zoomTolerance : 0;
+                // Deferred, the shapes are only clipped here: the coordinating node simplifies them, and fits the budget
+                double appliedTolerance = deferSimplification ? 0 : targetTolerance;
+                materializeShapes(topBuckets, appliedTolerance);
+                // Zoom out until the shapes fit in the budget, or collapse them at once when out of time
+                while (deferSimplification == false
+                    && budget.fits(topBuckets, wkbScanner) == false
+                    && appliedTolerance < ShapeBudget.MAX_TOLERANCE) {
+                    appliedTolerance = simplifyTimedOut() ? ShapeBudget.MAX_TOLERANCE : ShapeBudget.nextTolerance(appliedTolerance);
+                    for (int i = 0; i < topBuckets.length; i++) {
+                        if (topBuckets[i] != null) {
+                            topBuckets[i].wkb = shapes[i];
+                        }
                     }
-                    if (must_simplify) {
-                        geom = simplifyGeoShape(geom);
-                        bucket.wkb = new BytesRef(new WKBWriter().write(geom));
-                        bucket.perimeter = geom.getLength();
-
+                    materializeShapes(topBuckets, appliedTolerance);
+                }
+                if (appliedTolerance == 0 && viewport == null && digestKeys == false) {
+                    // The keys point to the pages of bucketOrds, which are recycled once the aggregator is closed
+                    for (InternalGeoShape.InternalBucket bucket : topBuckets) {
+                        if (bucket != null) {
+                            bucket.wkb = BytesRef.deepCopyOf(bucket.wkb);
+                        }
                     }
-
-                    topBucketsPerOrd.get(ordIdx)[i] = bucket;
                 }
+                // Shapes that could not be decoded are dropped
+                topBucketsPerOrd.set(
+                    ordIdx,
+                    Arrays.stream(topBuckets).filter(Objects::nonNull).toArray(InternalGeoShape.InternalBucket[]::new)
+                );
 
                 // Docs carried by the shapes this shard actually returns; the rest is reported as "other".
                 long returnedDocCount = 0;
                 for (InternalGeoShape.InternalBucket bucket : topBucketsPerOrd.get(ordIdx)) {
-                    if (bucket != null) {
-                        returnedDocCount += bucket.docCount;
-                    }
+                    returnedDocCount += bucket.docCount;
                 }
 
                 results[Math.toIntExact(ordIdx)] = new InternalGeoShape(
@@ -208,16 +982,318 @@ public class GeoShapeAggregator extends BucketsAggregator {
                     bucketCountThresholds.getRequiredSize(),
                     bucketCountThresholds.getShardSize(),
                     totalDocCount - returnedDocCount,
+                    budget,
+                    algorithm,
+                    appliedTolerance,
+                    deferSimplification ? targetTolerance : 0,
+                    viewport,
+                    decimals,
+                    keyAsObject,
+                    orderByDigest,
+                    simplifyTimedOut,
+                    wireFormat,
                     metadata()
                 );
             }
 
             // Build sub-aggregations
             buildSubAggsForAllBuckets(topBucketsPerOrd, b -> b.bucketOrd, (b, aggregations) -> b.subAggregations = aggregations);
+            builtResults = results;
             return results;
         }
     }
 
+    /**
+     * Decode the given buckets, then clip and simplify them if requested, reading through the node cache of simplified
+     * shapes. Simplifying is the expensive part: it is split into contiguous chunks spread on the simplify thread pool,
+     * the current thread taking the first one, then the ones the pool hasn't started yet. Each chunk only updates its own
+     * slots of the array, so that the order of the buckets is kept. The buckets which shape can't be decoded, or lies
+     * outside of the viewport, are replaced by null. Each decoded geometry is charged to the geoshape circuit breaker,
+     * which may trip the whole request.
+     */
+    private void materializeShapes(InternalGeoShape.InternalBucket[] buckets, double tolerance) {
+        final ExecutorService executor = services.simplifyExecutor();
+        final boolean transform = tolerance > 0 || viewport != null;
+        final int tasks = transform && executor != null ? Math.min(services.simplifyParallelism(), buckets.length) : 1;
+        final AtomicBoolean aborted = new AtomicBoolean();
+        if (tasks <= 1) {
+            materializeShapes(buckets, 0, buckets.length, tolerance, wkbDecoder, wkbWriter, wkbScanner, aborted);
+            return;
+        }
+
+        final int chunkSize = (buckets.length + tasks - 1) / tasks;
+        final List<ShapeChunk> chunks = new ArrayList<>(tasks - 1);
+        for (int start = chunkSize; start < buckets.length; start += chunkSize) {
+            chunks.add(new ShapeChunk(buckets, start, Math.min(start + chunkSize, buckets.length), tolerance, aborted));
+        }
+        try {
+            for (ShapeChunk chunk : chunks) {
+                try {
+                    executor.execute(chunk);
+                } catch (EsRejectedExecutionException e) {
+                    // The pool is saturated: the chunk is run by the current thread below
+                }
+            }
+            materializeShapes(buckets, 0, chunkSize, tolerance, wkbDecoder, wkbWriter, wkbScanner, aborted);
+            for (ShapeChunk chunk : chunks) {
+                chunk.run();
+            }
+        } catch (RuntimeException e) {
+            aborted.set(true);
+            throw e;
+        } finally {
+            // The chunks read the buckets, and the pages of the ords which are recycled once the aggregator is closed:
+            // the ones not started yet never will, and the running ones are waited for, even when failing
+            for (ShapeChunk chunk : chunks) {
+                chunk.cancelOrAwait();
+            }
+        }
+        for (ShapeChunk chunk : chunks) {
+            chunk.rethrow();
+        }
+    }
+
+    /**
+     * A chunk of the buckets to materialize, run by the simplify pool or the current thread, whichever claims it first.
+     */
+    private final class ShapeChunk implements Runnable {
+        private final InternalGeoShape.InternalBucket[] buckets;
+        private final int from;
+        private final int to;
+        private final double tolerance;
+        // Set once a chunk fails, so that the others stop at their next shape
+        private final AtomicBoolean aborted;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile RuntimeException failure;
+
+        ShapeChunk(InternalGeoShape.InternalBucket[] buckets, int from, int to, double tolerance, AtomicBoolean aborted) {
+            this.buckets = buckets;
+            this.from = from;
+            this.to = to;
+            this.tolerance = tolerance;
+            this.aborted = aborted;
+        }
+
+        @Override
+        public void run() {
+            if (claimed.compareAndSet(false, true) == false) {
+                return;
+            }
+            try {
+                materializeShapes(buckets, from, to, tolerance, new WkbDecoder(), new WKBWriter(), new WkbScanner(), aborted);
+            } catch (RuntimeException e) {
+                // A tripped breaker or a cancelled search, rethrown as is by the current thread
+                failure = e;
+                aborted.set(true);
+            } finally {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Prevent the chunk from starting if it hasn't yet, or wait for it to finish.
+         */
+        void cancelOrAwait() {
+            if (claimed.compareAndSet(false, true)) {
+                return;
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void rethrow() {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private void materializeShapes(
+        InternalGeoShape.InternalBucket[] buckets,
+        int from,
+        int to,
+        double tolerance,
+        WkbDecoder decoder,
+        WKBWriter writer,
+        WkbScanner scanner,
+        AtomicBoolean aborted
+    ) {
+        for (int i = from; i < to && aborted.get() == false; i++) {
+            final InternalGeoShape.InternalBucket bucket = buckets[i];
+            if (bucket == null) {
+                continue;
+            }
+            if (bucket.wkb == null) {
+                buckets[i] = null;
+                continue;
+            }
+
+            checkCancelled();
+            // The metrics are computed from the full shape, the first time the bucket is materialized
+            final boolean withMetrics = metrics != 0 && bucket.metrics == null;
+            try {
+                if (tolerance > 0 || viewport != null) {
+                    final BytesRef wkb = bucket.wkb;
+                    // Out of time, the remaining shapes get the cheaper algorithm
+                    final boolean cheaper = tolerance > 0
+                        && simplifyAlgorithm != GeoUtils.SimplifyAlgorithm.DOUGLAS_PEUCKER
+                        && simplifyTimedOut();
+                    final GeoUtils.SimplifyAlgorithm shapeAlgorithm = cheaper
+                        ? GeoUtils.SimplifyAlgorithm.DOUGLAS_PEUCKER
+                        : simplifyAlgorithm;
+                    // The node cache is shared by every index: it is keyed on the digest of the WKB itself, never on the one
+                    // read from the hash field of the documents, which could point at the shape of another index
+                    final long shapeHash = digestKeys ? GeoUtils.getHashFromWKB(wkb) : bucket.wkbHash;
+                    final SimplifiedShapeCache.Key key = new SimplifiedShapeCache.Key(shapeHash, tolerance, shapeAlgorithm, viewport);
+                    final SimplifiedShapeCache.SimplifiedShape simplified;
+                    if (withMetrics && ShapeMetrics.needsGeometry(metrics)) {
+                        // Decoded once, for both the metrics and the simplification
+                        final long reserved = services.reserveDecodedBytes(wkb.length, "geoshape aggregation [" + name + "]");
+                        try {
+                            final Geometry geometry = decodeCounted(decoder, wkb);
+                            scanner.scan(wkb);
+                            bucket.metrics = ShapeMetrics.compute(metrics, scanner, geometry);
+                            simplified = services.simplifiedShapeCache()
+                                .computeIfAbsent(key, () -> simplifyDecoded(geometry, tolerance, shapeAlgorithm, writer));
+                        } finally {
+                            services.release(reserved);
+                        }
+                    } else {
+                        if (withMetrics) {
+                            scanner.scan(wkb);
+                            bucket.metrics = ShapeMetrics.compute(metrics, scanner, null);
+                        }
+                        simplified = services.simplifiedShapeCache()
+                            .computeIfAbsent(key, () -> simplify(wkb, tolerance, shapeAlgorithm, decoder, writer, scanner));
+                    }
+                    if (simplified.isEmpty()) {
+                        // Its bounding box intersects the viewport, but not the shape itself
+                        buckets[i] = null;
+                        continue;
+                    }
+                    // The perimeter it was ranked on is kept: it ranks it again at the reduce
+                    bucket.wkb = simplified.wkb();
+                    if (bucket.realType == null) {
+                        bucket.realType = simplified.realType();
+                    }
+                } else {
+                    Geometry geom = decode(decoder, bucket.wkb);
+                    if (bucket.realType == null) {
+                        bucket.realType = geom.getGeometryType();
+                    }
+                    if (withMetrics) {
+                        scanner.scan(bucket.wkb);
+                        bucket.metrics = ShapeMetrics.compute(metrics, scanner, geom);
+                    }
+                }
+            } catch (ParseException e) {
+                buckets[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Decode, clip and simplify the shape, charging the geoshape breaker while the decoded geometry is alive. A shape
+     * smaller than a pixel at the zoom is collapsed from a scan of its WKB, without being decoded.
+     */
+    private SimplifiedShapeCache.SimplifiedShape simplify(
+        BytesRef wkb,
+        double tolerance,
+        GeoUtils.SimplifyAlgorithm algorithm,
+        WkbDecoder decoder,
+        WKBWriter writer,
+        WkbScanner scanner
+    ) throws ParseException {
+        scanner.scan(wkb);
+        final SimplifiedShapeCache.SimplifiedShape culled = SimplifiedShapeCache.cull(
+            scanner,
+            tolerance,
+            algorithm,
+            viewport,
+            geometryFactory,
+            writer
+        );
+        if (culled != null) {
+            culledShapes.increment();
+            return culled;
+        }
+        final long reserved = services.reserveDecodedBytes(wkb.length, "geoshape aggregation [" + name + "]");
+        try {
+            return simplifyDecoded(decodeCounted(decoder, wkb), tolerance, algorithm, writer);
+        } finally {
+            services.release(reserved);
+        }
+    }
+
+    /**
+     * Clip and simplify the decoded shape, counting the time spent in the debug info.
+     */
+    private SimplifiedShapeCache.SimplifiedShape simplifyDecoded(
+        Geometry geometry,
+        double tolerance,
+        GeoUtils.SimplifyAlgorithm algorithm,
+        WKBWriter writer
+    ) {
+        final long start = System.nanoTime();
+        try {
+            return SimplifiedShapeCache.simplify(geometry, tolerance, algorithm, viewport, geometryFactory, writer);
+        } finally {
+            simplifyNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Whether the simplify timeout is over. Only called when it changes how a shape is simplified: the results built
+     * from then on are flagged.
+     */
+    private boolean simplifyTimedOut() {
+        if (simplifyTimedOut == false && simplifyTimeoutNanos >= 0 && System.nanoTime() - simplifyStart > simplifyTimeoutNanos) {
+            simplifyTimedOut = true;
+        }
+        return simplifyTimedOut;
+    }
+
+    /**
+     * Stop building the buckets once the search is cancelled: the simplification of large shapes may take long.
+     */
+    private void checkCancelled() {
+        if (context.isCancelled()) {
+            throw new TaskCancelledException("cancelled while building geoshape aggregation [" + name + "]");
+        }
+    }
+
+    private Geometry decode(WkbDecoder decoder, BytesRef wkb) throws ParseException {
+        final long reserved = services.reserveDecodedBytes(wkb.length, "geoshape aggregation [" + name + "]");
+        try {
+            return decodeCounted(decoder, wkb);
+        } finally {
+            services.release(reserved);
+        }
+    }
+
+    /**
+     * Decode the shape, counting it in the debug info. The caller charges it to the breaker.
+     */
+    private Geometry decodeCounted(WkbDecoder decoder, BytesRef wkb) throws ParseException {
+        final long start = System.nanoTime();
+        final Geometry geometry = decoder.decode(wkb);
+        decodeNanos.add(System.nanoTime() - start);
+        decodedShapes.increment();
+        decodedVertices.add(geometry.getNumPoints());
+        return geometry;
+    }
+
     @Override
     public InternalAggregation buildEmptyAggregation() {
         return new InternalGeoShape(
@@ -227,32 +1303,64 @@ public class GeoShapeAggregator extends BucketsAggregator {
             bucketCountThresholds.getRequiredSize(),
             bucketCountThresholds.getShardSize(),
             0,
+            budget,
+            algorithm,
+            0,
+            0,
+            viewport,
+            decimals,
+            keyAsObject,
+            orderByDigest,
+            false,
+            wireFormat,
             metadata()
         );
     }
 
-    private Geometry simplifyGeoShape(Geometry geom) {
-        Geometry polygonSimplified = getSimplifiedShape(geom);
-        if (polygonSimplified.isEmpty()) {
-            polygonSimplified = this.geometryFactory.createPoint(geom.getCoordinate());
+    @Override
+    public void collectDebugInfo(BiConsumer<String, Object> add) {
+        super.collectDebugInfo(add);
+        add.accept("execution_hint", topShapes != null ? "bounded" : "map");
+        add.accept("keys", digestKeys ? "digest" : "wkb");
+        if (topShapes == null) {
+            add.accept("distinct_shapes", digestKeys ? hashOrds.size() : bucketOrds.size());
         }
-        return polygonSimplified;
-    }
-
-    private Geometry getSimplifiedShape(Geometry geometry) {
-        double tol = GeoUtils.getToleranceFromZoom(zoom);
-
-        switch (algorithm) {
-            case TOPOLOGY_PRESERVING:
-                return TopologyPreservingSimplifier.simplify(geometry, tol);
-            default:
-                return DouglasPeuckerSimplifier.simplify(geometry, tol);
+        if (digestKeys == false) {
+            add.accept("collected_wkb_bytes", collectedWkbBytes);
+        }
+        add.accept("rank_nanos", rankNanos);
+        add.accept("shapes_decoded", decodedShapes.sum());
+        add.accept("decode_nanos", decodeNanos.sum());
+        add.accept("shapes_culled", culledShapes.sum());
+        add.accept("simplify_nanos", simplifyNanos.sum());
+        add.accept("decoded_vertices", decodedVertices.sum());
+        long returnedVertices = 0;
+        long returnedWkbBytes = 0;
+        if (builtResults != null) {
+            final WkbScanner scanner = new WkbScanner();
+            for (InternalGeoShape result : builtResults) {
+                for (InternalGeoShape.InternalBucket bucket : result.getBuckets()) {
+                    if (bucket.wkb.length == 0) {
+                        continue;
+                    }
+                    returnedWkbBytes += bucket.wkb.length;
+                    try {
+                        scanner.scan(bucket.wkb);
+                        returnedVertices += scanner.getVertexCount();
+                    } catch (ParseException e) {
+                        // Written by this node: can't happen
+                    }
+                }
+            }
         }
+        add.accept("returned_vertices", returnedVertices);
+        add.accept("output_format", output_format.name().toLowerCase(Locale.ROOT));
+        add.accept("returned_wkb_bytes", returnedWkbBytes);
     }
 
     @Override
     protected void doClose() {
-        Releasables.close(bucketOrds);
+        Releasables.close(bucketOrds, hashOrds, topShapes, bucketDocs, bucketPerimeters, rejectedDigests);
     }
 
     public static class BucketCountThresholds implements Writeable, ToXContentFragment {
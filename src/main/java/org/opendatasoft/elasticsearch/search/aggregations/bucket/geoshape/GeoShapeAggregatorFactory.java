@@ -1,5 +1,8 @@
 package org.opendatasoft.elasticsearch.search.aggregations.bucket.geoshape;
 
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexGeoPointFieldData;
+import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.search.aggregations.Aggregator;
 import org.elasticsearch.search.aggregations.AggregatorFactories;
 import org.elasticsearch.search.aggregations.AggregatorFactory;
@@ -10,7 +13,6 @@ import org.elasticsearch.search.aggregations.support.AggregationContext;
 import org.elasticsearch.search.aggregations.support.ValuesSource;
 import org.elasticsearch.search.aggregations.support.ValuesSourceAggregatorFactory;
 import org.elasticsearch.search.aggregations.support.ValuesSourceConfig;
-import org.opendatasoft.elasticsearch.plugin.GeoUtils;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -18,19 +20,15 @@ import java.util.Map;
 
 class GeoShapeAggregatorFactory extends ValuesSourceAggregatorFactory {
 
-    private GeoUtils.OutputFormat output_format;
-    private boolean must_simplify;
-    private int zoom;
-    private GeoShape.Algorithm algorithm;
+    private final GeoShapeAggregatorSupplier aggregatorSupplier;
+    private final GeoShapeOptions options;
     private final GeoShapeAggregator.BucketCountThresholds bucketCountThresholds;
 
     GeoShapeAggregatorFactory(
         String name,
         ValuesSourceConfig config,
-        GeoUtils.OutputFormat output_format,
-        boolean must_simplify,
-        int zoom,
-        GeoShape.Algorithm algorithm,
+        GeoShapeAggregatorSupplier aggregatorSupplier,
+        GeoShapeOptions options,
         GeoShapeAggregator.BucketCountThresholds bucketCountThresholds,
         AggregationContext context,
         AggregatorFactory parent,
@@ -38,10 +36,12 @@ class GeoShapeAggregatorFactory extends ValuesSourceAggregatorFactory {
         Map<String, Object> metaData
     ) throws IOException {
         super(name, config, context, parent, subFactoriesBuilder, metaData);
-        this.output_format = output_format;
-        this.must_simplify = must_simplify;
-        this.zoom = zoom;
-        this.algorithm = algorithm;
+        if (options.simplifyTimeout() != null) {
+            // The shapes depend on the time the shards spend simplifying them: the request is not cached
+            context.nowInMillis();
+        }
+        this.aggregatorSupplier = aggregatorSupplier;
+        this.options = options;
         this.bucketCountThresholds = bucketCountThresholds;
     }
 
@@ -50,10 +50,20 @@ class GeoShapeAggregatorFactory extends ValuesSourceAggregatorFactory {
         final InternalAggregation aggregation = new InternalGeoShape(
             name,
             new ArrayList<>(),
-            output_format,
+            options.outputFormat(),
             bucketCountThresholds.getRequiredSize(),
             bucketCountThresholds.getShardSize(),
             0,
+            options.budget(),
+            options.algorithm(),
+            0,
+            0,
+            options.viewport(),
+            options.decimals(),
+            options.keyAsObject(),
+            options.orderByDigest(),
+            false,
+            options.wireFormat(),
             metadata
         );
         return new NonCollectingAggregator(name, context, parent, factories, metadata) {
@@ -72,15 +82,44 @@ class GeoShapeAggregatorFactory extends ValuesSourceAggregatorFactory {
         );
         bucketCountThresholds.ensureValidity();
         ValuesSource valuesSourceBytes = config.getValuesSource();
-        return new GeoShapeAggregator(
+
+        // The digest sub-field may not be mapped on every index targeted by the request: fall back on the WKB keys there
+        IndexFieldData<?> hashFieldData = null;
+        if (options.hashField() != null) {
+            MappedFieldType hashFieldType = context.getFieldType(options.hashField());
+            if (hashFieldType != null) {
+                hashFieldData = context.getForField(hashFieldType, MappedFieldType.FielddataOperation.SEARCH);
+            }
+        }
+
+        // Without the bounding box sub-field, the shapes are scanned to be culled
+        IndexGeoPointFieldData bboxFieldData = null;
+        if (options.viewport() != null && options.bboxField() != null) {
+            MappedFieldType bboxFieldType = context.getFieldType(options.bboxField());
+            if (bboxFieldType != null) {
+                IndexFieldData<?> fieldData = context.getForField(bboxFieldType, MappedFieldType.FielddataOperation.SEARCH);
+                if (fieldData instanceof IndexGeoPointFieldData geoPointFieldData) {
+                    bboxFieldData = geoPointFieldData;
+                } else {
+                    throw new IllegalArgumentException(
+                        "["
+                            + GeoShapeBuilder.BBOX_FIELD_FIELD.getPreferredName()
+                            + "] must be a geo_point field, found ["
+                            + options.bboxField()
+                            + "]"
+                    );
+                }
+            }
+        }
+
+        return aggregatorSupplier.build(
             name,
             factories,
             context,
             valuesSourceBytes,
-            output_format,
-            must_simplify,
-            zoom,
-            algorithm,
+            options,
+            hashFieldData,
+            bboxFieldData,
             bucketCountThresholds,
             parent,
             cardinality,
@@ -1,11 +1,12 @@
 package org.opendatasoft.elasticsearch.search.aggregations.bucket.geoshape;
 
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexGeoPointFieldData;
 import org.elasticsearch.search.aggregations.Aggregator;
 import org.elasticsearch.search.aggregations.AggregatorFactories;
 import org.elasticsearch.search.aggregations.CardinalityUpperBound;
 import org.elasticsearch.search.aggregations.support.AggregationContext;
 import org.elasticsearch.search.aggregations.support.ValuesSource;
-import org.opendatasoft.elasticsearch.plugin.GeoUtils;
 
 import java.io.IOException;
 import java.util.Map;
@@ -17,10 +18,9 @@ public interface GeoShapeAggregatorSupplier {
         AggregatorFactories factories,
         AggregationContext context,
         ValuesSource valuesSource,
-        GeoUtils.OutputFormat output_format,
-        boolean must_simplify,
-        int zoom,
-        GeoShape.Algorithm algorithm,
+        GeoShapeOptions options,
+        IndexFieldData<?> hashFieldData,
+        IndexGeoPointFieldData bboxFieldData,
         GeoShapeAggregator.BucketCountThresholds bucketCountThresholds,
         Aggregator parent,
         CardinalityUpperBound cardinalityUpperBound,
@@ -1,10 +1,14 @@
 package org.opendatasoft.elasticsearch.search.aggregations.bucket.geoshape;
 
 import org.elasticsearch.TransportVersion;
-import org.elasticsearch.TransportVersions;
+import org.elasticsearch.common.geo.GeoBoundingBox;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.core.TimeValue;
 import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.Aggregator.SubAggCollectionMode;
 import org.elasticsearch.search.aggregations.AggregatorFactories;
 import org.elasticsearch.search.aggregations.AggregatorFactories.Builder;
 import org.elasticsearch.search.aggregations.AggregatorFactory;
@@ -19,15 +23,20 @@ import org.elasticsearch.xcontent.ObjectParser;
 import org.elasticsearch.xcontent.ParseField;
 import org.elasticsearch.xcontent.XContentBuilder;
 import org.elasticsearch.xcontent.XContentParser;
+import org.opendatasoft.elasticsearch.plugin.GeoShapeServices;
 import org.opendatasoft.elasticsearch.plugin.GeoUtils;
+import org.opendatasoft.elasticsearch.plugin.GeoViewport;
+import org.opendatasoft.elasticsearch.plugin.WkbTextWriter;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * The builder of the aggregatorFactory. Also implements the parsing of the request.
@@ -45,6 +54,27 @@ public class GeoShapeBuilder extends ValuesSourceAggregationBuilder</*ValuesSour
     public static final ParseField SIMPLIFY_FIELD = new ParseField("simplify");
     public static final ParseField SIZE_FIELD = new ParseField("size");
     public static final ParseField SHARD_SIZE_FIELD = new ParseField("shard_size");
+    public static final ParseField HASH_FIELD_FIELD = new ParseField("hash_field");
+    public static final ParseField BOUNDS_FIELD = new ParseField("bounds");
+    public static final ParseField TILE_FIELD = new ParseField("tile");
+    public static final ParseField BBOX_FIELD_FIELD = new ParseField("bbox_field");
+    public static final ParseField MAX_VERTICES_FIELD = new ParseField("max_vertices");
+    public static final ParseField MAX_RESPONSE_BYTES_FIELD = new ParseField("max_response_bytes");
+    public static final ParseField GEOMETRY_FIELD = new ParseField("geometry");
+    public static final ParseField DIGESTS_FIELD = new ParseField("digests");
+    public static final ParseField DEFER_SIMPLIFICATION_FIELD = new ParseField("defer_simplification");
+    public static final ParseField DECIMALS_FIELD = new ParseField("decimals");
+    public static final ParseField KEY_AS_OBJECT_FIELD = new ParseField("key_as_object");
+    public static final ParseField EXECUTION_HINT_FIELD = new ParseField("execution_hint");
+    public static final ParseField INCLUDE_FIELD = new ParseField("include");
+    public static final ParseField PARTITION_FIELD = new ParseField("partition");
+    public static final ParseField NUM_PARTITIONS_FIELD = new ParseField("num_partitions");
+    public static final ParseField ORDER_FIELD = new ParseField("order");
+    public static final ParseField AFTER_FIELD = new ParseField("after");
+    public static final ParseField SIMPLIFY_TIMEOUT_FIELD = new ParseField("simplify_timeout");
+    public static final ParseField INCLUDE_TYPES_FIELD = new ParseField("include_types");
+    public static final ParseField EXCLUDE_TYPES_FIELD = new ParseField("exclude_types");
+    public static final ParseField METRICS_FIELD = new ParseField("metrics");
 
     public static final GeoShapeAggregator.BucketCountThresholds DEFAULT_BUCKET_COUNT_THRESHOLDS =
         new GeoShapeAggregator.BucketCountThresholds(10, -1);
@@ -60,15 +90,75 @@ public class GeoShapeBuilder extends ValuesSourceAggregationBuilder</*ValuesSour
         );
         PARSER.declareInt(GeoShapeBuilder::size, SIZE_FIELD);
         PARSER.declareInt(GeoShapeBuilder::shardSize, SHARD_SIZE_FIELD);
+        PARSER.declareString(GeoShapeBuilder::hashField, HASH_FIELD_FIELD);
+        PARSER.declareField(
+            (p, builder, c) -> builder.bounds(GeoBoundingBox.parseBoundingBox(p)),
+            BOUNDS_FIELD,
+            ObjectParser.ValueType.OBJECT
+        );
+        PARSER.declareString(GeoShapeBuilder::tile, TILE_FIELD);
+        PARSER.declareExclusiveFieldSet(BOUNDS_FIELD.getPreferredName(), TILE_FIELD.getPreferredName());
+        PARSER.declareString(GeoShapeBuilder::bboxField, BBOX_FIELD_FIELD);
+        PARSER.declareInt(GeoShapeBuilder::maxVertices, MAX_VERTICES_FIELD);
+        PARSER.declareField(
+            (p, builder, c) -> builder.maxResponseBytes(
+                ByteSizeValue.parseBytesSizeValue(p.text(), MAX_RESPONSE_BYTES_FIELD.getPreferredName()).getBytes()
+            ),
+            MAX_RESPONSE_BYTES_FIELD,
+            ObjectParser.ValueType.VALUE
+        );
+        PARSER.declareBoolean(GeoShapeBuilder::geometry, GEOMETRY_FIELD);
+        PARSER.declareStringArray(GeoShapeBuilder::digests, DIGESTS_FIELD);
+        PARSER.declareBoolean(GeoShapeBuilder::deferSimplification, DEFER_SIMPLIFICATION_FIELD);
+        PARSER.declareInt(GeoShapeBuilder::decimals, DECIMALS_FIELD);
+        PARSER.declareBoolean(GeoShapeBuilder::keyAsObject, KEY_AS_OBJECT_FIELD);
+        PARSER.declareField(
+            GeoShapeBuilder::collectMode,
+            (p, c) -> SubAggCollectionMode.parse(p.text(), LoggingDeprecationHandler.INSTANCE),
+            SubAggCollectionMode.KEY,
+            ObjectParser.ValueType.STRING
+        );
+        PARSER.declareString(GeoShapeBuilder::executionHint, EXECUTION_HINT_FIELD);
+        PARSER.declareField((p, builder, c) -> {
+            Map<String, Object> include = p.map();
+            if (include.keySet().equals(Set.of(PARTITION_FIELD.getPreferredName(), NUM_PARTITIONS_FIELD.getPreferredName())) == false
+                || include.get(PARTITION_FIELD.getPreferredName()) instanceof Number == false
+                || include.get(NUM_PARTITIONS_FIELD.getPreferredName()) instanceof Number == false) {
+                throw new IllegalArgumentException(
+                    "["
+                        + INCLUDE_FIELD.getPreferredName()
+                        + "] must be an object with the [partition] and [num_partitions] numbers in ["
+                        + builder.name
+                        + "]"
+                );
+            }
+            builder.partition(
+                ((Number) include.get(PARTITION_FIELD.getPreferredName())).intValue(),
+                ((Number) include.get(NUM_PARTITIONS_FIELD.getPreferredName())).intValue()
+            );
+        }, INCLUDE_FIELD, ObjectParser.ValueType.OBJECT);
+        PARSER.declareString(GeoShapeBuilder::order, ORDER_FIELD);
+        PARSER.declareString(GeoShapeBuilder::after, AFTER_FIELD);
+        PARSER.declareField(
+            (p, builder, c) -> builder.simplifyTimeout(TimeValue.parseTimeValue(p.text(), SIMPLIFY_TIMEOUT_FIELD.getPreferredName())),
+            SIMPLIFY_TIMEOUT_FIELD,
+            ObjectParser.ValueType.VALUE
+        );
+        PARSER.declareStringArray(GeoShapeBuilder::includeTypes, INCLUDE_TYPES_FIELD);
+        PARSER.declareStringArray(GeoShapeBuilder::excludeTypes, EXCLUDE_TYPES_FIELD);
+        PARSER.declareStringArray(GeoShapeBuilder::metrics, METRICS_FIELD);
     }
 
     public static GeoShapeBuilder parse(XContentParser parser, String aggregationName) throws IOException {
         return PARSER.parse(parser, new GeoShapeBuilder(aggregationName), null);
     }
 
+    /**
+     * The original wire layout is understood by every node, the options it can't carry require the compact one.
+     */
     @Override
     public TransportVersion getMinimalSupportedVersion() {
-        return TransportVersion.zero();
+        return compactOnlyOptions().isEmpty() ? TransportVersion.zero() : InternalGeoShape.COMPACT_FORMAT_VERSION;
     }
 
     static class SimplifyKeysParser {
@@ -105,11 +195,42 @@ public class GeoShapeBuilder extends ValuesSourceAggregationBuilder</*ValuesSour
     private GeoUtils.OutputFormat output_format = DEFAULT_OUTPUT_FORMAT;
     private int simplify_zoom = DEFAULT_ZOOM;
     private GeoShape.Algorithm simplify_algorithm = DEFAULT_ALGORITHM;
+    private String hash_field = null;
+    private GeoViewport viewport = null;
+    private String bbox_field = null;
+    private ShapeBudget budget = ShapeBudget.UNLIMITED;
+    private boolean geometry = true;
+    // Sorted, null when the shapes are not filtered on their digest
+    private long[] digests = null;
+    private boolean defer_simplification = false;
+    // Negative for the default of the output format
+    private int decimals = -1;
+    private boolean key_as_object = false;
+    private SubAggCollectionMode collect_mode = SubAggCollectionMode.DEPTH_FIRST;
+    private GeoShape.ExecutionHint execution_hint = GeoShape.ExecutionHint.MAP;
+    // 0 partitions when the shapes are not partitioned
+    private int partition = 0;
+    private int num_partitions = 0;
+    private boolean order_by_digest = false;
+    // The digest of the last shape of the previous page, or null
+    private Long after = null;
+    // The time the shards may spend simplifying before degrading the shapes, or null
+    private TimeValue simplify_timeout = null;
+    // Masks of the WKB geometry types (1 << type) to bucket or not, 0 when not set
+    private int include_types = 0;
+    private int exclude_types = 0;
+    // Mask of the ShapeMetrics computed for each bucket, 0 for none
+    private int metrics = 0;
     private GeoShapeAggregator.BucketCountThresholds bucketCountThresholds = new GeoShapeAggregator.BucketCountThresholds(
         DEFAULT_BUCKET_COUNT_THRESHOLDS
     );
+    // The wire format the request was read in, which the shards send their results back in
+    private byte wire_format = InternalGeoShape.CURRENT_FORMAT;
+
+    // Written where the original layout has the size and the shard size of the request: the size is never negative
+    private static final int FORMAT_MARKER = Integer.MIN_VALUE;
 
-    private GeoShapeBuilder(String name) {
+    GeoShapeBuilder(String name) {
         super(name);
     }
 
@@ -119,23 +240,125 @@ public class GeoShapeBuilder extends ValuesSourceAggregationBuilder</*ValuesSour
      */
     public GeoShapeBuilder(StreamInput in) throws IOException {
         super(in);
-        bucketCountThresholds = new GeoShapeAggregator.BucketCountThresholds(in);
+        final int requiredSize = in.readInt();
+        final int shardSize = in.readInt();
+        if (requiredSize == FORMAT_MARKER && shardSize == FORMAT_MARKER) {
+            wire_format = InternalGeoShape.checkFormat(in.readByte());
+            bucketCountThresholds = new GeoShapeAggregator.BucketCountThresholds(in);
+        } else {
+            wire_format = InternalGeoShape.ORIGINAL_FORMAT;
+            bucketCountThresholds = new GeoShapeAggregator.BucketCountThresholds(requiredSize, shardSize);
+        }
         must_simplify = in.readBoolean();
         output_format = GeoUtils.OutputFormat.valueOf(in.readString());
         simplify_zoom = in.readInt();
         simplify_algorithm = GeoShape.Algorithm.valueOf(in.readString());
+        if (wire_format >= InternalGeoShape.COMPACT_FORMAT) {
+            hash_field = in.readOptionalString();
+            viewport = in.readOptionalWriteable(GeoViewport::new);
+            bbox_field = in.readOptionalString();
+            budget = new ShapeBudget(in);
+            geometry = in.readBoolean();
+            digests = in.readBoolean() ? in.readLongArray() : null;
+            defer_simplification = in.readBoolean();
+            decimals = in.readInt();
+            key_as_object = in.readBoolean();
+            collect_mode = SubAggCollectionMode.readFromStream(in);
+            execution_hint = in.readEnum(GeoShape.ExecutionHint.class);
+            partition = in.readVInt();
+            num_partitions = in.readVInt();
+            order_by_digest = in.readBoolean();
+            after = in.readOptionalLong();
+            simplify_timeout = in.readOptionalTimeValue();
+            include_types = in.readVInt();
+            exclude_types = in.readVInt();
+            metrics = in.readVInt();
+        }
     }
 
     /**
-     * Write to a stream
+     * Write to a stream: in the original layout to the nodes which may not know the compact one, or when the request was
+     * read in it. The options it can't carry are never dropped, the request fails instead.
      */
     @Override
     protected void innerWriteTo(StreamOutput out) throws IOException {
+        final boolean compact = wire_format >= InternalGeoShape.COMPACT_FORMAT
+            && out.getTransportVersion().onOrAfter(InternalGeoShape.COMPACT_FORMAT_VERSION);
+        if (compact == false) {
+            final List<String> options = compactOnlyOptions();
+            if (options.isEmpty() == false) {
+                throw new IllegalArgumentException(
+                    "["
+                        + name
+                        + "] uses the options "
+                        + options
+                        + " which can't be sent to a node on transport version ["
+                        + out.getTransportVersion()
+                        + "]"
+                );
+            }
+        } else {
+            // Then the format version, where the original layout has the simplify flag: it is not a valid boolean
+            out.writeInt(FORMAT_MARKER);
+            out.writeInt(FORMAT_MARKER);
+            out.writeByte(InternalGeoShape.CURRENT_FORMAT);
+        }
         bucketCountThresholds.writeTo(out);
         out.writeBoolean(must_simplify);
         out.writeString(output_format.name());
         out.writeInt(simplify_zoom);
         out.writeString(simplify_algorithm.name());
+        if (compact) {
+            out.writeOptionalString(hash_field);
+            out.writeOptionalWriteable(viewport);
+            out.writeOptionalString(bbox_field);
+            budget.writeTo(out);
+            out.writeBoolean(geometry);
+            out.writeBoolean(digests != null);
+            if (digests != null) {
+                out.writeLongArray(digests);
+            }
+            out.writeBoolean(defer_simplification);
+            out.writeInt(decimals);
+            out.writeBoolean(key_as_object);
+            collect_mode.writeTo(out);
+            out.writeEnum(execution_hint);
+            out.writeVInt(partition);
+            out.writeVInt(num_partitions);
+            out.writeBoolean(order_by_digest);
+            out.writeOptionalLong(after);
+            out.writeOptionalTimeValue(simplify_timeout);
+            out.writeVInt(include_types);
+            out.writeVInt(exclude_types);
+            out.writeVInt(metrics);
+        }
+    }
+
+    /**
+     * The options set which the original wire layout can't carry.
+     */
+    List<String> compactOnlyOptions() {
+        final List<String> options = new ArrayList<>();
+        if (hash_field != null) options.add(HASH_FIELD_FIELD.getPreferredName());
+        if (viewport != null) options.add(BOUNDS_FIELD.getPreferredName());
+        if (bbox_field != null) options.add(BBOX_FIELD_FIELD.getPreferredName());
+        if (budget.getMaxVertices() >= 0) options.add(MAX_VERTICES_FIELD.getPreferredName());
+        if (budget.getMaxBytes() >= 0) options.add(MAX_RESPONSE_BYTES_FIELD.getPreferredName());
+        if (geometry == false) options.add(GEOMETRY_FIELD.getPreferredName());
+        if (digests != null) options.add(DIGESTS_FIELD.getPreferredName());
+        if (defer_simplification) options.add(DEFER_SIMPLIFICATION_FIELD.getPreferredName());
+        if (decimals >= 0) options.add(DECIMALS_FIELD.getPreferredName());
+        if (key_as_object) options.add(KEY_AS_OBJECT_FIELD.getPreferredName());
+        if (collect_mode != SubAggCollectionMode.DEPTH_FIRST) options.add(SubAggCollectionMode.KEY.getPreferredName());
+        if (execution_hint != GeoShape.ExecutionHint.MAP) options.add(EXECUTION_HINT_FIELD.getPreferredName());
+        if (num_partitions > 0) options.add(INCLUDE_FIELD.getPreferredName());
+        if (order_by_digest) options.add(ORDER_FIELD.getPreferredName());
+        if (after != null) options.add(AFTER_FIELD.getPreferredName());
+        if (simplify_timeout != null) options.add(SIMPLIFY_TIMEOUT_FIELD.getPreferredName());
+        if (include_types != 0) options.add(INCLUDE_TYPES_FIELD.getPreferredName());
+        if (exclude_types != 0) options.add(EXCLUDE_TYPES_FIELD.getPreferredName());
+        if (metrics != 0) options.add(METRICS_FIELD.getPreferredName());
+        return options;
     }
 
     private GeoShapeBuilder(GeoShapeBuilder clone, Builder factoriesBuilder, Map<String, Object> metaData) {
@@ -144,6 +367,26 @@ public class GeoShapeBuilder extends ValuesSourceAggregationBuilder</*ValuesSour
         must_simplify = clone.must_simplify;
         simplify_zoom = clone.simplify_zoom;
         simplify_algorithm = clone.simplify_algorithm;
+        hash_field = clone.hash_field;
+        viewport = clone.viewport;
+        bbox_field = clone.bbox_field;
+        budget = clone.budget;
+        geometry = clone.geometry;
+        digests = clone.digests;
+        defer_simplification = clone.defer_simplification;
+        decimals = clone.decimals;
+        key_as_object = clone.key_as_object;
+        collect_mode = clone.collect_mode;
+        execution_hint = clone.execution_hint;
+        partition = clone.partition;
+        num_partitions = clone.num_partitions;
+        order_by_digest = clone.order_by_digest;
+        after = clone.after;
+        simplify_timeout = clone.simplify_timeout;
+        include_types = clone.include_types;
+        exclude_types = clone.exclude_types;
+        metrics = clone.metrics;
+        wire_format = clone.wire_format;
         this.bucketCountThresholds = new GeoShapeAggregator.BucketCountThresholds(clone.bucketCountThresholds);
     }
 
@@ -204,6 +447,310 @@ public class GeoShapeBuilder extends ValuesSourceAggregationBuilder</*ValuesSour
         return this;
     }
 
+    /**
+     * Sets the hash_field - the keyword (or long) field holding the shape digest computed by the
+     * `geo_extension` processor. When set, shapes are bucketed by this digest instead of their full WKB.
+     */
+    public GeoShapeBuilder hashField(String hashField) {
+        this.hash_field = hashField;
+        return this;
+    }
+
+    /**
+     * Sets the viewport - only the shapes intersecting it are bucketed, and they are clipped to it.
+     */
+    public GeoShapeBuilder viewport(GeoViewport viewport) {
+        this.viewport = viewport;
+        return this;
+    }
+
+    private GeoShapeBuilder bounds(GeoBoundingBox bounds) {
+        return viewport(new GeoViewport(bounds.top(), bounds.left(), bounds.bottom(), bounds.right()));
+    }
+
+    /**
+     * Sets the viewport to the bounds of a web mercator tile, given as `zoom/x/y`.
+     */
+    public GeoShapeBuilder tile(String tile) {
+        return viewport(GeoViewport.fromTile(tile));
+    }
+
+    /**
+     * Sets the bbox_field - the geo_point field holding the corners of the shape envelope computed by the
+     * `geo_extension` processor, used to cull the shapes outside of the viewport without reading them.
+     */
+    public GeoShapeBuilder bboxField(String bboxField) {
+        this.bbox_field = bboxField;
+        return this;
+    }
+
+    /**
+     * Sets the max_vertices - the maximum total number of vertices of the returned shapes. They are simplified further,
+     * one zoom level at a time, until they fit.
+     */
+    public GeoShapeBuilder maxVertices(int maxVertices) {
+        if (maxVertices <= 0) {
+            throw new IllegalArgumentException("[max_vertices] must be greater than 0. Found [" + maxVertices + "] in [" + name + "]");
+        }
+        this.budget = budget.withMaxVertices(maxVertices);
+        return this;
+    }
+
+    /**
+     * Sets the max_response_bytes - the maximum total size of the returned shapes, measured on their WKB. They are
+     * simplified further, one zoom level at a time, until they fit.
+     */
+    public GeoShapeBuilder maxResponseBytes(long maxResponseBytes) {
+        if (maxResponseBytes <= 0) {
+            throw new IllegalArgumentException(
+                "[max_response_bytes] must be greater than 0. Found [" + maxResponseBytes + "] in [" + name + "]"
+            );
+        }
+        this.budget = budget.withMaxBytes(maxResponseBytes);
+        return this;
+    }
+
+    /**
+     * Sets the geometry flag - when false, the buckets only hold the digest, the type (when known) and the doc count of
+     * the shapes: no shape is loaded, simplified nor sent by the shards. Default to true.
+     */
+    public GeoShapeBuilder geometry(boolean geometry) {
+        this.geometry = geometry;
+        return this;
+    }
+
+    /**
+     * Sets the digests - only the shapes which digest (as returned in the `digest` of the buckets) is one of these are
+     * bucketed. Used to fetch the geometries of the buckets picked by a first request without geometries.
+     */
+    public GeoShapeBuilder digests(List<String> digests) {
+        long[] parsed = new long[digests.size()];
+        for (int i = 0; i < parsed.length; i++) {
+            try {
+                parsed[i] = Long.parseLong(digests.get(i));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid digest [" + digests.get(i) + "] in [" + name + "]", e);
+            }
+        }
+        Arrays.sort(parsed);
+        this.digests = parsed;
+        return this;
+    }
+
+    /**
+     * Sets the defer_simplification flag - when true, the shards only clip the shapes and send them with a precision
+     * derived from the simplification zoom: they are simplified once, on the coordinating node, after the buckets of
+     * all the shards are merged. Default to false.
+     */
+    public GeoShapeBuilder deferSimplification(boolean deferSimplification) {
+        this.defer_simplification = deferSimplification;
+        return this;
+    }
+
+    /**
+     * Sets the decimals - the number of decimals of the coordinates of the keys. Default to 8 for GeoJSON and 16 for WKT.
+     */
+    public GeoShapeBuilder decimals(int decimals) {
+        if (decimals < 0 || decimals > WkbTextWriter.MAX_DECIMALS) {
+            throw new IllegalArgumentException(
+                "[decimals] must be between 0 and " + WkbTextWriter.MAX_DECIMALS + ". Found [" + decimals + "] in [" + name + "]"
+            );
+        }
+        this.decimals = decimals;
+        return this;
+    }
+
+    /**
+     * Sets the key_as_object flag - when true, the GeoJSON keys are written as geometry objects rather than strings.
+     * Default to false.
+     */
+    public GeoShapeBuilder keyAsObject(boolean keyAsObject) {
+        this.key_as_object = keyAsObject;
+        return this;
+    }
+
+    /**
+     * Sets the collect_mode - with breadth_first, the docs of each shape are recorded while collecting, and the
+     * sub-aggregations only collect them for the shapes kept in the top shard_size. Default to depth_first.
+     */
+    public GeoShapeBuilder collectMode(SubAggCollectionMode collectMode) {
+        if (collectMode == null) {
+            throw new IllegalArgumentException("[collect_mode] must not be null: [" + name + "]");
+        }
+        this.collect_mode = collectMode;
+        return this;
+    }
+
+    /**
+     * Sets the execution_hint - with bounded, only the top shard_size shapes are kept while collecting, so that the
+     * memory of the aggregation doesn't depend on the number of distinct shapes. Default to map.
+     */
+    public GeoShapeBuilder executionHint(String executionHint) {
+        try {
+            this.execution_hint = GeoShape.ExecutionHint.valueOf(executionHint.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                "["
+                    + EXECUTION_HINT_FIELD.getPreferredName()
+                    + "] must be one of [map, bounded]. Found ["
+                    + executionHint
+                    + "] in ["
+                    + name
+                    + "]",
+                e
+            );
+        }
+        return this;
+    }
+
+    /**
+     * Sets the partition - only the shapes which digest falls in the given partition, out of num_partitions, are
+     * bucketed. Used to go through all the shapes in several requests, as with the `terms` aggregation.
+     */
+    public GeoShapeBuilder partition(int partition, int numPartitions) {
+        if (numPartitions <= 0 || partition < 0 || partition >= numPartitions) {
+            throw new IllegalArgumentException(
+                "[partition] must be between 0 and [num_partitions] - 1, and [num_partitions] greater than 0. Found ["
+                    + partition
+                    + "] and ["
+                    + numPartitions
+                    + "] in ["
+                    + name
+                    + "]"
+            );
+        }
+        this.partition = partition;
+        this.num_partitions = numPartitions;
+        return this;
+    }
+
+    /**
+     * Sets the order - `perimeter` returns the largest shapes first, `digest` the shapes by increasing digest, so that
+     * they can be paged through with `after`. Default to perimeter.
+     */
+    public GeoShapeBuilder order(String order) {
+        switch (order) {
+            case "perimeter" -> this.order_by_digest = false;
+            case "digest" -> this.order_by_digest = true;
+            default -> throw new IllegalArgumentException(
+                "[" + ORDER_FIELD.getPreferredName() + "] must be one of [perimeter, digest]. Found [" + order + "] in [" + name + "]"
+            );
+        }
+        return this;
+    }
+
+    /**
+     * Sets the after digest - with the digest order, only the shapes which digest is greater are bucketed. Given the
+     * `after_key` of a response, returns the next page.
+     */
+    public GeoShapeBuilder after(String after) {
+        try {
+            this.after = Long.parseLong(after);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                "Invalid [" + AFTER_FIELD.getPreferredName() + "] digest [" + after + "] in [" + name + "]",
+                e
+            );
+        }
+        return this;
+    }
+
+    /**
+     * Sets the simplify_timeout - the time each shard may spend simplifying its shapes. Past it, the remaining shapes are
+     * simplified with Douglas-Peucker, and the shapes that don't fit in the budget collapse to points rather than being
+     * simplified one zoom level at a time.
+     */
+    public GeoShapeBuilder simplifyTimeout(TimeValue simplifyTimeout) {
+        if (simplifyTimeout.nanos() < 0) {
+            throw new IllegalArgumentException(
+                "["
+                    + SIMPLIFY_TIMEOUT_FIELD.getPreferredName()
+                    + "] must not be negative. Found ["
+                    + simplifyTimeout
+                    + "] in ["
+                    + name
+                    + "]"
+            );
+        }
+        this.simplify_timeout = simplifyTimeout;
+        return this;
+    }
+
+    /**
+     * Sets the include_types - only the shapes of these geometry types (e.g. Polygon, MultiPolygon) are bucketed. The
+     * type is read from the WKB header of the shapes when they are collected.
+     */
+    public GeoShapeBuilder includeTypes(List<String> includeTypes) {
+        this.include_types = parseTypes(includeTypes, INCLUDE_TYPES_FIELD);
+        return this;
+    }
+
+    /**
+     * Sets the exclude_types - the shapes of these geometry types are not bucketed.
+     */
+    public GeoShapeBuilder excludeTypes(List<String> excludeTypes) {
+        this.exclude_types = parseTypes(excludeTypes, EXCLUDE_TYPES_FIELD);
+        return this;
+    }
+
+    private int parseTypes(List<String> types, ParseField field) {
+        int mask = 0;
+        for (String type : types) {
+            try {
+                mask |= 1 << GeoUtils.getWkbType(type);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                    "[" + field.getPreferredName() + "] must be geometry types. Found [" + type + "] in [" + name + "]",
+                    e
+                );
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * The mask of the WKB geometry types to bucket.
+     */
+    private int geometryTypes() {
+        return (include_types == 0 ? GeoUtils.ALL_WKB_TYPES : include_types) & ~exclude_types;
+    }
+
+    /**
+     * Sets the metrics - figures of the shape of each bucket (bbox, centroid, area, vertices), computed once per bucket
+     * on the shards from the full shape, rather than for every doc by sub-aggregations.
+     */
+    public GeoShapeBuilder metrics(List<String> metrics) {
+        int mask = 0;
+        for (String metric : metrics) {
+            try {
+                mask |= ShapeMetrics.Metric.fromString(metric).bit();
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                    "["
+                        + METRICS_FIELD.getPreferredName()
+                        + "] must be in [bbox, centroid, area, vertices]. Found ["
+                        + metric
+                        + "] in ["
+                        + name
+                        + "]",
+                    e
+                );
+            }
+        }
+        this.metrics = mask;
+        return this;
+    }
+
+    private void writeTypes(XContentBuilder builder, ParseField field, int mask) throws IOException {
+        builder.startArray(field.getPreferredName());
+        for (int type = 1; type <= 7; type++) {
+            if ((mask & (1 << type)) != 0) {
+                builder.value(GeoUtils.getWkbTypeName(type));
+            }
+        }
+        builder.endArray();
+    }
+
     @Override
     protected ValuesSourceAggregatorFactory innerBuild(
         AggregationContext queryShardContext,
@@ -211,13 +758,54 @@ public class GeoShapeBuilder extends ValuesSourceAggregationBuilder</*ValuesSour
         AggregatorFactory parent,
         AggregatorFactories.Builder subFactoriesBuilder
     ) throws IOException {
+        if (output_format == GeoUtils.OutputFormat.MVT && viewport == null) {
+            throw new IllegalArgumentException(
+                "[" + OUTPUT_FORMAT_FIELD.getPreferredName() + "] mvt requires a [" + TILE_FIELD.getPreferredName() + "] in [" + name + "]"
+            );
+        }
+        if (key_as_object && output_format != GeoUtils.OutputFormat.GEOJSON) {
+            throw new IllegalArgumentException(
+                "["
+                    + KEY_AS_OBJECT_FIELD.getPreferredName()
+                    + "] requires the geojson ["
+                    + OUTPUT_FORMAT_FIELD.getPreferredName()
+                    + "] in ["
+                    + name
+                    + "]"
+            );
+        }
+        if (execution_hint == GeoShape.ExecutionHint.BOUNDED && subFactoriesBuilder.count() > 0) {
+            throw new IllegalArgumentException(
+                "[" + EXECUTION_HINT_FIELD.getPreferredName() + "] bounded doesn't support sub-aggregations in [" + name + "]"
+            );
+        }
+        if (after != null && order_by_digest == false) {
+            throw new IllegalArgumentException(
+                "[" + AFTER_FIELD.getPreferredName() + "] requires the digest [" + ORDER_FIELD.getPreferredName() + "] in [" + name + "]"
+            );
+        }
+        if (metrics != 0 && geometry == false) {
+            throw new IllegalArgumentException(
+                "[" + METRICS_FIELD.getPreferredName() + "] requires the [" + GEOMETRY_FIELD.getPreferredName() + "] in [" + name + "]"
+            );
+        }
+        if (geometryTypes() == 0) {
+            throw new IllegalArgumentException(
+                "["
+                    + INCLUDE_TYPES_FIELD.getPreferredName()
+                    + "] and ["
+                    + EXCLUDE_TYPES_FIELD.getPreferredName()
+                    + "] exclude every geometry type in ["
+                    + name
+                    + "]"
+            );
+        }
+        GeoShapeAggregatorSupplier aggregatorSupplier = queryShardContext.getValuesSourceRegistry().getAggregator(REGISTRY_KEY, config);
         return new GeoShapeAggregatorFactory(
             name,
             config,
-            output_format,
-            must_simplify,
-            simplify_zoom,
-            simplify_algorithm,
+            aggregatorSupplier,
+            options(),
             bucketCountThresholds,
             queryShardContext,
             parent,
@@ -226,6 +814,37 @@ public class GeoShapeBuilder extends ValuesSourceAggregationBuilder</*ValuesSour
         );
     }
 
+    /**
+     * The options of the aggregators, once validated.
+     */
+    GeoShapeOptions options() {
+        return new GeoShapeOptions(
+            output_format,
+            must_simplify,
+            simplify_zoom,
+            simplify_algorithm,
+            hash_field,
+            viewport,
+            bbox_field,
+            budget,
+            geometry,
+            digests,
+            defer_simplification,
+            decimals,
+            key_as_object,
+            collect_mode,
+            execution_hint,
+            partition,
+            num_partitions,
+            order_by_digest,
+            after,
+            simplify_timeout,
+            geometryTypes(),
+            metrics,
+            wire_format
+        );
+    }
+
     @Override
     protected XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
         builder.startObject();
@@ -233,6 +852,79 @@ public class GeoShapeBuilder extends ValuesSourceAggregationBuilder</*ValuesSour
         if (!output_format.equals(DEFAULT_OUTPUT_FORMAT)) {
             builder.field(OUTPUT_FORMAT_FIELD.getPreferredName(), output_format);
         }
+        if (hash_field != null) {
+            builder.field(HASH_FIELD_FIELD.getPreferredName(), hash_field);
+        }
+        if (viewport != null) {
+            builder.startObject(BOUNDS_FIELD.getPreferredName());
+            builder.array("top_left", viewport.left(), viewport.top());
+            builder.array("bottom_right", viewport.right(), viewport.bottom());
+            builder.endObject();
+        }
+        if (bbox_field != null) {
+            builder.field(BBOX_FIELD_FIELD.getPreferredName(), bbox_field);
+        }
+        if (budget.getMaxVertices() >= 0) {
+            builder.field(MAX_VERTICES_FIELD.getPreferredName(), budget.getMaxVertices());
+        }
+        if (budget.getMaxBytes() >= 0) {
+            builder.field(MAX_RESPONSE_BYTES_FIELD.getPreferredName(), budget.getMaxBytes());
+        }
+        if (geometry == false) {
+            builder.field(GEOMETRY_FIELD.getPreferredName(), geometry);
+        }
+        if (digests != null) {
+            builder.startArray(DIGESTS_FIELD.getPreferredName());
+            for (long digest : digests) {
+                builder.value(String.valueOf(digest));
+            }
+            builder.endArray();
+        }
+        if (defer_simplification) {
+            builder.field(DEFER_SIMPLIFICATION_FIELD.getPreferredName(), defer_simplification);
+        }
+        if (decimals >= 0) {
+            builder.field(DECIMALS_FIELD.getPreferredName(), decimals);
+        }
+        if (key_as_object) {
+            builder.field(KEY_AS_OBJECT_FIELD.getPreferredName(), key_as_object);
+        }
+        if (collect_mode != SubAggCollectionMode.DEPTH_FIRST) {
+            builder.field(SubAggCollectionMode.KEY.getPreferredName(), collect_mode.parseField().getPreferredName());
+        }
+        if (execution_hint != GeoShape.ExecutionHint.MAP) {
+            builder.field(EXECUTION_HINT_FIELD.getPreferredName(), execution_hint.name().toLowerCase(Locale.ROOT));
+        }
+        if (num_partitions > 0) {
+            builder.startObject(INCLUDE_FIELD.getPreferredName());
+            builder.field(PARTITION_FIELD.getPreferredName(), partition);
+            builder.field(NUM_PARTITIONS_FIELD.getPreferredName(), num_partitions);
+            builder.endObject();
+        }
+        if (order_by_digest) {
+            builder.field(ORDER_FIELD.getPreferredName(), "digest");
+        }
+        if (after != null) {
+            builder.field(AFTER_FIELD.getPreferredName(), String.valueOf(after));
+        }
+        if (simplify_timeout != null) {
+            builder.field(SIMPLIFY_TIMEOUT_FIELD.getPreferredName(), simplify_timeout.getStringRep());
+        }
+        if (include_types != 0) {
+            writeTypes(builder, INCLUDE_TYPES_FIELD, include_types);
+        }
+        if (exclude_types != 0) {
+            writeTypes(builder, EXCLUDE_TYPES_FIELD, exclude_types);
+        }
+        if (metrics != 0) {
+            builder.startArray(METRICS_FIELD.getPreferredName());
+            for (ShapeMetrics.Metric metric : ShapeMetrics.Metric.values()) {
+                if (ShapeMetrics.has(metrics, metric)) {
+                    builder.value(metric.toString());
+                }
+            }
+            builder.endArray();
+        }
 
         return builder.endObject();
     }
@@ -242,7 +934,33 @@ public class GeoShapeBuilder extends ValuesSourceAggregationBuilder</*ValuesSour
      */
     @Override
     public int hashCode() {
-        return Objects.hash(super.hashCode(), output_format, must_simplify, simplify_zoom, simplify_algorithm, bucketCountThresholds);
+        return Objects.hash(
+            super.hashCode(),
+            output_format,
+            must_simplify,
+            simplify_zoom,
+            simplify_algorithm,
+            hash_field,
+            viewport,
+            bbox_field,
+            budget,
+            geometry,
+            Arrays.hashCode(digests),
+            defer_simplification,
+            decimals,
+            key_as_object,
+            collect_mode,
+            execution_hint,
+            partition,
+            num_partitions,
+            order_by_digest,
+            after,
+            simplify_timeout,
+            include_types,
+            exclude_types,
+            metrics,
+            bucketCountThresholds
+        );
     }
 
     @Override
@@ -256,6 +974,25 @@ public class GeoShapeBuilder extends ValuesSourceAggregationBuilder</*ValuesSour
             && Objects.equals(must_simplify, other.must_simplify)
             && Objects.equals(simplify_zoom, other.simplify_zoom)
             && Objects.equals(simplify_algorithm, other.simplify_algorithm)
+            && Objects.equals(hash_field, other.hash_field)
+            && Objects.equals(viewport, other.viewport)
+            && Objects.equals(bbox_field, other.bbox_field)
+            && Objects.equals(budget, other.budget)
+            && geometry == other.geometry
+            && Arrays.equals(digests, other.digests)
+            && defer_simplification == other.defer_simplification
+            && decimals == other.decimals
+            && key_as_object == other.key_as_object
+            && collect_mode == other.collect_mode
+            && execution_hint == other.execution_hint
+            && partition == other.partition
+            && num_partitions == other.num_partitions
+            && order_by_digest == other.order_by_digest
+            && Objects.equals(after, other.after)
+            && Objects.equals(simplify_timeout, other.simplify_timeout)
+            && include_types == other.include_types
+            && exclude_types == other.exclude_types
+            && metrics == other.metrics
             && Objects.equals(bucketCountThresholds, other.bucketCountThresholds);
     }
 
@@ -264,7 +1001,36 @@ public class GeoShapeBuilder extends ValuesSourceAggregationBuilder</*ValuesSour
         return NAME;
     }
 
-    public static void registerAggregators(ValuesSourceRegistry.Builder builder) {
-        builder.register(GeoShapeBuilder.REGISTRY_KEY, CoreValuesSourceType.KEYWORD, GeoShapeAggregator::new, true);
+    public static void registerAggregators(ValuesSourceRegistry.Builder builder, GeoShapeServices services) {
+        builder.register(
+            GeoShapeBuilder.REGISTRY_KEY,
+            CoreValuesSourceType.KEYWORD,
+            (
+                name,
+                factories,
+                context,
+                valuesSource,
+                options,
+                hashFieldData,
+                bboxFieldData,
+                bucketCountThresholds,
+                parent,
+                cardinalityUpperBound,
+                metadata) -> new GeoShapeAggregator(
+                    name,
+                    factories,
+                    context,
+                    valuesSource,
+                    options,
+                    hashFieldData,
+                    bboxFieldData,
+                    bucketCountThresholds,
+                    services,
+                    parent,
+                    cardinalityUpperBound,
+                    metadata
+                ),
+            true
+        );
     }
 }
@@ -0,0 +1,140 @@
+package org.opendatasoft.elasticsearch.search.aggregations.bucket.geoshape;
+
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.search.aggregations.Aggregator.SubAggCollectionMode;
+import org.opendatasoft.elasticsearch.plugin.GeoUtils;
+import org.opendatasoft.elasticsearch.plugin.GeoViewport;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The options of a geoshape aggregation, as validated by the {@link GeoShapeBuilder}, handed down to its factory and to
+ * the aggregators of every shard.
+ *
+ * @param outputFormat        the format of the keys
+ * @param mustSimplify        whether the shapes are simplified
+ * @param zoom                the zoom level the shapes are simplified for
+ * @param algorithm           the simplification algorithm
+ * @param hashField           the field holding the digest of the shapes, or null to key them on their WKB
+ * @param viewport            the viewport the shapes are clipped to, or null
+ * @param bboxField           the geo_point field holding the envelope of the shapes, or null
+ * @param budget              the limits of the returned shapes
+ * @param geometry            whether the shapes are returned, or only their digest
+ * @param digests             the only digests to bucket (sorted), or null
+ * @param deferSimplification whether the shapes are simplified on the coordinating node
+ * @param decimals            the number of decimals of the keys, negative for the default of the output format
+ * @param keyAsObject         whether the GeoJSON keys are objects
+ * @param collectMode         the collect mode of the sub-aggregations
+ * @param executionHint       how the shapes are kept while collecting
+ * @param partition           the partition of the digests to bucket, out of numPartitions
+ * @param numPartitions       the number of partitions, 0 when not partitioned
+ * @param orderByDigest       whether the shapes are ranked on their digest rather than their perimeter
+ * @param after               with the digest order, the digest to bucket the shapes after, or null
+ * @param simplifyTimeout     the time the shards may spend simplifying, or null
+ * @param geometryTypes       the mask of the WKB geometry types to bucket (1 &lt;&lt; type)
+ * @param metrics             the mask of the {@link ShapeMetrics} of each bucket, 0 for none
+ * @param wireFormat          the wire format of the request, which the shard results are sent back in
+ */
+public record GeoShapeOptions(
+    GeoUtils.OutputFormat outputFormat,
+    boolean mustSimplify,
+    int zoom,
+    GeoShape.Algorithm algorithm,
+    String hashField,
+    GeoViewport viewport,
+    String bboxField,
+    ShapeBudget budget,
+    boolean geometry,
+    long[] digests,
+    boolean deferSimplification,
+    int decimals,
+    boolean keyAsObject,
+    SubAggCollectionMode collectMode,
+    GeoShape.ExecutionHint executionHint,
+    int partition,
+    int numPartitions,
+    boolean orderByDigest,
+    Long after,
+    TimeValue simplifyTimeout,
+    int geometryTypes,
+    int metrics,
+    byte wireFormat
+) {
+
+    public GeoShapeOptions {
+        Objects.requireNonNull(outputFormat);
+        Objects.requireNonNull(algorithm);
+        Objects.requireNonNull(budget);
+        Objects.requireNonNull(collectMode);
+        Objects.requireNonNull(executionHint);
+        // Shared by the aggregators of every shard: never modified once copied
+        digests = digests == null ? null : digests.clone();
+    }
+
+    /**
+     * Whether the shapes are filtered on their digest, by the digests, the partition or the after digest.
+     */
+    boolean filterDigests() {
+        return digests != null || numPartitions > 0 || after != null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GeoShapeOptions that = (GeoShapeOptions) o;
+        return outputFormat == that.outputFormat
+            && mustSimplify == that.mustSimplify
+            && zoom == that.zoom
+            && algorithm == that.algorithm
+            && Objects.equals(hashField, that.hashField)
+            && Objects.equals(viewport, that.viewport)
+            && Objects.equals(bboxField, that.bboxField)
+            && budget.equals(that.budget)
+            && geometry == that.geometry
+            && Arrays.equals(digests, that.digests)
+            && deferSimplification == that.deferSimplification
+            && decimals == that.decimals
+            && keyAsObject == that.keyAsObject
+            && collectMode == that.collectMode
+            && executionHint == that.executionHint
+            && partition == that.partition
+            && numPartitions == that.numPartitions
+            && orderByDigest == that.orderByDigest
+            && Objects.equals(after, that.after)
+            && Objects.equals(simplifyTimeout, that.simplifyTimeout)
+            && geometryTypes == that.geometryTypes
+            && metrics == that.metrics
+            && wireFormat == that.wireFormat;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(
+            outputFormat,
+            mustSimplify,
+            zoom,
+            algorithm,
+            hashField,
+            viewport,
+            bboxField,
+            budget,
+            geometry,
+            Arrays.hashCode(digests),
+            deferSimplification,
+            decimals,
+            keyAsObject,
+            collectMode,
+            executionHint,
+            partition,
+            numPartitions,
+            orderByDigest,
+            after,
+            simplifyTimeout,
+            geometryTypes,
+            metrics,
+            wireFormat
+        );
+    }
+}
@@ -2,10 +2,17 @@ package org.opendatasoft.elasticsearch.search.aggregations.bucket.geoshape;
 
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.PriorityQueue;
+import org.elasticsearch.TransportVersion;
+import org.elasticsearch.TransportVersions;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.io.stream.Writeable;
 import org.elasticsearch.common.util.LongObjectPagedHashMap;
+import org.elasticsearch.core.Releasable;
+import org.elasticsearch.core.Releasables;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.search.aggregations.Aggregation;
 import org.elasticsearch.search.aggregations.AggregationReduceContext;
 import org.elasticsearch.search.aggregations.AggregatorReducer;
@@ -13,17 +20,30 @@ import org.elasticsearch.search.aggregations.InternalAggregation;
 import org.elasticsearch.search.aggregations.InternalAggregations;
 import org.elasticsearch.search.aggregations.InternalMultiBucketAggregation;
 import org.elasticsearch.search.aggregations.KeyComparable;
+import org.elasticsearch.search.aggregations.bucket.BucketReducer;
 import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.tasks.TaskCancelledException;
 import org.elasticsearch.xcontent.ToXContentFragment;
 import org.elasticsearch.xcontent.XContentBuilder;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.io.ParseException;
-import org.locationtech.jts.io.geojson.GeoJsonWriter;
+import org.locationtech.jts.io.WKBWriter;
+import org.opendatasoft.elasticsearch.plugin.CompactShapeCodec;
+import org.opendatasoft.elasticsearch.plugin.GeoShapeServices;
 import org.opendatasoft.elasticsearch.plugin.GeoUtils;
 import org.opendatasoft.elasticsearch.plugin.GeoUtils.OutputFormat;
+import org.opendatasoft.elasticsearch.plugin.GeoViewport;
+import org.opendatasoft.elasticsearch.plugin.SimplifiedShapeCache;
+import org.opendatasoft.elasticsearch.plugin.VectorTileWriter;
+import org.opendatasoft.elasticsearch.plugin.WkbDecoder;
+import org.opendatasoft.elasticsearch.plugin.WkbScanner;
+import org.opendatasoft.elasticsearch.plugin.WkbTextWriter;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -35,6 +55,35 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
     implements
         GeoShape {
 
+    /**
+     * The layouts of the geoshape requests and results on the wire. The original layout has no format version: the
+     * later ones start with a header where it has its first fields, which an older build fails to read rather than
+     * misreading what follows. A shard sends its results in the layout of the request.
+     */
+    static final byte ORIGINAL_FORMAT = 1;
+    // The buckets in the compact format, and the aggregation with its options, budget and tolerance
+    static final byte COMPACT_FORMAT = 2;
+    static final byte CURRENT_FORMAT = COMPACT_FORMAT;
+
+    /**
+     * The transport version of the first Elasticsearch release this plugin was built for with the compact layout: the
+     * nodes on an older one may only know the original layout, and the requests are sent to them in it. It is fixed
+     * rather than the current version, which moves with every release the plugin is built for and would send the
+     * requests of a rolling upgrade in the original layout. The layout itself is read from the header, not inferred
+     * from the transport version: a build which doesn't know it fails to read the header rather than misreading it.
+     */
+    static final TransportVersion COMPACT_FORMAT_VERSION = TransportVersions.INITIAL_ELASTICSEARCH_8_19;
+
+    /**
+     * Check the format version read from a header.
+     */
+    static byte checkFormat(byte format) throws IOException {
+        if (format <= ORIGINAL_FORMAT || format > CURRENT_FORMAT) {
+            throw new IOException("Unknown geoshape wire format [" + format + "], this build reads up to [" + CURRENT_FORMAT + "]");
+        }
+        return format;
+    }
+
     /**
      * The bucket class of InternalGeoShape.
      * @see MultiBucketsAggregation.Bucket
@@ -46,17 +95,32 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
             GeoShape.Bucket,
             KeyComparable<InternalBucket> {
 
+        // The JTS names of the WKB geometry types, indexed by their WKB code
+        private static final String[] TYPES = {
+            null,
+            "Point",
+            "LineString",
+            "Polygon",
+            "MultiPoint",
+            "MultiLineString",
+            "MultiPolygon",
+            "GeometryCollection" };
+
         protected BytesRef wkb;
-        protected String wkbHash;
+        protected long wkbHash;
         protected String realType;
+        // The perimeter of the full shape, which ranks it: never updated once the shape is clipped or simplified, so
+        // that it ranks the same on every shard and at every reduce
         protected double perimeter;
         long bucketOrd;
         protected long docCount;
         protected InternalAggregations subAggregations;
+        // The figures of the full shape, when requested
+        protected ShapeMetrics metrics;
 
         public InternalBucket(
             BytesRef wkb,
-            String wkbHash,
+            long wkbHash,
             String realType,
             double perimeter,
             long docCount,
@@ -71,30 +135,78 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
         }
 
         /**
-         * Read from a stream.
+         * Read from a stream, in the given wire format.
          */
-        public InternalBucket(StreamInput in) throws IOException {
-            wkb = in.readBytesRef();
-            wkbHash = in.readString();
-            realType = in.readString();
-            perimeter = in.readDouble();
-            docCount = in.readLong();
+        InternalBucket(StreamInput in, byte format) throws IOException {
+            if (format >= COMPACT_FORMAT) {
+                wkb = CompactShapeCodec.read(in);
+                wkbHash = in.readLong();
+                realType = readType(in);
+                perimeter = in.readDouble();
+                docCount = in.readVLong();
+                metrics = in.readOptionalWriteable(ShapeMetrics::new);
+            } else {
+                wkb = in.readBytesRef();
+                wkbHash = Long.parseLong(in.readString());
+                realType = in.readString();
+                perimeter = in.readDouble();
+                docCount = in.readLong();
+            }
             subAggregations = InternalAggregations.readFrom(in);
         }
 
         /**
-         * Write to a stream.
+         * Write to a stream, in the current wire format with the coordinates kept as is.
          */
         @Override
         public void writeTo(StreamOutput out) throws IOException {
-            out.writeBytesRef(wkb);
-            out.writeString(wkbHash);
-            out.writeString(realType);
-            out.writeDouble(perimeter);
-            out.writeLong(docCount);
+            writeTo(out, CURRENT_FORMAT, -1);
+        }
+
+        /**
+         * Write to a stream in the given wire format, with the coordinates rounded to the given number of decimals (kept
+         * as is if negative, and always in the original format).
+         */
+        void writeTo(StreamOutput out, byte format, int decimals) throws IOException {
+            if (format >= COMPACT_FORMAT) {
+                CompactShapeCodec.write(out, wkb, decimals);
+                out.writeLong(wkbHash);
+                writeType(out, realType);
+                out.writeDouble(perimeter);
+                out.writeVLong(docCount);
+                out.writeOptionalWriteable(metrics);
+            } else {
+                out.writeBytesRef(wkb);
+                out.writeString(String.valueOf(wkbHash));
+                out.writeString(realType);
+                out.writeDouble(perimeter);
+                out.writeLong(docCount);
+            }
             subAggregations.writeTo(out);
         }
 
+        private static void writeType(StreamOutput out, String type) throws IOException {
+            for (byte code = 1; code < TYPES.length; code++) {
+                if (TYPES[code].equals(type)) {
+                    out.writeByte(code);
+                    return;
+                }
+            }
+            out.writeByte((byte) 0);
+            out.writeOptionalString(type);
+        }
+
+        private static String readType(StreamInput in) throws IOException {
+            byte code = in.readByte();
+            if (code == 0) {
+                return in.readOptionalString();
+            }
+            if (code < 0 || code >= TYPES.length) {
+                throw new IOException("Unknown geometry type [" + code + "]");
+            }
+            return TYPES[code];
+        }
+
         @Override
         public String getKey() {
             return wkb.toString();
@@ -111,7 +223,7 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
         }
 
         private long getShapeHash() {
-            return wkb.hashCode();
+            return wkbHash;
         }
 
         private String getType() {
@@ -145,6 +257,24 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
             return builder;
         }
 
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (obj == null || getClass() != obj.getClass()) return false;
+            InternalBucket that = (InternalBucket) obj;
+            return wkbHash == that.wkbHash
+                && docCount == that.docCount
+                && Double.compare(perimeter, that.perimeter) == 0
+                && Objects.equals(wkb, that.wkb)
+                && Objects.equals(realType, that.realType)
+                && Objects.equals(metrics, that.metrics)
+                && Objects.equals(subAggregations, that.subAggregations);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(wkb, wkbHash, realType, perimeter, docCount, metrics, subAggregations);
+        }
     }
 
     private List<InternalBucket> buckets;
@@ -154,7 +284,26 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
     // `shard_size` at the shard). Exact: each shard knows precisely how many docs it dropped.
     private final long otherDocCount;
     private OutputFormat output_format;
-    private GeoJsonWriter geoJsonWriter;
+    private final ShapeBudget budget;
+    private final GeoShape.Algorithm algorithm;
+    // The tolerance the shapes were simplified with, 0 if they were not
+    private final double tolerance;
+    // The tolerance the shapes are to be simplified with at the final reduce, 0 if the shards did it
+    private final double deferredTolerance;
+    // The viewport the vector tile covers, for the MVT output format
+    private final GeoViewport viewport;
+    // Number of decimals of the coordinates of the keys, negative for the default of the output format
+    private final int decimals;
+    // GeoJSON keys written as geometry objects rather than strings
+    private final boolean keyAsObject;
+    // The buckets are ordered on their digest rather than their perimeter, to be paged through with `after`
+    private final boolean orderByDigest;
+    // A shard ran out of its simplify timeout: some shapes are simplified with the cheaper algorithm, or collapsed
+    private final boolean simplifyTimedOut;
+    // The wire format of the request, which the aggregation is sent back in
+    private final byte wireFormat;
+    // The vector tile of the shapes, built at the final reduce for the MVT output format
+    private byte[] tile;
 
     public InternalGeoShape(
         String name,
@@ -163,6 +312,16 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
         int requiredSize,
         int shardSize,
         long otherDocCount,
+        ShapeBudget budget,
+        GeoShape.Algorithm algorithm,
+        double tolerance,
+        double deferredTolerance,
+        GeoViewport viewport,
+        int decimals,
+        boolean keyAsObject,
+        boolean orderByDigest,
+        boolean simplifyTimedOut,
+        byte wireFormat,
         Map<String, Object> metadata
     ) {
         super(name, metadata);
@@ -171,7 +330,16 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
         this.requiredSize = requiredSize;
         this.shardSize = shardSize;
         this.otherDocCount = otherDocCount;
-        geoJsonWriter = new GeoJsonWriter();
+        this.budget = budget;
+        this.algorithm = algorithm;
+        this.tolerance = tolerance;
+        this.deferredTolerance = deferredTolerance;
+        this.viewport = viewport;
+        this.decimals = decimals;
+        this.keyAsObject = keyAsObject;
+        this.orderByDigest = orderByDigest;
+        this.simplifyTimedOut = simplifyTimedOut;
+        this.wireFormat = wireFormat;
     }
 
     /**
@@ -179,11 +347,39 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
      */
     public InternalGeoShape(StreamInput in) throws IOException {
         super(in);
-        output_format = OutputFormat.valueOf(in.readString());
-        requiredSize = readSize(in);
-        shardSize = readSize(in);
-        otherDocCount = in.readVLong();
-        this.buckets = in.readCollectionAsList(InternalBucket::new);
+        // The original layout starts with the output format
+        final String outputFormat = in.readString();
+        wireFormat = outputFormat.isEmpty() ? checkFormat(in.readByte()) : ORIGINAL_FORMAT;
+        if (wireFormat >= COMPACT_FORMAT) {
+            output_format = in.readEnum(OutputFormat.class);
+            requiredSize = readSize(in);
+            shardSize = readSize(in);
+            otherDocCount = in.readVLong();
+            budget = new ShapeBudget(in);
+            algorithm = GeoShape.Algorithm.valueOf(in.readString());
+            tolerance = in.readDouble();
+            deferredTolerance = in.readDouble();
+            viewport = in.readOptionalWriteable(GeoViewport::new);
+            decimals = in.readInt();
+            keyAsObject = in.readBoolean();
+            orderByDigest = in.readBoolean();
+            simplifyTimedOut = in.readBoolean();
+        } else {
+            output_format = OutputFormat.valueOf(outputFormat);
+            requiredSize = readSize(in);
+            shardSize = readSize(in);
+            otherDocCount = in.readVLong();
+            budget = ShapeBudget.UNLIMITED;
+            algorithm = GeoShape.Algorithm.DOUGLAS_PEUCKER;
+            tolerance = 0;
+            deferredTolerance = 0;
+            viewport = null;
+            decimals = -1;
+            keyAsObject = false;
+            orderByDigest = false;
+            simplifyTimedOut = false;
+        }
+        this.buckets = in.readCollectionAsList(i -> new InternalBucket(i, wireFormat));
     }
 
     /**
@@ -191,11 +387,32 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
      */
     @Override
     protected void doWriteTo(StreamOutput out) throws IOException {
-        out.writeString(output_format.name());
-        writeSize(requiredSize, out);
-        writeSize(shardSize, out);
-        out.writeVLong(otherDocCount);
-        out.writeCollection(buckets);
+        if (wireFormat >= COMPACT_FORMAT) {
+            // An empty output format, which the original layout fails on, then the format version
+            out.writeString("");
+            out.writeByte(wireFormat);
+            out.writeEnum(output_format);
+            writeSize(requiredSize, out);
+            writeSize(shardSize, out);
+            out.writeVLong(otherDocCount);
+            budget.writeTo(out);
+            out.writeString(algorithm.name());
+            out.writeDouble(tolerance);
+            out.writeDouble(deferredTolerance);
+            out.writeOptionalWriteable(viewport);
+            out.writeInt(decimals);
+            out.writeBoolean(keyAsObject);
+            out.writeBoolean(orderByDigest);
+            out.writeBoolean(simplifyTimedOut);
+        } else {
+            out.writeString(output_format.name());
+            writeSize(requiredSize, out);
+            writeSize(shardSize, out);
+            out.writeVLong(otherDocCount);
+        }
+        // Simplified shapes, or shapes to be simplified, don't need more precision than their tolerance
+        final int decimals = CompactShapeCodec.decimalsForTolerance(Math.max(tolerance, deferredTolerance));
+        out.writeCollection(buckets, (o, bucket) -> bucket.writeTo(o, wireFormat, decimals));
     }
 
     @Override
@@ -205,12 +422,30 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
 
     @Override
     public InternalGeoShape create(List<InternalBucket> buckets) {
-        return new InternalGeoShape(this.name, buckets, output_format, requiredSize, shardSize, otherDocCount, this.metadata);
+        return new InternalGeoShape(
+            this.name,
+            buckets,
+            output_format,
+            requiredSize,
+            shardSize,
+            otherDocCount,
+            budget,
+            algorithm,
+            tolerance,
+            deferredTolerance,
+            viewport,
+            decimals,
+            keyAsObject,
+            orderByDigest,
+            simplifyTimedOut,
+            wireFormat,
+            this.metadata
+        );
     }
 
     @Override
     public InternalBucket createBucket(InternalAggregations aggregations, InternalBucket prototype) {
-        return new InternalBucket(
+        final InternalBucket bucket = new InternalBucket(
             prototype.wkb,
             prototype.wkbHash,
             prototype.realType,
@@ -218,6 +453,8 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
             prototype.docCount,
             aggregations
         );
+        bucket.metrics = prototype.metrics;
+        return bucket;
     }
 
     @Override
@@ -228,44 +465,83 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
     @Override
     protected AggregatorReducer getLeaderReducer(AggregationReduceContext reduceContext, int size) {
         return new AggregatorReducer() {
-            private LongObjectPagedHashMap<List<InternalBucket>> buckets = new LongObjectPagedHashMap<>(size, reduceContext.bigArrays());
+            // Each incoming bucket is merged right away into the reducer of its digest, which sums the doc counts and
+            // reduces the sub-aggregations in batches: memory is bounded by the number of distinct shapes. The map is
+            // charged to the request breaker through the big arrays of the reduce. The shapes it holds are the WKB of
+            // the reduced aggregations, which the search phase charges to the same breaker from their serialized size
+            private final LongObjectPagedHashMap<ShapeReducer> bucketReducers = new LongObjectPagedHashMap<>(
+                size,
+                reduceContext.bigArrays()
+            );
             // Carry the doc count of shapes already dropped upstream (per-shard `shard_size`, earlier partial reduces).
             private long otherDocCountSum = 0;
+            // The shards may have zoomed out differently to fit in the budget
+            private double maxTolerance = 0;
+            private boolean simplifyTimedOut = false;
 
             @Override
             public void accept(InternalAggregation aggregation) {
                 InternalGeoShape shape = (InternalGeoShape) aggregation;
                 otherDocCountSum += shape.otherDocCount;
-
-                if (buckets == null) {
-                    buckets = new LongObjectPagedHashMap<>(shape.buckets.size(), reduceContext.bigArrays());
-                }
+                maxTolerance = Math.max(maxTolerance, shape.tolerance);
+                simplifyTimedOut |= shape.simplifyTimedOut;
 
                 for (InternalBucket bucket : shape.buckets) {
-                    List<InternalBucket> existingBuckets = buckets.get(bucket.getShapeHash());
-                    if (existingBuckets == null) {
-                        existingBuckets = new ArrayList<>();
-                        buckets.put(bucket.getShapeHash(), existingBuckets);
+                    ShapeReducer reducer = bucketReducers.get(bucket.getShapeHash());
+                    if (reducer == null) {
+                        reducer = new ShapeReducer(bucket, shape.tolerance, reduceContext, size);
+                        bucketReducers.put(bucket.getShapeHash(), reducer);
                     }
-                    existingBuckets.add(bucket);
+                    reducer.accept(bucket, shape.tolerance);
                 }
             }
 
             @Override
             public InternalAggregation get() {
                 final boolean isFinalReduce = reduceContext.isFinalReduce();
-                final long distinctShapes = buckets.size();
-                final int size = !isFinalReduce ? (int) distinctShapes : Math.min(requiredSize, (int) distinctShapes);
-
-                BucketPriorityQueue ordered = new BucketPriorityQueue(size);
+                final long distinctShapes = bucketReducers.size();
+                // A partial reduce (of the slices of a shard, or of a batch of shards) keeps the top shard_size shapes:
+                // their digest or their perimeter rank them the same everywhere, so the shapes it drops can't make it
+                // into the final top size. The shapes of the same perimeter as the last one kept are kept as well: the
+                // doc counts which rank them are not final yet
+                final int partialSize = shardSize > 0 ? Math.min(shardSize, (int) distinctShapes) : (int) distinctShapes;
+                final int size = !isFinalReduce ? partialSize : Math.min(requiredSize, (int) distinctShapes);
+                final boolean keepTies = isFinalReduce == false && orderByDigest == false;
+
+                BucketPriorityQueue ordered = new BucketPriorityQueue(size, orderByDigest);
+                final List<InternalBucket> ties = new ArrayList<>();
                 long totalDocCount = 0;
-                for (LongObjectPagedHashMap.Cursor<List<InternalBucket>> cursor : buckets) {
-                    List<InternalBucket> sameCellBuckets = cursor.value;
-                    InternalBucket reducedBucket = reduceBucket(sameCellBuckets, reduceContext);
+                for (LongObjectPagedHashMap.Cursor<ShapeReducer> cursor : bucketReducers) {
+                    final ShapeReducer reducer = cursor.value;
+                    final InternalBucket proto = reducer.proto;
+                    final InternalBucket reducedBucket = new InternalBucket(
+                        proto.wkb,
+                        proto.wkbHash,
+                        proto.realType,
+                        proto.perimeter,
+                        reducer.reducer.getDocCount(),
+                        reducer.reducer.getAggregations()
+                    );
+                    // The same shape has the same metrics on every shard
+                    reducedBucket.metrics = proto.metrics;
                     totalDocCount += reducedBucket.docCount;
-                    ordered.insertWithOverflow(reducedBucket);
+                    final InternalBucket dropped = ordered.insertWithOverflow(reducedBucket);
+                    if (keepTies && dropped != null && dropped.perimeter == ordered.top().perimeter) {
+                        ties.add(dropped);
+                    }
                 }
-                buckets.close();
+                if (ties.isEmpty() == false) {
+                    // The last perimeter kept may have grown since
+                    final double lastPerimeter = ordered.top().perimeter;
+                    ties.removeIf(bucket -> bucket.perimeter != lastPerimeter);
+                    final BucketPriorityQueue withTies = new BucketPriorityQueue(ordered.size() + ties.size(), false);
+                    while (ordered.size() > 0) {
+                        withTies.add(ordered.pop());
+                    }
+                    ties.forEach(withTies::add);
+                    ordered = withTies;
+                }
+                reduceContext.consumeBucketsAndMaybeBreak(ordered.size());
                 InternalBucket[] list = new InternalBucket[ordered.size()];
                 long returnedDocCount = 0;
                 for (int i = ordered.size() - 1; i >= 0; i--) {
@@ -273,51 +549,258 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
                     returnedDocCount += list[i].docCount;
                 }
 
-                // Docs hidden = those dropped upstream + those merged here but dropped by `size`.
-                // At a non-final reduce nothing is dropped by `size` (the queue keeps every shape), so this
-                // just carries otherDocCountSum forward.
+                // Docs hidden = those dropped upstream + those merged here but dropped by `size` (by `shard_size` at a
+                // partial reduce).
                 long reducedOtherDocCount = otherDocCountSum + (totalDocCount - returnedDocCount);
 
-                return new InternalGeoShape(
+                // All the shapes of the result share the same tolerance, whichever shards they came from
+                coarsen(list);
+                // The budget is response wide: the merged top buckets may not fit, even if each shard does
+                final double reducedTolerance = isFinalReduce ? simplify(list, maxTolerance, reduceContext) : maxTolerance;
+
+                final InternalGeoShape reduced = new InternalGeoShape(
                     getName(),
                     Arrays.asList(list),
                     output_format,
                     requiredSize,
                     shardSize,
                     reducedOtherDocCount,
+                    budget,
+                    algorithm,
+                    reducedTolerance,
+                    isFinalReduce ? 0 : deferredTolerance,
+                    viewport,
+                    decimals,
+                    keyAsObject,
+                    orderByDigest,
+                    simplifyTimedOut,
+                    wireFormat,
                     getMetadata()
                 );
+                if (isFinalReduce && output_format == OutputFormat.MVT) {
+                    // Built here, where the decoded shapes are charged to the request breaker
+                    reduced.tile = reduced.toVectorTile(requestBreaker(reduceContext));
+                }
+                return reduced;
+            }
+
+            /**
+             * Simplify again, with the coarsest tolerance, the shapes which no shard simplified with it.
+             */
+            private void coarsen(InternalBucket[] list) {
+                final boolean[] coarser = new boolean[list.length];
+                long decodedBytes = 0;
+                for (int i = 0; i < list.length; i++) {
+                    coarser[i] = list[i].wkb.length > 0 && bucketReducers.get(list[i].wkbHash).tolerance < maxTolerance;
+                    if (coarser[i]) {
+                        decodedBytes += GeoShapeServices.estimateDecodedBytes(list[i].wkb.length);
+                    }
+                }
+                if (decodedBytes == 0) {
+                    return;
+                }
+
+                final CircuitBreaker breaker = requestBreaker(reduceContext);
+                breaker.addEstimateBytesAndMaybeBreak(decodedBytes, "geoshape aggregation [" + getName() + "]");
+                try {
+                    final WkbDecoder decoder = new WkbDecoder();
+                    final Geometry[] shapes = new Geometry[list.length];
+                    for (int i = 0; i < list.length; i++) {
+                        if (coarser[i]) {
+                            try {
+                                shapes[i] = decoder.decode(list[i].wkb);
+                            } catch (ParseException e) {
+                                // Kept as is
+                            }
+                        }
+                    }
+                    simplify(
+                        list,
+                        shapes,
+                        maxTolerance,
+                        GeoUtils.SimplifyAlgorithm.valueOf(algorithm.name()),
+                        new GeometryFactory(),
+                        new WKBWriter()
+                    );
+                } finally {
+                    breaker.addWithoutBreaking(-decodedBytes);
+                }
+            }
+
+            @Override
+            public void close() {
+                for (LongObjectPagedHashMap.Cursor<ShapeReducer> cursor : bucketReducers) {
+                    Releasables.close(cursor.value);
+                }
+                Releasables.close(bucketReducers);
             }
         };
     }
 
-    public InternalBucket reduceBucket(List<InternalBucket> buckets, AggregationReduceContext context) {
-        List<InternalAggregations> aggregationsList = new ArrayList<>(buckets.size());
-        InternalBucket reduced = null;
+    /**
+     * Simplify the shapes of the given buckets with the deferred tolerance, if any, then zoom out one level at a time
+     * until they fit in the budget. The shards may already have simplified them: they are simplified again, not from
+     * the original shapes. Return the tolerance the shapes end up simplified with.
+     */
+    private double simplify(InternalBucket[] buckets, double tolerance, AggregationReduceContext reduceContext) {
+        final WkbScanner scanner = new WkbScanner();
+        final boolean deferred = deferredTolerance > tolerance;
+        if (deferred == false && budget.fits(buckets, scanner)) {
+            return tolerance;
+        }
+
+        // The decoded shapes are kept while zooming out: their estimated heap is charged to the request breaker
+        long decodedBytes = 0;
         for (InternalBucket bucket : buckets) {
-            if (reduced == null) {
-                reduced = bucket;
-            } else {
-                reduced.docCount += bucket.docCount;
+            if (bucket.wkb.length > 0) {
+                decodedBytes += GeoShapeServices.estimateDecodedBytes(bucket.wkb.length);
+            }
+        }
+        final CircuitBreaker breaker = requestBreaker(reduceContext);
+        breaker.addEstimateBytesAndMaybeBreak(decodedBytes, "geoshape aggregation [" + getName() + "]");
+        try {
+            final WkbDecoder decoder = new WkbDecoder();
+            final Geometry[] shapes = new Geometry[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                try {
+                    shapes[i] = decoder.decode(buckets[i].wkb);
+                } catch (ParseException e) {
+                    // Kept as is
+                }
+            }
+
+            final GeoUtils.SimplifyAlgorithm simplifyAlgorithm = GeoUtils.SimplifyAlgorithm.valueOf(algorithm.name());
+            final GeometryFactory geometryFactory = new GeometryFactory();
+            final WKBWriter wkbWriter = new WKBWriter();
+            if (deferred) {
+                // Only the buckets that survived the reduce are simplified, once each
+                tolerance = deferredTolerance;
+                simplify(buckets, shapes, tolerance, simplifyAlgorithm, geometryFactory, wkbWriter);
             }
-            aggregationsList.add(bucket.subAggregations);
+            while (budget.fits(buckets, scanner) == false && tolerance < ShapeBudget.MAX_TOLERANCE) {
+                if (reduceContext.isCanceled()) {
+                    throw new TaskCancelledException("cancelled while reducing geoshape aggregation [" + getName() + "]");
+                }
+                tolerance = ShapeBudget.nextTolerance(tolerance);
+                simplify(buckets, shapes, tolerance, simplifyAlgorithm, geometryFactory, wkbWriter);
+            }
+            return tolerance;
+        } finally {
+            breaker.addWithoutBreaking(-decodedBytes);
+        }
+    }
+
+    /**
+     * The request breaker of the reduce, or a breaker that never trips when the reduce has none.
+     */
+    private static CircuitBreaker requestBreaker(AggregationReduceContext reduceContext) {
+        final CircuitBreakerService breakerService = reduceContext.bigArrays().breakerService();
+        return breakerService == null
+            ? new NoopCircuitBreaker(CircuitBreaker.REQUEST)
+            : breakerService.getBreaker(CircuitBreaker.REQUEST);
+    }
+
+    private static void simplify(
+        InternalBucket[] buckets,
+        Geometry[] shapes,
+        double tolerance,
+        GeoUtils.SimplifyAlgorithm simplifyAlgorithm,
+        GeometryFactory geometryFactory,
+        WKBWriter wkbWriter
+    ) {
+        for (int i = 0; i < buckets.length; i++) {
+            if (shapes[i] != null) {
+                SimplifiedShapeCache.SimplifiedShape simplified = SimplifiedShapeCache.simplify(
+                    shapes[i],
+                    tolerance,
+                    simplifyAlgorithm,
+                    geometryFactory,
+                    wkbWriter
+                );
+                buckets[i].wkb = simplified.wkb();
+            }
+        }
+    }
+
+    /**
+     * Merges the buckets of a shape. The shards may have simplified it with different tolerances: its shape is the one of
+     * the coarsest, the smallest WKB between equal tolerances, whatever the order the shards answer in.
+     */
+    private static final class ShapeReducer implements Releasable {
+        private final BucketReducer<InternalBucket> reducer;
+        private InternalBucket proto;
+        private double tolerance;
+
+        ShapeReducer(InternalBucket proto, double tolerance, AggregationReduceContext reduceContext, int size) {
+            this.reducer = new BucketReducer<>(proto, reduceContext, size);
+            this.proto = proto;
+            this.tolerance = tolerance;
+        }
+
+        void accept(InternalBucket bucket, double bucketTolerance) {
+            if (bucketTolerance > tolerance || (bucketTolerance == tolerance && bucket.wkb.compareTo(proto.wkb) < 0)) {
+                proto = bucket;
+                tolerance = bucketTolerance;
+            }
+            reducer.accept(bucket);
+        }
+
+        @Override
+        public void close() {
+            Releasables.close(reducer);
         }
-        reduced.subAggregations = InternalAggregations.reduce(aggregationsList, context);
-        return reduced;
     }
 
     @Override
     public XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
         builder.field("sum_other_doc_count", otherDocCount);
+        if (simplifyTimedOut) {
+            builder.field("simplify_timed_out", true);
+        }
+        if (orderByDigest && buckets.isEmpty() == false) {
+            // The cursor of the next page, as for the composite aggregation
+            builder.field("after_key", String.valueOf(buckets.get(buckets.size() - 1).wkbHash));
+        }
+        final boolean tile = output_format == OutputFormat.MVT;
+        if (tile) {
+            // The shapes are all in the tile: the buckets hold the rest. Built now if the aggregation was not reduced
+            builder.field("tile", this.tile != null ? this.tile : toVectorTile(new NoopCircuitBreaker(CircuitBreaker.REQUEST)));
+        }
+        final WkbTextWriter textWriter = tile ? null : new WkbTextWriter(output_format, decimals);
         builder.startArray(CommonFields.BUCKETS.getPreferredName());
         for (InternalBucket bucket : buckets) {
+            // Buckets built without geometry have an empty shape
+            final boolean hasKey = tile == false && bucket.wkb.length > 0;
+            String key = null;
+            if (hasKey) {
+                try {
+                    if (keyAsObject) {
+                        // Written straight into the response, once the bucket is started: check it first
+                        textWriter.checkShape(bucket.wkb);
+                    } else {
+                        key = textWriter.write(bucket.wkb);
+                    }
+                } catch (ParseException e) {
+                    continue;
+                }
+            }
             builder.startObject();
-            try {
-                builder.field(CommonFields.KEY.getPreferredName(), GeoUtils.exportWkbTo(bucket.wkb, output_format, geoJsonWriter));
-                builder.field("digest", bucket.wkbHash);
+            if (key != null) {
+                builder.field(CommonFields.KEY.getPreferredName(), key);
+            } else if (hasKey) {
+                builder.field(CommonFields.KEY.getPreferredName());
+                try {
+                    textWriter.writeGeoJsonObject(builder, bucket.wkb);
+                } catch (ParseException e) {
+                    throw new IllegalStateException("shape checked before being written", e);
+                }
+            }
+            builder.field("digest", String.valueOf(bucket.wkbHash));
+            if (bucket.getType() != null) {
                 builder.field("type", bucket.getType());
-            } catch (ParseException e) {
-                continue;
+            }
+            if (bucket.metrics != null) {
+                bucket.metrics.toXContent(builder, params);
             }
             builder.field(CommonFields.DOC_COUNT.getPreferredName(), bucket.getDocCount());
             bucket.getAggregations().toXContentInternal(builder, params);
@@ -327,9 +810,64 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
         return builder;
     }
 
+    /**
+     * A vector tile with a feature for each shape, its digest as id, and its doc count, digest and type as properties.
+     * The shapes are decoded one at a time, each one charged to the given breaker until it is encoded.
+     */
+    private byte[] toVectorTile(CircuitBreaker breaker) {
+        final WkbDecoder wkbDecoder = new WkbDecoder();
+        final VectorTileWriter writer = new VectorTileWriter(getName(), viewport);
+        for (InternalBucket bucket : buckets) {
+            if (bucket.wkb.length == 0) {
+                continue;
+            }
+            final long decodedBytes = GeoShapeServices.estimateDecodedBytes(bucket.wkb.length);
+            breaker.addEstimateBytesAndMaybeBreak(decodedBytes, "geoshape aggregation [" + getName() + "]");
+            try {
+                addFeature(writer, wkbDecoder, bucket);
+            } finally {
+                breaker.addWithoutBreaking(-decodedBytes);
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    private static void addFeature(VectorTileWriter writer, WkbDecoder wkbDecoder, InternalBucket bucket) {
+        final Geometry geometry;
+        try {
+            geometry = wkbDecoder.decode(bucket.wkb);
+        } catch (ParseException e) {
+            return;
+        }
+        final Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put(CommonFields.DOC_COUNT.getPreferredName(), bucket.docCount);
+        properties.put("digest", String.valueOf(bucket.wkbHash));
+        if (bucket.getType() != null) {
+            properties.put("type", bucket.getType());
+        }
+        writer.addFeature(bucket.wkbHash, geometry, properties);
+    }
+
     @Override
     public int hashCode() {
-        return Objects.hash(super.hashCode(), buckets, output_format, requiredSize, shardSize, otherDocCount);
+        return Objects.hash(
+            super.hashCode(),
+            buckets,
+            output_format,
+            requiredSize,
+            shardSize,
+            otherDocCount,
+            budget,
+            algorithm,
+            tolerance,
+            deferredTolerance,
+            viewport,
+            decimals,
+            keyAsObject,
+            orderByDigest,
+            simplifyTimedOut,
+            wireFormat
+        );
     }
 
     @Override
@@ -343,25 +881,42 @@ public class InternalGeoShape extends InternalMultiBucketAggregation<InternalGeo
             && Objects.equals(output_format, that.output_format)
             && Objects.equals(requiredSize, that.requiredSize)
             && Objects.equals(shardSize, that.shardSize)
-            && Objects.equals(otherDocCount, that.otherDocCount);
+            && Objects.equals(otherDocCount, that.otherDocCount)
+            && Objects.equals(budget, that.budget)
+            && Objects.equals(algorithm, that.algorithm)
+            && Objects.equals(tolerance, that.tolerance)
+            && Objects.equals(deferredTolerance, that.deferredTolerance)
+            && Objects.equals(viewport, that.viewport)
+            && decimals == that.decimals
+            && keyAsObject == that.keyAsObject
+            && orderByDigest == that.orderByDigest
+            && simplifyTimedOut == that.simplifyTimedOut
+            && wireFormat == that.wireFormat;
     }
 
     // The priority queue is used to retain the top N buckets (i.e. shapes)
-    // Buckets are here ordered by area (!) then by hash
+    // Buckets are here ordered by perimeter, then by doc count, then by digest, or by increasing digest to be paged
+    // through. The order is total, so that the same request always returns the same buckets, and can be cached
     static class BucketPriorityQueue extends PriorityQueue<InternalBucket> {
+        private final boolean byDigest;
 
-        BucketPriorityQueue(int size) {
+        BucketPriorityQueue(int size, boolean byDigest) {
             super(size);
+            this.byDigest = byDigest;
         }
 
         @Override
         protected boolean lessThan(InternalBucket o1, InternalBucket o2) {
+            if (byDigest) {
+                // The smallest digests are kept
+                return o1.wkbHash > o2.wkbHash;
+            }
 
             double i = o2.perimeter - o1.perimeter;
             if (i == 0) {
                 i = o2.compareTo(o1);
                 if (i == 0) {
-                    i = System.identityHashCode(o2) - System.identityHashCode(o1);
+                    i = Long.compare(o2.wkbHash, o1.wkbHash);
                 }
             }
             return i > 0;
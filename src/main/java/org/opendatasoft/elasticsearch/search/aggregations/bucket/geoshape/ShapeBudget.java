@@ -0,0 +1,113 @@
+package org.opendatasoft.elasticsearch.search.aggregations.bucket.geoshape;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.locationtech.jts.io.ParseException;
+import org.opendatasoft.elasticsearch.plugin.GeoUtils;
+import org.opendatasoft.elasticsearch.plugin.WkbScanner;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * A budget on the shapes of a geoshape aggregation response: the total number of vertices and the total size (as WKB)
+ * of the returned shapes. When the shapes don't fit, they are simplified again with a tolerance doubled at each step,
+ * which amounts to zooming out one level at a time.
+ */
+public final class ShapeBudget implements Writeable {
+    public static final ShapeBudget UNLIMITED = new ShapeBudget(-1, -1);
+
+    // Past this tolerance, every shape has collapsed into a point
+    static final double MAX_TOLERANCE = 360;
+    // The first step of shapes that were not simplified: the finest zoom
+    private static final double MIN_TOLERANCE = GeoUtils.getToleranceFromZoom(20);
+
+    private final int maxVertices;
+    private final long maxBytes;
+
+    /**
+     * A negative maximum is no limit.
+     */
+    public ShapeBudget(int maxVertices, long maxBytes) {
+        this.maxVertices = maxVertices;
+        this.maxBytes = maxBytes;
+    }
+
+    public ShapeBudget(StreamInput in) throws IOException {
+        maxVertices = in.readInt();
+        maxBytes = in.readLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeInt(maxVertices);
+        out.writeLong(maxBytes);
+    }
+
+    public int getMaxVertices() {
+        return maxVertices;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public boolean isUnlimited() {
+        return maxVertices < 0 && maxBytes < 0;
+    }
+
+    ShapeBudget withMaxVertices(int maxVertices) {
+        return new ShapeBudget(maxVertices, maxBytes);
+    }
+
+    ShapeBudget withMaxBytes(long maxBytes) {
+        return new ShapeBudget(maxVertices, maxBytes);
+    }
+
+    /**
+     * Whether the shapes of the given buckets fit in the budget. Null buckets are skipped.
+     */
+    boolean fits(InternalGeoShape.InternalBucket[] buckets, WkbScanner scanner) {
+        if (isUnlimited()) {
+            return true;
+        }
+        long vertices = 0;
+        long bytes = 0;
+        for (InternalGeoShape.InternalBucket bucket : buckets) {
+            if (bucket == null) {
+                continue;
+            }
+            bytes += bucket.wkb.length;
+            if (maxVertices >= 0) {
+                try {
+                    scanner.scan(bucket.wkb);
+                    vertices += scanner.getVertexCount();
+                } catch (ParseException e) {
+                    // The returned shapes were all decoded already
+                }
+            }
+        }
+        return (maxVertices < 0 || vertices <= maxVertices) && (maxBytes < 0 || bytes <= maxBytes);
+    }
+
+    /**
+     * The tolerance of the next step, from the tolerance the shapes were simplified with (0 if they were not).
+     */
+    static double nextTolerance(double tolerance) {
+        return tolerance > 0 ? tolerance * 2 : MIN_TOLERANCE;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ShapeBudget that = (ShapeBudget) o;
+        return maxVertices == that.maxVertices && maxBytes == that.maxBytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxVertices, maxBytes);
+    }
+}
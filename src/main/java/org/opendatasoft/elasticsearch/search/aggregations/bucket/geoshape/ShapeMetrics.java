@@ -0,0 +1,164 @@
+package org.opendatasoft.elasticsearch.search.aggregations.bucket.geoshape;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.xcontent.ToXContentFragment;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import org.opendatasoft.elasticsearch.plugin.WkbScanner;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Figures of the shape of a geoshape bucket, computed once per bucket on the shard, from the full shape (before it is
+ * clipped or simplified). As each bucket is a single shape, they replace the geo_bounds, geo_centroid, ... sub-aggregations
+ * which run on every doc.
+ */
+public final class ShapeMetrics implements Writeable, ToXContentFragment {
+
+    public enum Metric {
+        BBOX,
+        CENTROID,
+        AREA,
+        VERTICES;
+
+        int bit() {
+            return 1 << ordinal();
+        }
+
+        public static Metric fromString(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // The metrics which need the shape to be decoded, the others are read from a scan of its WKB
+    private static final int DECODED_METRICS = Metric.CENTROID.bit() | Metric.AREA.bit();
+
+    // Mask of the metrics computed
+    private final int metrics;
+    private final double minX;
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+    private final double centroidX;
+    private final double centroidY;
+    private final double area;
+    private final long vertices;
+
+    private ShapeMetrics(int metrics, WkbScanner scanner, Geometry geometry) {
+        this.metrics = metrics;
+        minX = scanner.getMinX();
+        minY = scanner.getMinY();
+        maxX = scanner.getMaxX();
+        maxY = scanner.getMaxY();
+        vertices = scanner.getVertexCount();
+        if (geometry != null) {
+            final Point centroid = geometry.getCentroid();
+            centroidX = centroid.isEmpty() ? Double.NaN : centroid.getX();
+            centroidY = centroid.isEmpty() ? Double.NaN : centroid.getY();
+            area = geometry.getArea();
+        } else {
+            centroidX = Double.NaN;
+            centroidY = Double.NaN;
+            area = Double.NaN;
+        }
+    }
+
+    public ShapeMetrics(StreamInput in) throws IOException {
+        metrics = in.readVInt();
+        minX = in.readDouble();
+        minY = in.readDouble();
+        maxX = in.readDouble();
+        maxY = in.readDouble();
+        centroidX = in.readDouble();
+        centroidY = in.readDouble();
+        area = in.readDouble();
+        vertices = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(metrics);
+        out.writeDouble(minX);
+        out.writeDouble(minY);
+        out.writeDouble(maxX);
+        out.writeDouble(maxY);
+        out.writeDouble(centroidX);
+        out.writeDouble(centroidY);
+        out.writeDouble(area);
+        out.writeVLong(vertices);
+    }
+
+    /**
+     * The given metrics of a shape, from the scan of its WKB and, if any of them needs it, its decoded geometry.
+     */
+    static ShapeMetrics compute(int metrics, WkbScanner scanner, Geometry geometry) {
+        if (geometry == null && needsGeometry(metrics)) {
+            throw new IllegalArgumentException("the decoded shape is required for the centroid and the area");
+        }
+        return new ShapeMetrics(metrics, scanner, geometry);
+    }
+
+    static boolean needsGeometry(int metrics) {
+        return (metrics & DECODED_METRICS) != 0;
+    }
+
+    static boolean has(int metrics, Metric metric) {
+        return (metrics & metric.bit()) != 0;
+    }
+
+    /**
+     * Written in the bucket, next to its digest and type. The bounding box and the centroid of an empty shape are left out.
+     */
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        final boolean empty = vertices == 0;
+        if (has(metrics, Metric.BBOX) && empty == false) {
+            // Same as the bounds of the geo_bounds aggregation
+            builder.startObject("bbox");
+            builder.startObject("top_left").field("lat", maxY).field("lon", minX).endObject();
+            builder.startObject("bottom_right").field("lat", minY).field("lon", maxX).endObject();
+            builder.endObject();
+        }
+        if (has(metrics, Metric.CENTROID) && Double.isNaN(centroidX) == false) {
+            builder.startObject("centroid").field("lat", centroidY).field("lon", centroidX).endObject();
+        }
+        if (has(metrics, Metric.AREA)) {
+            builder.field("area", area);
+        }
+        if (has(metrics, Metric.VERTICES)) {
+            builder.field("vertices", vertices);
+        }
+        return builder;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ShapeMetrics that = (ShapeMetrics) o;
+        return metrics == that.metrics
+            && Double.compare(minX, that.minX) == 0
+            && Double.compare(minY, that.minY) == 0
+            && Double.compare(maxX, that.maxX) == 0
+            && Double.compare(maxY, that.maxY) == 0
+            && Double.compare(centroidX, that.centroidX) == 0
+            && Double.compare(centroidY, that.centroidY) == 0
+            && Double.compare(area, that.area) == 0
+            && vertices == that.vertices;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(metrics, minX, minY, maxX, maxY, centroidX, centroidY, area, vertices);
+    }
+}
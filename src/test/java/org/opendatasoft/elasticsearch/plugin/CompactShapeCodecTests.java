@@ -0,0 +1,81 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.test.ESTestCase;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+import org.locationtech.jts.io.WKTReader;
+
+import java.io.IOException;
+
+public class CompactShapeCodecTests extends ESTestCase {
+
+    public void testDecimalsForTolerance() {
+        assertEquals(-1, CompactShapeCodec.decimalsForTolerance(0));
+        assertEquals(2, CompactShapeCodec.decimalsForTolerance(1));
+        assertEquals(3, CompactShapeCodec.decimalsForTolerance(GeoUtils.getToleranceFromZoom(1)));
+        assertEquals(9, CompactShapeCodec.decimalsForTolerance(GeoUtils.getToleranceFromZoom(29)));
+        assertEquals(0, CompactShapeCodec.decimalsForTolerance(360));
+    }
+
+    public void testRoundTripIsLosslessWithoutDecimals() throws IOException, ParseException {
+        BytesRef wkb = wkb("POLYGON ((0.123456789 0, 1 0, 1 1.987654321, 0.123456789 0))", 2, WKBWriter.NDR);
+        BytesRef read = roundTrip(wkb, -1);
+        assertEquals(wkb, read);
+    }
+
+    public void testRoundTripRoundsCoordinates() throws IOException, ParseException {
+        String wkt = "GEOMETRYCOLLECTION (POINT (2.35 48.85), "
+            + "MULTIPOLYGON (((0.123456 0, 1 0, 1 1.987654, 0.123456 0)), ((10 10, 11 10, 11 11, 10 10))), "
+            + "LINESTRING (-3.384681 47.74, -3.38 47.75))";
+        Geometry geometry = new WKTReader().read(wkt);
+        BytesRef wkb = wkb(wkt, 2, WKBWriter.NDR);
+
+        BytesRef read = roundTrip(wkb, 3);
+        Geometry decoded = new WKBReader().read(BytesRef.deepCopyOf(read).bytes);
+        assertEquals(geometry.getNumPoints(), decoded.getNumPoints());
+        assertEquals("GeometryCollection", decoded.getGeometryType());
+        Coordinate[] expected = geometry.getCoordinates();
+        Coordinate[] actual = decoded.getCoordinates();
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].x, actual[i].x, 0.0005);
+            assertEquals(expected[i].y, actual[i].y, 0.0005);
+        }
+        assertTrue(read.length < wkb.length);
+    }
+
+    public void testLargeShapesAreDeflated() throws IOException, ParseException {
+        Coordinate[] coordinates = new Coordinate[1000];
+        for (int i = 0; i < coordinates.length; i++) {
+            coordinates[i] = new Coordinate(i % 10, i % 7);
+        }
+        BytesRef wkb = new BytesRef(new WKBWriter().write(new GeometryFactory().createLineString(coordinates)));
+
+        BytesStreamOutput out = new BytesStreamOutput();
+        CompactShapeCodec.write(out, wkb, -1);
+        assertTrue(out.size() < wkb.length / 4);
+        assertEquals(wkb, CompactShapeCodec.read(out.bytes().streamInput()));
+    }
+
+    public void testShapesWithZAreSentAsWkb() throws IOException, ParseException {
+        BytesRef wkb = wkb("LINESTRING Z (0.123456 0 1, 1 1 2)", 3, WKBWriter.XDR);
+        assertEquals(wkb, roundTrip(wkb, 2));
+    }
+
+    private static BytesRef wkb(String wkt, int dimension, int byteOrder) throws ParseException {
+        return new BytesRef(new WKBWriter(dimension, byteOrder).write(new WKTReader().read(wkt)));
+    }
+
+    private static BytesRef roundTrip(BytesRef wkb, int decimals) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        CompactShapeCodec.write(out, wkb, decimals);
+        StreamInput in = out.bytes().streamInput();
+        return CompactShapeCodec.read(in);
+    }
+}
@@ -0,0 +1,69 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.test.ESTestCase;
+
+public class GeoShapeServicesTests extends ESTestCase {
+
+    public void testEstimateGrowsWithTheWkb() {
+        long point = GeoShapeServices.estimateDecodedBytes(21);
+        long line = GeoShapeServices.estimateDecodedBytes(9 + 1000 * 16);
+        assertTrue(point > 0);
+        // A decoded coordinate takes more heap than its 16 bytes of WKB
+        assertTrue(line - point > 999 * 16);
+    }
+
+    public void testNoBreakerUntilRegistered() {
+        GeoShapeServices services = new GeoShapeServices();
+        long reserved = services.reserveDecodedBytes(Integer.MAX_VALUE, "test");
+        services.release(reserved);
+        assertEquals(GeoShapeServices.BREAKER_NAME, services.circuitBreaker().getName());
+    }
+
+    public void testReserveAndRelease() {
+        CountingBreaker breaker = new CountingBreaker(GeoShapeServices.estimateDecodedBytes(1000));
+        GeoShapeServices services = new GeoShapeServices();
+        services.setCircuitBreaker(breaker);
+
+        long reserved = services.reserveDecodedBytes(500, "test");
+        assertEquals(reserved, breaker.getUsed());
+        expectThrows(CircuitBreakingException.class, () -> services.reserveDecodedBytes(500, "test"));
+        services.release(reserved);
+        assertEquals(0, breaker.getUsed());
+    }
+
+    private static class CountingBreaker extends NoopCircuitBreaker {
+        private final long limit;
+        private long used;
+
+        CountingBreaker(long limit) {
+            super(GeoShapeServices.BREAKER_NAME);
+            this.limit = limit;
+        }
+
+        @Override
+        public void addEstimateBytesAndMaybeBreak(long bytes, String label) {
+            if (used + bytes > limit) {
+                throw new CircuitBreakingException(
+                    "[" + label + "] would be too large",
+                    used + bytes,
+                    limit,
+                    CircuitBreaker.Durability.TRANSIENT
+                );
+            }
+            used += bytes;
+        }
+
+        @Override
+        public void addWithoutBreaking(long bytes) {
+            used += bytes;
+        }
+
+        @Override
+        public long getUsed() {
+            return used;
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package org.opendatasoft.elasticsearch.plugin;
 
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.geometry.Line;
 import org.elasticsearch.geometry.LinearRing;
 import org.elasticsearch.geometry.MultiPolygon;
 import org.elasticsearch.geometry.Polygon;
 import org.elasticsearch.test.ESTestCase;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ByteOrderValues;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBWriter;
+import org.locationtech.jts.io.WKTReader;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * Simple tests for some GeoUtils functions such as coordinates deduplication for different Geom shape.
@@ -110,6 +117,30 @@ public class GeoUtilsTests extends ESTestCase {
         }
     }
 
+    public void testWkbTypeFromHeader() throws ParseException {
+        String[] shapes = {
+            "POINT (1 2)",
+            "LINESTRING (0 0, 1 1)",
+            "POLYGON ((0 0, 1 0, 1 1, 0 0))",
+            "MULTIPOINT ((0 0), (1 1))",
+            "MULTILINESTRING ((0 0, 1 1))",
+            "MULTIPOLYGON (((0 0, 1 0, 1 1, 0 0)))",
+            "GEOMETRYCOLLECTION (POINT (1 2))",
+            "LINESTRING Z (0 0 1, 1 1 2)" };
+        for (String shape : shapes) {
+            Geometry geometry = new WKTReader().read(shape);
+            for (int byteOrder : new int[] { ByteOrderValues.BIG_ENDIAN, ByteOrderValues.LITTLE_ENDIAN }) {
+                byte[] wkb = new WKBWriter(3, byteOrder, true).write(geometry);
+                int type = GeoUtils.getWkbType(new BytesRef(wkb));
+                assertEquals(shape, geometry.getGeometryType(), GeoUtils.getWkbTypeName(type));
+                assertEquals(shape, type, GeoUtils.getWkbType(geometry.getGeometryType().toLowerCase(Locale.ROOT)));
+            }
+        }
+        assertEquals(0, GeoUtils.getWkbType(new BytesRef(new byte[] { 0, 0, 0 })));
+        assertEquals(0, GeoUtils.getWkbType(new BytesRef(new byte[] { 2, 0, 0, 0, 1 })));
+        expectThrows(IllegalArgumentException.class, () -> GeoUtils.getWkbType("Circle"));
+    }
+
     private void assertValidClosedRing(LinearRing ring) {
         assertTrue("The ring should have at least 4 points", ring.length() >= 4);
 
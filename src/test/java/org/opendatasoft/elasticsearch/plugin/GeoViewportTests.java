@@ -0,0 +1,70 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.elasticsearch.test.ESTestCase;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+
+public class GeoViewportTests extends ESTestCase {
+
+    public void testFromTile() {
+        GeoViewport world = GeoViewport.fromTile("0/0/0");
+        assertEquals(-180, world.left(), 0d);
+        assertEquals(180, world.right(), 0d);
+        assertEquals(85.0511287798066, world.top(), 1e-9);
+        assertEquals(-85.0511287798066, world.bottom(), 1e-9);
+
+        GeoViewport paris = GeoViewport.fromTile("10/518/352");
+        assertTrue(paris.intersects(2.3525, 48.857, 2.3541, 48.858));
+        assertFalse(paris.intersects(-3.39, 47.73, -3.37, 47.75));
+    }
+
+    public void testInvalidTile() {
+        expectThrows(IllegalArgumentException.class, () -> GeoViewport.fromTile("1/2"));
+        expectThrows(IllegalArgumentException.class, () -> GeoViewport.fromTile("a/0/0"));
+        expectThrows(IllegalArgumentException.class, () -> GeoViewport.fromTile("1/2/0"));
+        expectThrows(IllegalArgumentException.class, () -> GeoViewport.fromTile("30/0/0"));
+    }
+
+    public void testIntersectsAcrossDateline() {
+        GeoViewport pacific = new GeoViewport(10, 170, -10, -170);
+        assertTrue(pacific.crossesDateline());
+        assertTrue(pacific.intersects(175, 0, 176, 1));
+        assertTrue(pacific.intersects(-176, 0, -175, 1));
+        assertFalse(pacific.intersects(0, 0, 1, 1));
+        // An empty shape
+        double inf = Double.POSITIVE_INFINITY;
+        assertFalse(pacific.intersects(inf, inf, -inf, -inf));
+    }
+
+    public void testClip() throws ParseException {
+        GeoViewport viewport = new GeoViewport(1, 0, 0, 1);
+        Geometry ocean = new WKTReader().read("POLYGON ((-50 -50, 50 -50, 50 50, -50 50, -50 -50))");
+
+        Envelope clipped = viewport.clip(ocean, 0).getEnvelopeInternal();
+        double buffer = 1d / 64;
+        assertEquals(-buffer, clipped.getMinX(), 1e-12);
+        assertEquals(1 + buffer, clipped.getMaxX(), 1e-12);
+        assertEquals(-buffer, clipped.getMinY(), 1e-12);
+        assertEquals(1 + buffer, clipped.getMaxY(), 1e-12);
+
+        // The margin grows with the simplification tolerance
+        assertEquals(-0.5, viewport.clip(ocean, 0.5).getEnvelopeInternal().getMinX(), 1e-12);
+
+        Geometry inside = new WKTReader().read("POLYGON ((0.2 0.2, 0.4 0.2, 0.4 0.4, 0.2 0.2))");
+        assertSame(inside, viewport.clip(inside, 0));
+
+        Geometry outside = new WKTReader().read("LINESTRING (10 10, 20 20)");
+        assertTrue(viewport.clip(outside, 0).isEmpty());
+    }
+
+    public void testClipCollection() throws ParseException {
+        GeoViewport viewport = new GeoViewport(1, 0, 0, 1);
+        Geometry collection = new WKTReader().read("GEOMETRYCOLLECTION (POINT (0.5 0.5), LINESTRING (0.5 0.5, 10 0.5), POINT (10 10))");
+
+        Geometry clipped = viewport.clip(collection, 0);
+        assertEquals(2, clipped.getNumGeometries());
+        assertEquals(1 + 1d / 64, clipped.getEnvelopeInternal().getMaxX(), 1e-12);
+    }
+}
@@ -0,0 +1,114 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.test.ESTestCase;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+import org.locationtech.jts.io.WKTReader;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SimplifiedShapeCacheTests extends ESTestCase {
+    private static final String SHAPE = "POLYGON ((0 0, 1 0, 1.01 0.5, 1 1, 0 1, 0 0))";
+
+    public void testSimplifiedShapesAreCached() throws ParseException {
+        Geometry geom = new WKTReader().read(SHAPE);
+        SimplifiedShapeCache cache = new SimplifiedShapeCache(1 << 20);
+        SimplifiedShapeCache.Key key = new SimplifiedShapeCache.Key(42, 0.1, GeoUtils.SimplifyAlgorithm.DOUGLAS_PEUCKER);
+        AtomicInteger loads = new AtomicInteger();
+
+        SimplifiedShapeCache.SimplifiedShape first = cache.computeIfAbsent(key, () -> {
+            loads.incrementAndGet();
+            return SimplifiedShapeCache.simplify(geom, 0.1, key.algorithm(), new GeometryFactory(), new WKBWriter());
+        });
+        SimplifiedShapeCache.SimplifiedShape second = cache.computeIfAbsent(key, () -> {
+            loads.incrementAndGet();
+            return SimplifiedShapeCache.simplify(geom, 0.1, key.algorithm(), new GeometryFactory(), new WKBWriter());
+        });
+
+        assertSame(first, second);
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.count());
+        assertEquals(1, cache.stats().getHits());
+        assertEquals(1, cache.stats().getMisses());
+        assertEquals(4, new WKBReader().read(BytesRef.deepCopyOf(first.wkb()).bytes).getNumPoints() - 1);
+        assertEquals("Polygon", first.realType());
+        assertFalse(first.collapsed());
+    }
+
+    public void testTooSmallShapeCollapsesToPoint() throws ParseException {
+        Geometry geom = new WKTReader().read(SHAPE);
+        SimplifiedShapeCache.SimplifiedShape simplified = SimplifiedShapeCache.simplify(
+            geom,
+            10,
+            GeoUtils.SimplifyAlgorithm.DOUGLAS_PEUCKER,
+            new GeometryFactory(),
+            new WKBWriter()
+        );
+        assertTrue(simplified.collapsed());
+        assertEquals("Point", simplified.type());
+        assertEquals("Polygon", simplified.realType());
+    }
+
+    public void testSubPixelShapeIsCulledLikeSimplified() throws ParseException {
+        WkbScanner scanner = new WkbScanner();
+        for (String wkt : new String[] { SHAPE, "MULTIPOLYGON (((0.5 0.5, 1 0, 1 1, 0.5 0.5)), ((2 2, 3 2, 3 3, 2 2)))" }) {
+            Geometry geom = new WKTReader().read(wkt);
+            scanner.scan(new BytesRef(new WKBWriter().write(geom)));
+            SimplifiedShapeCache.SimplifiedShape culled = SimplifiedShapeCache.cull(
+                scanner,
+                10,
+                GeoUtils.SimplifyAlgorithm.DOUGLAS_PEUCKER,
+                null,
+                new GeometryFactory(),
+                new WKBWriter()
+            );
+            SimplifiedShapeCache.SimplifiedShape simplified = SimplifiedShapeCache.simplify(
+                geom,
+                10,
+                GeoUtils.SimplifyAlgorithm.DOUGLAS_PEUCKER,
+                new GeometryFactory(),
+                new WKBWriter()
+            );
+            assertEquals(wkt, simplified, culled);
+        }
+    }
+
+    public void testLargeOrNonPolygonalShapesAreNotCulled() throws ParseException {
+        WkbScanner scanner = new WkbScanner();
+        GeometryFactory factory = new GeometryFactory();
+        scanner.scan(new BytesRef(new WKBWriter().write(new WKTReader().read(SHAPE))));
+        assertNull(SimplifiedShapeCache.cull(scanner, 1, GeoUtils.SimplifyAlgorithm.DOUGLAS_PEUCKER, null, factory, new WKBWriter()));
+        assertNull(SimplifiedShapeCache.cull(scanner, 10, GeoUtils.SimplifyAlgorithm.TOPOLOGY_PRESERVING, null, factory, new WKBWriter()));
+        // Across the dateline, the shape is always clipped
+        GeoViewport viewport = new GeoViewport(1, 170, 0, -170);
+        assertNull(SimplifiedShapeCache.cull(scanner, 10, GeoUtils.SimplifyAlgorithm.DOUGLAS_PEUCKER, viewport, factory, new WKBWriter()));
+
+        // Douglas-Peucker keeps the ends of a line
+        scanner.scan(new BytesRef(new WKBWriter().write(new WKTReader().read("LINESTRING (0 0, 0.5 0.1, 1 0)"))));
+        assertNull(SimplifiedShapeCache.cull(scanner, 10, GeoUtils.SimplifyAlgorithm.DOUGLAS_PEUCKER, null, factory, new WKBWriter()));
+    }
+
+    public void testDisabledCacheAlwaysComputes() throws ParseException {
+        SimplifiedShapeCache.Key key = new SimplifiedShapeCache.Key(42, 0.1, GeoUtils.SimplifyAlgorithm.TOPOLOGY_PRESERVING);
+        AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            SimplifiedShapeCache.DISABLED.computeIfAbsent(key, () -> {
+                loads.incrementAndGet();
+                return new SimplifiedShapeCache.SimplifiedShape(new BytesRef(), "Point", "Point", 0, false);
+            });
+        }
+        assertEquals(3, loads.get());
+        assertEquals(0, SimplifiedShapeCache.DISABLED.count());
+    }
+
+    public void testLoaderFailureIsNotCached() {
+        SimplifiedShapeCache cache = new SimplifiedShapeCache(1 << 20);
+        SimplifiedShapeCache.Key key = new SimplifiedShapeCache.Key(7, 0.1, GeoUtils.SimplifyAlgorithm.DOUGLAS_PEUCKER);
+        expectThrows(ParseException.class, () -> cache.computeIfAbsent(key, () -> { throw new ParseException("invalid"); }));
+        assertEquals(0, cache.count());
+    }
+}
@@ -0,0 +1,121 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.elasticsearch.test.ESTestCase;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class VectorTileWriterTests extends ESTestCase {
+
+    public void testPoint() throws ParseException {
+        VectorTileWriter writer = new VectorTileWriter("shapes", GeoViewport.fromTile("0/0/0"));
+        writer.addFeature(42, new WKTReader().read("POINT (0 0)"), Map.of("doc_count", 3L));
+
+        List<int[]> geometries = featureGeometries(writer.toByteArray());
+        assertEquals(1, geometries.size());
+        // MoveTo(1), then the center of the tile
+        assertArrayEquals(new int[] { 9, 4096, 4096 }, geometries.get(0));
+    }
+
+    public void testPolygonRings() throws ParseException {
+        VectorTileWriter writer = new VectorTileWriter("shapes", GeoViewport.fromTile("0/0/0"));
+        // Counterclockwise in lon/lat, so clockwise once the y axis points down
+        writer.addFeature(1, new WKTReader().read("POLYGON ((0 0, 90 0, 90 45, 0 45, 0 0))"), Map.of());
+
+        int[] geometry = featureGeometries(writer.toByteArray()).get(0);
+        // MoveTo(1), LineTo(3), ClosePath(1)
+        assertEquals(9, geometry[0]);
+        assertEquals(2 | (3 << 3), geometry[3]);
+        assertEquals(15, geometry[geometry.length - 1]);
+
+        int[] xs = new int[4];
+        int[] ys = new int[4];
+        int x = 0;
+        int y = 0;
+        for (int i = 0, p = 1; i < 4; i++, p += 2) {
+            if (i == 1) {
+                p++;
+            }
+            x += unzigzag(geometry[p]);
+            y += unzigzag(geometry[p + 1]);
+            xs[i] = x;
+            ys[i] = y;
+        }
+        long area = 0;
+        for (int i = 0; i < 4; i++) {
+            area += (long) xs[i] * ys[(i + 1) % 4] - (long) xs[(i + 1) % 4] * ys[i];
+        }
+        assertTrue("exterior rings have a positive area", area > 0);
+    }
+
+    public void testCollapsedShapesAreDropped() throws ParseException {
+        VectorTileWriter writer = new VectorTileWriter("shapes", GeoViewport.fromTile("0/0/0"));
+        writer.addFeature(1, new WKTReader().read("POLYGON ((0 0, 0.001 0, 0.001 0.001, 0 0))"), Map.of());
+        assertEquals(0, writer.toByteArray().length);
+    }
+
+    public void testGeometryCollectionIsSplitByType() throws ParseException {
+        VectorTileWriter writer = new VectorTileWriter("shapes", GeoViewport.fromTile("0/0/0"));
+        writer.addFeature(1, new WKTReader().read("GEOMETRYCOLLECTION (POINT (0 0), LINESTRING (0 0, 90 45))"), Map.of());
+        assertEquals(2, featureGeometries(writer.toByteArray()).size());
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * The geometry commands of the features of the first layer of the tile.
+     */
+    private static List<int[]> featureGeometries(byte[] tile) {
+        List<int[]> geometries = new ArrayList<>();
+        byte[] layer = lengthDelimited(tile, 3).get(0);
+        for (byte[] feature : lengthDelimited(layer, 2)) {
+            byte[] packed = lengthDelimited(feature, 4).get(0);
+            List<Integer> commands = new ArrayList<>();
+            int[] position = { 0 };
+            while (position[0] < packed.length) {
+                commands.add((int) varint(packed, position));
+            }
+            geometries.add(commands.stream().mapToInt(Integer::intValue).toArray());
+        }
+        return geometries;
+    }
+
+    private static List<byte[]> lengthDelimited(byte[] message, int field) {
+        List<byte[]> values = new ArrayList<>();
+        int[] position = { 0 };
+        while (position[0] < message.length) {
+            long tag = varint(message, position);
+            switch ((int) (tag & 7)) {
+                case 0 -> varint(message, position);
+                case 1 -> position[0] += 8;
+                case 2 -> {
+                    int length = (int) varint(message, position);
+                    if ((tag >>> 3) == field) {
+                        byte[] value = new byte[length];
+                        System.arraycopy(message, position[0], value, 0, length);
+                        values.add(value);
+                    }
+                    position[0] += length;
+                }
+                default -> throw new AssertionError("unexpected wire type in " + tag);
+            }
+        }
+        return values;
+    }
+
+    private static long varint(byte[] bytes, int[] position) {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = bytes[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.test.ESTestCase;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.io.ByteOrderValues;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+import org.locationtech.jts.io.WKTReader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Check that decoding a WKB slice gives the same geometry as the JTS reader.
+ */
+public class WkbDecoderTests extends ESTestCase {
+
+    private static final String[] SHAPES = {
+        "POINT (2.35 48.85)",
+        "POINT EMPTY",
+        "LINESTRING (0 0, 1 0, 1 1, 3.5 2.25)",
+        "POLYGON ((0 0, 1 0, 1 1, 0 1, 0 0), (0.2 0.2, 0.4 0.2, 0.4 0.4, 0.2 0.2))",
+        "MULTIPOINT ((0 0), (1 1))",
+        "MULTILINESTRING ((0 0, 1 1), (2 2, 3 5))",
+        "MULTIPOLYGON (((0 0, 1 0, 1 1, 0 0)), ((10 10, 12 10, 12 12, 10 10)))",
+        "GEOMETRYCOLLECTION (POINT (1 2), LINESTRING (0 0, 0.1 0.3), POLYGON ((0 0, 1 0, 1 1, 0 0)))" };
+
+    public void testDecodeMatchesJts() throws ParseException {
+        WkbDecoder decoder = new WkbDecoder();
+        for (String wkt : SHAPES) {
+            Geometry geom = new WKTReader().read(wkt);
+            for (int byteOrder : new int[] { ByteOrderValues.BIG_ENDIAN, ByteOrderValues.LITTLE_ENDIAN }) {
+                byte[] wkb = new WKBWriter(2, byteOrder).write(geom);
+                Geometry expected = new WKBReader().read(wkb);
+                Geometry decoded = decoder.decode(new BytesRef(wkb));
+                assertEquals(wkt, expected.getGeometryType(), decoded.getGeometryType());
+                assertTrue(wkt, expected.equalsExact(decoded));
+            }
+        }
+    }
+
+    public void testDecodeSlice() throws ParseException {
+        Geometry geom = new WKTReader().read("POLYGON ((0 0, 3 0, 3 4, 0 0))");
+        byte[] wkb = new WKBWriter().write(geom);
+        byte[] padded = new byte[wkb.length + 11];
+        System.arraycopy(wkb, 0, padded, 5, wkb.length);
+
+        assertTrue(geom.equalsExact(new WkbDecoder().decode(new BytesRef(padded, 5, wkb.length))));
+    }
+
+    public void testDecodeThreeDimensions() throws ParseException {
+        Geometry geom = new WKTReader().read("LINESTRING Z (0 0 1, 1 1 2)");
+        Geometry decoded = new WkbDecoder().decode(new BytesRef(new WKBWriter(3).write(geom)));
+        assertTrue(geom.equalsExact(decoded));
+        assertEquals(2d, decoded.getCoordinates()[1].getZ(), 0d);
+    }
+
+    public void testDecodeRepairsRings() throws ParseException {
+        WkbDecoder decoder = new WkbDecoder();
+        // Unclosed, then too short: both closed, padded to 4 points, as by the JTS reader
+        for (double[] ring : new double[][] { { 0, 0, 1, 0, 1, 1, 0, 1 }, { 0, 0, 1, 0 } }) {
+            byte[] wkb = polygon(ring);
+            Geometry expected = new WKBReader().read(wkb);
+            Geometry decoded = decoder.decode(new BytesRef(wkb));
+            assertTrue(expected.equalsExact(decoded));
+            assertTrue(((Polygon) decoded).getExteriorRing().isClosed());
+        }
+    }
+
+    /**
+     * A little endian WKB polygon of a single ring of the given x, y ordinates, kept as is.
+     */
+    private static byte[] polygon(double[] ring) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 3 * Integer.BYTES + ring.length * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 1).putInt(3).putInt(1).putInt(ring.length / 2);
+        for (double ordinate : ring) {
+            buffer.putDouble(ordinate);
+        }
+        return buffer.array();
+    }
+
+    public void testDecodeInvalidWkb() {
+        WkbDecoder decoder = new WkbDecoder();
+        expectThrows(ParseException.class, () -> decoder.decode(new BytesRef(new byte[] { 3, 0, 0, 0, 1 })));
+        expectThrows(ParseException.class, () -> decoder.decode(new BytesRef(new byte[] { 0, 0, 0, 0, 9 })));
+    }
+}
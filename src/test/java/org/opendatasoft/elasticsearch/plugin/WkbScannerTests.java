@@ -0,0 +1,61 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.test.ESTestCase;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ByteOrderValues;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBWriter;
+import org.locationtech.jts.io.WKTReader;
+
+/**
+ * Check that scanning a WKB gives the same figures as decoding it with JTS.
+ */
+public class WkbScannerTests extends ESTestCase {
+
+    private static final String[] SHAPES = {
+        "POINT (2.35 48.85)",
+        "LINESTRING (0 0, 1 0, 1 1, 3.5 2.25)",
+        "POLYGON ((0 0, 1 0, 1 1, 0 1, 0 0), (0.2 0.2, 0.4 0.2, 0.4 0.4, 0.2 0.2))",
+        "MULTIPOINT ((0 0), (1 1))",
+        "MULTILINESTRING ((0 0, 1 1), (2 2, 3 5))",
+        "MULTIPOLYGON (((0 0, 1 0, 1 1, 0 0)), ((10 10, 12 10, 12 12, 10 10)))",
+        "GEOMETRYCOLLECTION (POINT (1 2), LINESTRING (0 0, 0.1 0.3), POLYGON ((0 0, 1 0, 1 1, 0 0)))" };
+
+    public void testScanMatchesJts() throws ParseException {
+        WkbScanner scanner = new WkbScanner();
+        for (String wkt : SHAPES) {
+            Geometry geom = new WKTReader().read(wkt);
+            for (int byteOrder : new int[] { ByteOrderValues.BIG_ENDIAN, ByteOrderValues.LITTLE_ENDIAN }) {
+                scanner.scan(new BytesRef(new WKBWriter(2, byteOrder).write(geom)));
+                assertEquals(wkt, geom.getGeometryType(), scanner.getGeometryType());
+                assertEquals(wkt, geom.getLength(), scanner.getLength(), 0d);
+                assertEquals(wkt, geom.getNumPoints(), scanner.getVertexCount());
+                assertEquals(wkt, geom.getEnvelopeInternal().getMinX(), scanner.getMinX(), 0d);
+                assertEquals(wkt, geom.getEnvelopeInternal().getMinY(), scanner.getMinY(), 0d);
+                assertEquals(wkt, geom.getEnvelopeInternal().getMaxX(), scanner.getMaxX(), 0d);
+                assertEquals(wkt, geom.getEnvelopeInternal().getMaxY(), scanner.getMaxY(), 0d);
+                assertEquals(wkt, geom.getCoordinate().getX(), scanner.getFirstX(), 0d);
+                assertEquals(wkt, geom.getCoordinate().getY(), scanner.getFirstY(), 0d);
+            }
+        }
+    }
+
+    public void testScanSlice() throws ParseException {
+        Geometry geom = new WKTReader().read("POLYGON ((0 0, 3 0, 3 4, 0 0))");
+        byte[] wkb = new WKBWriter().write(geom);
+        byte[] padded = new byte[wkb.length + 7];
+        System.arraycopy(wkb, 0, padded, 3, wkb.length);
+
+        WkbScanner scanner = new WkbScanner();
+        scanner.scan(new BytesRef(padded, 3, wkb.length));
+        assertEquals(12d, scanner.getLength(), 0d);
+        assertEquals(4, scanner.getVertexCount());
+    }
+
+    public void testScanTruncatedWkb() throws ParseException {
+        byte[] wkb = new WKBWriter().write(new WKTReader().read("LINESTRING (0 0, 1 1)"));
+        WkbScanner scanner = new WkbScanner();
+        expectThrows(ParseException.class, () -> scanner.scan(new BytesRef(wkb, 0, wkb.length - 1)));
+    }
+}
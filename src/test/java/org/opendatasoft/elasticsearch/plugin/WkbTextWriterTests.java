@@ -0,0 +1,92 @@
+package org.opendatasoft.elasticsearch.plugin;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.json.JsonXContent;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBWriter;
+import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.io.WKTWriter;
+import org.locationtech.jts.io.geojson.GeoJsonWriter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class WkbTextWriterTests extends ESTestCase {
+
+    private static final String[] SHAPES = {
+        "POINT (2.3522219 48.856614)",
+        "POINT (1000 -0.0001)",
+        "LINESTRING (0 0, 1.123456789123 2.5, 3 4)",
+        "POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0), (2 2, 2 3, 3 3, 2 2))",
+        "MULTIPOINT ((1 2), (3.33333333333 4))",
+        "MULTILINESTRING ((0 0, 1 1), (2 2, 3 3, 4 5))",
+        "MULTIPOLYGON (((0 0, 1 0, 1 1, 0 0)), ((5 5, 6 5, 6 6, 5 5)))",
+        "GEOMETRYCOLLECTION (POINT (1 2), LINESTRING (0 0, 1 1), POLYGON ((0 0, 1 0, 1 1, 0 0)))",
+        "LINESTRING EMPTY",
+        "MULTIPOLYGON EMPTY" };
+
+    public void testSameTextAsJts() throws ParseException {
+        WkbTextWriter geoJson = new WkbTextWriter(GeoUtils.OutputFormat.GEOJSON, -1);
+        WkbTextWriter wkt = new WkbTextWriter(GeoUtils.OutputFormat.WKT, -1);
+        for (String shape : SHAPES) {
+            Geometry geometry = new WKTReader().read(shape);
+            for (boolean littleEndian : new boolean[] { false, true }) {
+                BytesRef wkb = new BytesRef(new WKBWriter(2, littleEndian ? 2 : 1).write(geometry));
+                assertEquals(shape, new WKTWriter().write(geometry), wkt.write(wkb));
+                if (shape.endsWith("EMPTY") == false) {
+                    assertEquals(shape, new GeoJsonWriter().write(geometry), geoJson.write(wkb));
+                }
+            }
+        }
+    }
+
+    public void testDecimals() throws ParseException {
+        BytesRef wkb = new BytesRef(new WKBWriter().write(new WKTReader().read("LINESTRING (1.123456789 2.5, 3 4.987654321)")));
+        assertEquals(
+            new GeoJsonWriter(3).write(new WKTReader().read("LINESTRING (1.123456789 2.5, 3 4.987654321)")),
+            new WkbTextWriter(GeoUtils.OutputFormat.GEOJSON, 3).write(wkb)
+        );
+        assertEquals("LINESTRING (1.12 2.5, 3 4.99)", new WkbTextWriter(GeoUtils.OutputFormat.WKT, 2).write(wkb));
+        expectThrows(IllegalArgumentException.class, () -> new WkbTextWriter(GeoUtils.OutputFormat.GEOJSON, 21));
+    }
+
+    public void testZIsKeptInGeoJson() throws ParseException {
+        Geometry geometry = new WKTReader().read("LINESTRING Z (0 0 1, 1 1 2)");
+        BytesRef wkb = new BytesRef(new WKBWriter(3).write(geometry));
+        assertEquals(new GeoJsonWriter().write(geometry), new WkbTextWriter(GeoUtils.OutputFormat.GEOJSON, -1).write(wkb));
+        assertEquals("LINESTRING (0 0, 1 1)", new WkbTextWriter(GeoUtils.OutputFormat.WKT, -1).write(wkb));
+    }
+
+    public void testWkbIsHex() throws ParseException {
+        byte[] bytes = new WKBWriter().write(new WKTReader().read("POINT (1 2)"));
+        assertEquals(WKBWriter.toHex(bytes), new WkbTextWriter(GeoUtils.OutputFormat.WKB, -1).write(new BytesRef(bytes)));
+    }
+
+    public void testGeoJsonObject() throws ParseException, IOException {
+        BytesRef wkb = new BytesRef(
+            new WKBWriter().write(new WKTReader().read("GEOMETRYCOLLECTION (POINT (1.123456 2), POLYGON ((0 0, 1 0, 1 1, 0 0)))"))
+        );
+        WkbTextWriter writer = new WkbTextWriter(GeoUtils.OutputFormat.GEOJSON, 2);
+        writer.checkShape(wkb);
+        XContentBuilder builder = JsonXContent.contentBuilder();
+        writer.writeGeoJsonObject(builder, wkb);
+        assertEquals(
+            "{\"type\":\"GeometryCollection\",\"geometries\":["
+                + "{\"type\":\"Point\",\"coordinates\":[1.12,2.0]},"
+                + "{\"type\":\"Polygon\",\"coordinates\":[[[0.0,0.0],[1.0,0.0],[1.0,1.0],[0.0,0.0]]]}]}",
+            Strings.toString(builder)
+        );
+    }
+
+    public void testTruncatedShape() throws ParseException {
+        byte[] bytes = new WKBWriter().write(new WKTReader().read("LINESTRING (0 0, 1 1)"));
+        BytesRef truncated = new BytesRef(Arrays.copyOf(bytes, bytes.length - 4));
+        WkbTextWriter writer = new WkbTextWriter(GeoUtils.OutputFormat.GEOJSON, -1);
+        expectThrows(ParseException.class, () -> writer.write(truncated));
+        expectThrows(ParseException.class, () -> writer.checkShape(truncated));
+    }
+}
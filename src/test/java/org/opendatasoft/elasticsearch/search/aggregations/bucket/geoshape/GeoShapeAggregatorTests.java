@@ -0,0 +1,355 @@
+package org.opendatasoft.elasticsearch.search.aggregations.bucket.geoshape;
+
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.tests.index.RandomIndexWriter;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.core.CheckedConsumer;
+import org.elasticsearch.index.mapper.KeywordFieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.NumberFieldMapper;
+import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.search.aggregations.AggregatorTestCase;
+import org.elasticsearch.threadpool.TestThreadPool;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.xcontent.XContentParser;
+import org.elasticsearch.xcontent.json.JsonXContent;
+import org.junit.After;
+import org.junit.Before;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.io.WKBWriter;
+import org.opendatasoft.elasticsearch.plugin.GeoShapeServices;
+import org.opendatasoft.elasticsearch.plugin.GeoUtils;
+import org.opendatasoft.elasticsearch.plugin.SimplifiedShapeCache;
+import org.opendatasoft.elasticsearch.plugin.WkbScanner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GeoShapeAggregatorTests extends AggregatorTestCase {
+    private static final String FIELD = "wkb";
+
+    private final TestServices services = new TestServices();
+    private ThreadPool simplifyPool;
+
+    @Override
+    protected List<SearchPlugin> getSearchPlugins() {
+        return List.of(new SearchPlugin() {
+            @Override
+            public List<AggregationSpec> getAggregations() {
+                return List.of(
+                    new AggregationSpec(GeoShapeBuilder.NAME, GeoShapeBuilder::new, GeoShapeBuilder::parse).addResultReader(
+                        InternalGeoShape::new
+                    ).setAggregatorRegistrar(builder -> GeoShapeBuilder.registerAggregators(builder, services))
+                );
+            }
+        });
+    }
+
+    @Before
+    public void startSimplifyPool() {
+        simplifyPool = new TestThreadPool(getTestName());
+    }
+
+    @After
+    public void stopSimplifyPool() {
+        ThreadPool.terminate(simplifyPool, 10, TimeUnit.SECONDS);
+    }
+
+    public void testChunkedSimplificationMatchesSequential() throws IOException {
+        withShapes(randomIntBetween(20, 60), reader -> {
+            GeoShapeBuilder builder = simplified("douglas_peucker");
+            InternalGeoShape sequential = search(reader, builder, null, 1);
+            InternalGeoShape chunked = search(reader, builder, simplifyPool.generic(), 4);
+            assertFalse(sequential.getBuckets().isEmpty());
+            // Same shapes, in the same order, whichever thread simplified them
+            assertEquals(sequential, chunked);
+            assertEquals(chunked, search(reader, builder, simplifyPool.generic(), 4));
+        });
+    }
+
+    public void testSaturatedPoolFallsBackOnTheSearchThread() throws IOException {
+        withShapes(randomIntBetween(20, 60), reader -> {
+            GeoShapeBuilder builder = simplified("topology_preserving");
+            InternalGeoShape sequential = search(reader, builder, null, 1);
+            InternalGeoShape rejected = search(reader, builder, new RejectingExecutor(), 4);
+            assertEquals(sequential, rejected);
+        });
+    }
+
+    public void testFailingChunkWaitsForTheOthers() throws IOException {
+        withShapes(60, reader -> {
+            GeoShapeBuilder builder = simplified("douglas_peucker");
+            services.tripAfter = randomIntBetween(0, 30);
+            expectThrows(CircuitBreakingException.class, () -> search(reader, builder, simplifyPool.generic(), 4));
+            // No chunk is left running on the pool once the failure is rethrown
+            assertEquals(0, services.decoding.get());
+        });
+    }
+
+    public void testSlicedCollectionMatchesSequential() throws IOException {
+        withShapes(randomIntBetween(40, 80), reader -> {
+            assertTrue(reader.leaves().size() > 1);
+            GeoShapeBuilder builder = geoshape("{\"field\": \"wkb\", \"size\": 5, \"shard_size\": 10}");
+            InternalGeoShape sequential = search(reader, builder, false);
+            // Each segment is collected on its own, keeps its top shard_size shapes, and is then reduced with the others
+            InternalGeoShape sliced = search(reader, builder, true);
+            assertEquals(5, sequential.getBuckets().size());
+            // Same shapes, doc counts and sum_other_doc_count
+            assertEquals(sequential, sliced);
+        });
+    }
+
+    public void testHashFieldDigestsDontReachTheCachedShapesOfOthers() throws Exception {
+        services.cache = new SimplifiedShapeCache(1 << 20);
+        GeometryFactory factory = new GeometryFactory();
+        BytesRef square = new BytesRef(new WKBWriter().write(square(factory, 0, 0)));
+        BytesRef other = new BytesRef(new WKBWriter().write(square(factory, 50, 50)));
+        GeoShapeBuilder builder = geoshape(
+            "{\"field\": \"wkb\", \"hash_field\": \"hash\", \"simplify\": {\"zoom\": 3, \"algorithm\": \"douglas_peucker\"}}"
+        );
+
+        // The simplified square is cached
+        long digest = GeoUtils.getHashFromWKB(square);
+        withDocs(List.of(square), List.of(digest), reader -> assertEquals(1, searchWithHash(reader, builder).getBuckets().size()));
+
+        // Another shape, which hash field holds the digest of the square, still gets its own simplified shape
+        withDocs(List.of(other), List.of(digest), reader -> {
+            InternalGeoShape result = searchWithHash(reader, builder);
+            assertEquals(1, result.getBuckets().size());
+            WkbScanner scanner = new WkbScanner();
+            scanner.scan(result.getBuckets().get(0).wkb);
+            assertEquals(50, scanner.getMinX(), 0);
+        });
+    }
+
+    public void testHashFieldFallsBackOnTheWkbOfTheDocsWithoutIt() throws Exception {
+        GeometryFactory factory = new GeometryFactory();
+        WKBWriter writer = new WKBWriter();
+        List<BytesRef> shapes = new ArrayList<>();
+        List<Long> digests = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            BytesRef wkb = new BytesRef(writer.write(square(factory, i * 15, 0)));
+            for (int doc = randomIntBetween(1, 3); doc > 0; doc--) {
+                shapes.add(wkb);
+                // Some docs were indexed before the `geo_extension` processor was set up
+                digests.add(randomBoolean() ? GeoUtils.getHashFromWKB(wkb) : null);
+            }
+        }
+
+        withDocs(shapes, digests, reader -> {
+            for (String hint : List.of("map", "bounded")) {
+                String json = "{\"field\": \"wkb\", \"size\": 100, \"execution_hint\": \"" + hint + "\"";
+                InternalGeoShape byWkb = search(reader, geoshape(json + "}"), false);
+                InternalGeoShape byDigest = searchWithHash(reader, geoshape(json + ", \"hash_field\": \"hash\"}"));
+                assertEquals(10, byWkb.getBuckets().size());
+                assertEquals(docCounts(byWkb), docCounts(byDigest));
+            }
+        });
+    }
+
+    private static Map<BytesRef, Long> docCounts(InternalGeoShape result) {
+        Map<BytesRef, Long> docCounts = new HashMap<>();
+        for (InternalGeoShape.InternalBucket bucket : result.getBuckets()) {
+            docCounts.put(bucket.wkb, bucket.getDocCount());
+        }
+        return docCounts;
+    }
+
+    public void testParseDigest() {
+        for (long digest : new long[] { 0, 42, -42, Long.MAX_VALUE, Long.MIN_VALUE, randomLong() }) {
+            assertEquals(digest, GeoShapeAggregator.parseDigest(new BytesRef(Long.toString(digest))));
+        }
+        assertEquals(42, GeoShapeAggregator.parseDigest(new BytesRef("+42")));
+        // Rejected as by Long.parseLong, rather than read as 0 or wrapped around
+        for (String invalid : List.of("", "-", "+", "4-2", "0x2a", "9223372036854775808", "-9223372036854775809")) {
+            expectThrows(IllegalArgumentException.class, () -> GeoShapeAggregator.parseDigest(new BytesRef(invalid)));
+        }
+    }
+
+    private InternalGeoShape searchWithHash(DirectoryReader reader, GeoShapeBuilder builder) throws IOException {
+        MappedFieldType wkb = new KeywordFieldMapper.KeywordFieldType(FIELD);
+        MappedFieldType hash = new NumberFieldMapper.NumberFieldType("hash", NumberFieldMapper.NumberType.LONG);
+        return searchAndReduce(reader, new AggTestConfig(builder, wkb, hash));
+    }
+
+    private static Polygon square(GeometryFactory factory, double x, double y) {
+        return factory.createPolygon(
+            new Coordinate[] {
+                new Coordinate(x, y),
+                new Coordinate(x + 10, y),
+                new Coordinate(x + 10, y + 10),
+                new Coordinate(x, y + 10),
+                new Coordinate(x, y) }
+        );
+    }
+
+    /**
+     * Index a doc for each of the given shapes, with the given digest in its hash field, or without hash field if it is null.
+     */
+    private void withDocs(List<BytesRef> shapes, List<Long> digests, CheckedConsumer<DirectoryReader, Exception> consumer)
+        throws Exception {
+        try (Directory directory = newDirectory()) {
+            try (RandomIndexWriter iw = new RandomIndexWriter(random(), directory)) {
+                for (int i = 0; i < shapes.size(); i++) {
+                    List<IndexableField> fields = new ArrayList<>();
+                    fields.add(new SortedSetDocValuesField(FIELD, shapes.get(i)));
+                    if (digests.get(i) != null) {
+                        fields.add(new SortedNumericDocValuesField("hash", digests.get(i)));
+                    }
+                    iw.addDocument(fields);
+                }
+            }
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                consumer.accept(reader);
+            }
+        }
+    }
+
+    private InternalGeoShape search(DirectoryReader reader, GeoShapeBuilder builder, ExecutorService executor, int parallelism)
+        throws IOException {
+        services.executor = executor;
+        services.parallelism = parallelism;
+        return search(reader, builder, false);
+    }
+
+    private InternalGeoShape search(DirectoryReader reader, GeoShapeBuilder builder, boolean sliced) throws IOException {
+        MappedFieldType fieldType = new KeywordFieldMapper.KeywordFieldType(FIELD);
+        return searchAndReduce(reader, new AggTestConfig(builder, fieldType).withSplitLeavesIntoSeperateAggregators(sliced));
+    }
+
+    private GeoShapeBuilder simplified(String algorithm) throws IOException {
+        return geoshape("{\"field\": \"wkb\", \"size\": 100, \"simplify\": {\"zoom\": 3, \"algorithm\": \"" + algorithm + "\"}}");
+    }
+
+    private GeoShapeBuilder geoshape(String json) throws IOException {
+        try (XContentParser parser = createParser(JsonXContent.jsonXContent, json)) {
+            return GeoShapeBuilder.parse(parser, "shapes");
+        }
+    }
+
+    /**
+     * Index the given number of distinct polygons of 64 vertices, some of them in several docs, in several segments.
+     */
+    private void withShapes(int count, CheckedConsumer<DirectoryReader, IOException> consumer) throws IOException {
+        GeometryFactory factory = new GeometryFactory();
+        WKBWriter writer = new WKBWriter();
+        try (Directory directory = newDirectory()) {
+            IndexWriterConfig config = newIndexWriterConfig().setMergePolicy(NoMergePolicy.INSTANCE);
+            try (RandomIndexWriter iw = new RandomIndexWriter(random(), directory, config)) {
+                for (int i = 0; i < count; i++) {
+                    double x = randomDoubleBetween(-170, 170, true);
+                    double y = randomDoubleBetween(-80, 80, true);
+                    double radius = randomDoubleBetween(1, 8, true);
+                    Coordinate[] ring = new Coordinate[65];
+                    for (int v = 0; v < 64; v++) {
+                        double angle = 2 * Math.PI * v / 64;
+                        double r = radius * randomDoubleBetween(0.8, 1, true);
+                        ring[v] = new Coordinate(x + r * Math.cos(angle), y + r * Math.sin(angle));
+                    }
+                    ring[64] = ring[0];
+                    BytesRef wkb = new BytesRef(writer.write(factory.createPolygon(ring)));
+                    for (int doc = randomIntBetween(1, 3); doc > 0; doc--) {
+                        iw.addDocument(List.of(new SortedSetDocValuesField(FIELD, wkb)));
+                    }
+                    if (i % 10 == 9) {
+                        iw.commit();
+                    }
+                }
+            }
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                consumer.accept(reader);
+            }
+        }
+    }
+
+    /**
+     * The node services, with the simplify executor, parallelism and cache of each search, and a breaker which may trip
+     * after a number of decoded shapes.
+     */
+    private static class TestServices extends GeoShapeServices {
+        private volatile ExecutorService executor;
+        private volatile int parallelism = 1;
+        private volatile int tripAfter = -1;
+        private volatile SimplifiedShapeCache cache = SimplifiedShapeCache.DISABLED;
+        private final AtomicInteger reserved = new AtomicInteger();
+        private final AtomicInteger decoding = new AtomicInteger();
+
+        @Override
+        public ExecutorService simplifyExecutor() {
+            return executor;
+        }
+
+        @Override
+        public int simplifyParallelism() {
+            return parallelism;
+        }
+
+        @Override
+        public SimplifiedShapeCache simplifiedShapeCache() {
+            return cache;
+        }
+
+        @Override
+        public long reserveDecodedBytes(long wkbLength, String label) {
+            if (tripAfter >= 0 && reserved.incrementAndGet() > tripAfter) {
+                throw new CircuitBreakingException("tripped by the test", CircuitBreaker.Durability.TRANSIENT);
+            }
+            decoding.incrementAndGet();
+            return super.reserveDecodedBytes(wkbLength, label);
+        }
+
+        @Override
+        public void release(long bytes) {
+            decoding.decrementAndGet();
+            super.release(bytes);
+        }
+    }
+
+    private static class RejectingExecutor extends AbstractExecutorService {
+        @Override
+        public void execute(Runnable command) {
+            throw new EsRejectedExecutionException("saturated", false);
+        }
+
+        @Override
+        public void shutdown() {}
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return List.of();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
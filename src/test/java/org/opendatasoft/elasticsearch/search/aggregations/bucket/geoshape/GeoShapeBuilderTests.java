@@ -0,0 +1,118 @@
+package org.opendatasoft.elasticsearch.search.aggregations.bucket.geoshape;
+
+import org.elasticsearch.TransportVersion;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.search.aggregations.Aggregator.SubAggCollectionMode;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.TransportVersionUtils;
+import org.opendatasoft.elasticsearch.plugin.GeoViewport;
+
+import java.io.IOException;
+import java.util.List;
+
+public class GeoShapeBuilderTests extends ESTestCase {
+
+    private static final NamedWriteableRegistry REGISTRY = new NamedWriteableRegistry(List.of());
+
+    public void testCompactRoundTripKeepsEveryOption() throws IOException {
+        GeoShapeBuilder builder = new GeoShapeBuilder("shapes").size(5)
+            .shardSize(20)
+            .hashField("geometry.hash")
+            .viewport(new GeoViewport(10, -10, -10, 10))
+            .bboxField("geometry.bbox")
+            .maxVertices(1000)
+            .maxResponseBytes(1 << 20)
+            .digests(List.of("-3", "42"))
+            .deferSimplification(true)
+            .decimals(4)
+            .keyAsObject(true)
+            .collectMode(SubAggCollectionMode.BREADTH_FIRST)
+            .executionHint("bounded")
+            .partition(1, 4)
+            .order("digest")
+            .after("7")
+            .simplifyTimeout(TimeValue.timeValueMillis(50))
+            .includeTypes(List.of("Polygon", "MultiPolygon"))
+            .excludeTypes(List.of("MultiPolygon"))
+            .metrics(List.of("bbox", "area"));
+
+        GeoShapeBuilder copy = copyWriteable(builder, REGISTRY, GeoShapeBuilder::new, TransportVersion.current());
+        assertEquals(builder, copy);
+        assertEquals(builder.options(), copy.options());
+        assertEquals(InternalGeoShape.COMPACT_FORMAT, copy.options().wireFormat());
+    }
+
+    public void testCompactLayoutToTheNodesOfEarlierReleases() throws IOException {
+        // During a rolling upgrade, the nodes still on an earlier release with the compact layout get every option
+        GeoShapeBuilder builder = new GeoShapeBuilder("shapes").hashField("geometry.hash").metrics(List.of("vertices"));
+        TransportVersion earlier = TransportVersionUtils.randomVersionBetween(
+            random(),
+            InternalGeoShape.COMPACT_FORMAT_VERSION,
+            TransportVersion.current()
+        );
+        GeoShapeBuilder copy = copyWriteable(builder, REGISTRY, GeoShapeBuilder::new, earlier);
+        assertEquals(builder, copy);
+        assertEquals(InternalGeoShape.COMPACT_FORMAT, copy.options().wireFormat());
+    }
+
+    public void testOriginalRoundTripToOlderNodes() throws IOException {
+        GeoShapeBuilder builder = new GeoShapeBuilder("shapes").size(5).shardSize(20);
+        assertEquals(TransportVersion.zero(), builder.getMinimalSupportedVersion());
+
+        TransportVersion previous = TransportVersionUtils.getPreviousVersion(InternalGeoShape.COMPACT_FORMAT_VERSION);
+        GeoShapeBuilder copy = copyWriteable(builder, REGISTRY, GeoShapeBuilder::new, previous);
+        assertEquals(builder, copy);
+        // The shards answer in the layout of the request
+        assertEquals(InternalGeoShape.ORIGINAL_FORMAT, copy.options().wireFormat());
+
+        // Forwarded as it was read, even to a node which knows the compact layout
+        GeoShapeBuilder forwarded = copyWriteable(copy, REGISTRY, GeoShapeBuilder::new, TransportVersion.current());
+        assertEquals(InternalGeoShape.ORIGINAL_FORMAT, forwarded.options().wireFormat());
+    }
+
+    public void testOptionsAreNotDroppedForOlderNodes() {
+        GeoShapeBuilder builder = new GeoShapeBuilder("shapes").hashField("geometry.hash").metrics(List.of("vertices"));
+        assertEquals(List.of("hash_field", "metrics"), builder.compactOnlyOptions());
+        assertEquals(InternalGeoShape.COMPACT_FORMAT_VERSION, builder.getMinimalSupportedVersion());
+
+        BytesStreamOutput out = new BytesStreamOutput();
+        out.setTransportVersion(TransportVersionUtils.getPreviousVersion(InternalGeoShape.COMPACT_FORMAT_VERSION));
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class, () -> builder.writeTo(out));
+        assertTrue(e.getMessage().contains("[hash_field, metrics]"));
+    }
+
+    public void testUnknownFormatIsRejected() throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        new GeoShapeBuilder("shapes").writeTo(out);
+        byte[] bytes = BytesReference.toBytes(out.bytes());
+        // Find the format version after the two markers of the header, and bump it past the current one
+        int header = indexOfHeader(bytes);
+        assertTrue(header > 0);
+        bytes[header + 8] = InternalGeoShape.CURRENT_FORMAT + 1;
+
+        BytesStreamOutput tampered = new BytesStreamOutput();
+        tampered.writeBytes(bytes);
+        IOException e = expectThrows(IOException.class, () -> new GeoShapeBuilder(tampered.bytes().streamInput()));
+        assertTrue(e.getMessage().contains("Unknown geoshape wire format"));
+    }
+
+    private static int indexOfHeader(byte[] bytes) {
+        // Two Integer.MIN_VALUE, big endian
+        for (int i = 0; i + 8 < bytes.length; i++) {
+            if (bytes[i] == (byte) 0x80
+                && bytes[i + 1] == 0
+                && bytes[i + 2] == 0
+                && bytes[i + 3] == 0
+                && bytes[i + 4] == (byte) 0x80
+                && bytes[i + 5] == 0
+                && bytes[i + 6] == 0
+                && bytes[i + 7] == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
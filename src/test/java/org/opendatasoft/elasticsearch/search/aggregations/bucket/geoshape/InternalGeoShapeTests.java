@@ -0,0 +1,192 @@
+package org.opendatasoft.elasticsearch.search.aggregations.bucket.geoshape;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.TransportVersion;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.search.aggregations.AggregationReduceContext;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.metrics.Sum;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.InternalAggregationTestCase;
+import org.elasticsearch.test.TransportVersionUtils;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBWriter;
+import org.locationtech.jts.io.WKTReader;
+import org.opendatasoft.elasticsearch.plugin.GeoUtils;
+import org.opendatasoft.elasticsearch.plugin.GeoViewport;
+import org.opendatasoft.elasticsearch.plugin.WkbScanner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class InternalGeoShapeTests extends ESTestCase {
+
+    private static final NamedWriteableRegistry REGISTRY = new NamedWriteableRegistry(List.of());
+
+    public void testCompactRoundTrip() throws IOException, ParseException {
+        InternalGeoShape.InternalBucket polygon = bucket("POLYGON ((0 0, 1 0, 1 1, 0 0))", 7, 3);
+        InternalGeoShape.InternalBucket line = bucket("LINESTRING (0 0, 1 1)", -7, 1);
+        line.realType = "LinearRing";
+        InternalGeoShape shapes = shapes(InternalGeoShape.COMPACT_FORMAT, new ShapeBudget(100, 1000), List.of(polygon, line));
+
+        InternalGeoShape copy = copyWriteable(shapes, REGISTRY, InternalGeoShape::new, TransportVersion.current());
+        assertEquals(shapes, copy);
+        assertEquals("LinearRing", copy.getBuckets().get(1).realType);
+    }
+
+    public void testOriginalRoundTrip() throws IOException, ParseException {
+        InternalGeoShape.InternalBucket polygon = bucket("POLYGON ((0 0, 1 0, 1 1, 0 0))", 7, 3);
+        InternalGeoShape shapes = shapes(InternalGeoShape.ORIGINAL_FORMAT, ShapeBudget.UNLIMITED, List.of(polygon));
+
+        // The layout follows the one of the request, not the transport version
+        TransportVersion older = TransportVersionUtils.getPreviousVersion(InternalGeoShape.COMPACT_FORMAT_VERSION);
+        for (TransportVersion version : List.of(TransportVersion.current(), older)) {
+            InternalGeoShape copy = copyWriteable(shapes, REGISTRY, InternalGeoShape::new, version);
+            assertEquals(shapes, copy);
+        }
+    }
+
+    public void testReduceKeepsTheCoarsestShapesWhicheverShardAnswersFirst() throws IOException, ParseException {
+        // The second shard zoomed out to fit in its budget, and dropped the vertex at (5 0.0001)
+        InternalGeoShape.InternalBucket detailed = bucket("POLYGON ((0 0, 5 0.0001, 10 0, 10 10, 0 10, 0 0))", 7, 2);
+        InternalGeoShape.InternalBucket zoomedOut = bucket("POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0))", 7, 3);
+        zoomedOut.perimeter = detailed.perimeter;
+        InternalGeoShape.InternalBucket other = bucket("POLYGON ((20 0, 25 0.0001, 30 0, 30 10, 20 10, 20 0))", 9, 1);
+        InternalGeoShape fine = shapes(InternalGeoShape.COMPACT_FORMAT, ShapeBudget.UNLIMITED, 0, false, List.of(detailed, other));
+        InternalGeoShape coarse = shapes(InternalGeoShape.COMPACT_FORMAT, ShapeBudget.UNLIMITED, 0.01, false, List.of(zoomedOut));
+
+        InternalGeoShape reduced = reduce(List.of(fine, coarse), true);
+        assertEquals(reduced, reduce(List.of(coarse, fine), true));
+        assertEquals(2, reduced.getBuckets().size());
+        InternalGeoShape.InternalBucket first = reduced.getBuckets().get(0);
+        assertEquals(7, first.wkbHash);
+        assertEquals(5, first.docCount);
+        assertEquals(zoomedOut.wkb, first.wkb);
+        // Only on the first shard, it is simplified again to the tolerance of the others, and still ranked on its perimeter
+        InternalGeoShape.InternalBucket second = reduced.getBuckets().get(1);
+        assertEquals(other.perimeter, second.perimeter, 0);
+        WkbScanner scanner = new WkbScanner();
+        scanner.scan(second.wkb);
+        assertEquals(5, scanner.getVertexCount());
+    }
+
+    public void testPartialThenFinalReduceMergesOverlappingShards() throws IOException, ParseException {
+        String small = "POLYGON ((0 0, 1 0, 1 1, 0 0))";
+        String medium = "POLYGON ((0 0, 2 0, 2 2, 0 0))";
+        String large = "POLYGON ((0 0, 3 0, 3 3, 0 0))";
+        InternalGeoShape first = shapes(
+            InternalGeoShape.COMPACT_FORMAT,
+            ShapeBudget.UNLIMITED,
+            List.of(withSum(bucket(small, 7, 3), 3), withSum(bucket(medium, 8, 2), 2))
+        );
+        InternalGeoShape second = shapes(
+            InternalGeoShape.COMPACT_FORMAT,
+            ShapeBudget.UNLIMITED,
+            List.of(withSum(bucket(small, 7, 1), 10), withSum(bucket(large, 9, 4), 4))
+        );
+        InternalGeoShape third = shapes(InternalGeoShape.COMPACT_FORMAT, ShapeBudget.UNLIMITED, List.of(withSum(bucket(medium, 8, 6), 6)));
+
+        InternalGeoShape partial = reduce(List.of(first, second), false);
+        assertEquals(3, partial.getBuckets().size());
+        InternalGeoShape reduced = reduce(List.of(partial, third), true);
+        // The same as reducing the shards at once
+        assertEquals(reduce(List.of(first, second, third), true), reduced);
+
+        // Ranked on their perimeter
+        List<InternalGeoShape.InternalBucket> buckets = reduced.getBuckets();
+        assertEquals(List.of(9L, 8L, 7L), buckets.stream().map(bucket -> bucket.wkbHash).toList());
+        assertEquals(List.of(4L, 8L, 4L), buckets.stream().map(InternalGeoShape.InternalBucket::getDocCount).toList());
+        assertEquals(List.of(4.0, 8.0, 13.0), buckets.stream().map(bucket -> ((Sum) bucket.getAggregations().get("sum")).value()).toList());
+        // The docs of the shapes the shards didn't return
+        assertTrue(Strings.toString(reduced).contains("\"sum_other_doc_count\":15"));
+    }
+
+    public void testSimplifyTimedOutIsReported() throws IOException, ParseException {
+        InternalGeoShape onTime = shapes(
+            InternalGeoShape.COMPACT_FORMAT,
+            ShapeBudget.UNLIMITED,
+            0,
+            false,
+            List.of(bucket("POLYGON ((0 0, 1 0, 1 1, 0 0))", 7, 3))
+        );
+        InternalGeoShape late = shapes(
+            InternalGeoShape.COMPACT_FORMAT,
+            ShapeBudget.UNLIMITED,
+            0,
+            true,
+            List.of(bucket("POLYGON ((2 0, 3 0, 3 1, 2 0))", 9, 1))
+        );
+        assertFalse(Strings.toString(onTime).contains("simplify_timed_out"));
+
+        InternalGeoShape reduced = reduce(List.of(onTime, late), true);
+        assertEquals(reduced, copyWriteable(reduced, REGISTRY, InternalGeoShape::new, TransportVersion.current()));
+        assertTrue(Strings.toString(reduced).contains("\"simplify_timed_out\":true"));
+    }
+
+    private static InternalGeoShape.InternalBucket withSum(InternalGeoShape.InternalBucket bucket, double sum) {
+        bucket.subAggregations = InternalAggregations.from(List.of(new Sum("sum", sum, DocValueFormat.RAW, null)));
+        return bucket;
+    }
+
+    static InternalGeoShape reduce(List<InternalGeoShape> shards, boolean isFinalReduce) {
+        AggregationReduceContext.Builder contexts = InternalAggregationTestCase.emptyReduceContextBuilder();
+        List<InternalAggregations> aggregations = new ArrayList<>();
+        for (InternalGeoShape shard : shards) {
+            aggregations.add(InternalAggregations.from(List.of(shard)));
+        }
+        InternalAggregations reduced = isFinalReduce
+            ? InternalAggregations.topLevelReduce(aggregations, contexts.forFinalReduction())
+            : InternalAggregations.reduce(aggregations, contexts.forPartialReduction());
+        return reduced.get("shapes");
+    }
+
+    static InternalGeoShape shapes(byte format, ShapeBudget budget, List<InternalGeoShape.InternalBucket> buckets) {
+        return shapes(format, budget, 0, false, buckets);
+    }
+
+    static InternalGeoShape shapes(
+        byte format,
+        ShapeBudget budget,
+        double tolerance,
+        boolean simplifyTimedOut,
+        List<InternalGeoShape.InternalBucket> buckets
+    ) {
+        return new InternalGeoShape(
+            "shapes",
+            new ArrayList<>(buckets),
+            GeoUtils.OutputFormat.GEOJSON,
+            10,
+            20,
+            5,
+            budget,
+            GeoShape.Algorithm.DOUGLAS_PEUCKER,
+            tolerance,
+            0,
+            format == InternalGeoShape.ORIGINAL_FORMAT ? null : new GeoViewport(10, -10, -10, 10),
+            -1,
+            false,
+            false,
+            simplifyTimedOut,
+            format,
+            Map.of()
+        );
+    }
+
+    static InternalGeoShape.InternalBucket bucket(String wkt, long hash, long docCount) throws ParseException {
+        BytesRef wkb = new BytesRef(new WKBWriter().write(new WKTReader().read(wkt)));
+        WkbScanner scanner = new WkbScanner();
+        scanner.scan(wkb);
+        return new InternalGeoShape.InternalBucket(
+            wkb,
+            hash,
+            scanner.getGeometryType(),
+            scanner.getLength(),
+            docCount,
+            InternalAggregations.EMPTY
+        );
+    }
+}